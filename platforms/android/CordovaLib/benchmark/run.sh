@@ -0,0 +1,67 @@
+#!/bin/sh
+#
+# Runs BridgeBenchmark against the real NativeToJsMessageQueue on a desktop
+# JVM, using the stand-ins in stubs/ for the few Android classes it touches.
+# Needs a JDK (javac and java), but not the Android SDK.
+#
+# Usage: benchmark/run.sh [git-revision]
+#
+# With a revision, the CordovaLib classes are taken from that commit instead
+# of the working tree, so two runs give a before/after comparison.
+#
+# BENCHMARK selects the class in src/ to run: BridgeBenchmark (the default)
+# times popAndEncode() on a mix of results, BinaryPayloadBenchmark compares
+# the binary and Base64 encodings of ArrayBuffer results.
+#
+# FORKS sets how many fresh JVMs run the benchmark (default 5), since JIT
+# and GC decisions differ from one JVM to the next. When the benchmark ends
+# with a "result <ns/msg> <B/msg>" line, the spread of those lines over the
+# forks is printed last.
+
+set -e
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+LIB_DIR=$(dirname "$BENCH_DIR")
+BENCHMARK=${BENCHMARK:-BridgeBenchmark}
+FORKS=${FORKS:-5}
+CLASSES="NativeToJsMessageQueue PluginResult LOG NativeToJsFlushScheduler"
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+mkdir -p "$WORK/src/org/apache/cordova" "$WORK/out"
+
+for CLASS in $CLASSES; do
+    if [ -n "$1" ]; then
+        # Older revisions may not have every class; skip the missing ones.
+        (cd "$LIB_DIR" && git show "$1:./src/org/apache/cordova/$CLASS.java") \
+            > "$WORK/src/org/apache/cordova/$CLASS.java" 2>/dev/null \
+            || rm -f "$WORK/src/org/apache/cordova/$CLASS.java"
+    else
+        cp "$LIB_DIR/src/org/apache/cordova/$CLASS.java" "$WORK/src/org/apache/cordova/"
+    fi
+done
+
+javac -nowarn -d "$WORK/out" \
+    "$BENCH_DIR/src/org/apache/cordova/$BENCHMARK.java" \
+    $(find "$BENCH_DIR/stubs" "$WORK/src" -name '*.java')
+FORK=1
+while [ "$FORK" -le "$FORKS" ]; do
+    echo "fork $FORK of $FORKS"
+    java -cp "$WORK/out" "org.apache.cordova.$BENCHMARK" | tee -a "$WORK/log"
+    FORK=$((FORK + 1))
+done
+
+grep '^result ' "$WORK/log" | awk '
+    { ns[NR] = $2; b[NR] = $3 }
+    function spread(v, n,    i, j, t) {
+        for (i = 2; i <= n; i++)
+            for (j = i; j > 1 && v[j - 1] > v[j]; j--) { t = v[j]; v[j] = v[j - 1]; v[j - 1] = t }
+        return sprintf("min %.1f, median %.1f, max %.1f", v[1],
+                n % 2 ? v[(n + 1) / 2] : (v[n / 2] + v[n / 2 + 1]) / 2, v[n])
+    }
+    END {
+        if (NR == 0) exit
+        print "over " NR " forks:"
+        print "  ns/msg " spread(ns, NR)
+        print "  B/msg " spread(b, NR)
+    }'
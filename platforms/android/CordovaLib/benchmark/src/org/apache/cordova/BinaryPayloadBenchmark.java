@@ -0,0 +1,122 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares how ArrayBuffer results travel with and without BinaryBridgeMode:
+ * the 'B' payload against the Base64 'A' payload. See run.sh.
+ *
+ * For each payload it reports the length in chars, the size once converted
+ * to UTF-8 (as a string crosses into the WebView), whether every char fits
+ * in one byte (so V8 can keep a one-byte string), and the encode time. The
+ * 'B' payloads are also decoded the way cordova.js does and checked against
+ * the input. Payloads with many 0x00 and 0x01 bytes fall back to 'A' in both
+ * modes.
+ */
+public class BinaryPayloadBenchmark {
+    // Bytes encoded per round, so small and large payloads take similar time.
+    private static final int BYTES_PER_ROUND = 16 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) {
+        NativeToJsMessageQueue queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        queue.addBridgeMode(new NativeToJsMessageQueue.BinaryBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode()));
+
+        Random random = new Random(42);
+        byte[] notification = new byte[20];
+        random.nextBytes(notification);
+        byte[] randomData = new byte[64 * 1024];
+        random.nextBytes(randomData);
+        byte[] text = new byte[64 * 1024];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) (' ' + random.nextInt(95));
+        }
+        // Little-endian 16-bit values under 256, so every other byte is 0x00.
+        byte[] shorts = new byte[64 * 1024];
+        for (int i = 0; i < shorts.length; i += 2) {
+            shorts[i] = (byte) random.nextInt(256);
+        }
+        byte[] zeros = new byte[64 * 1024];
+
+        measure(queue, "20 random bytes", notification);
+        measure(queue, "64K random bytes", randomData);
+        measure(queue, "64K ASCII bytes", text);
+        measure(queue, "64K 16-bit values under 256", shorts);
+        measure(queue, "64K zero bytes", zeros);
+    }
+
+    private static void measure(NativeToJsMessageQueue queue, String name, byte[] data) {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+        int iterations = Math.max(1, BYTES_PER_ROUND / data.length);
+        System.out.println(name + ":");
+        for (int mode = 0; mode < 2; mode++) {
+            queue.setBridgeMode(mode);
+            String payload = payloadOf(queue, result);
+            if (payload.charAt(0) == 'B' && !Arrays.equals(decode(payload), data)) {
+                throw new AssertionError("'B' payload does not decode to the input");
+            }
+            boolean oneByte = true;
+            for (int i = 0; i < payload.length(); i++) {
+                oneByte &= payload.charAt(i) <= 0xFF;
+            }
+            long nanos = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    // A new result each time, since PluginResult caches its Base64 string.
+                    queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), "cb");
+                    queue.popAndEncode(false);
+                }
+                nanos = System.nanoTime() - start;
+            }
+            System.out.printf("  '%c': %.2f chars/byte, %.2f UTF-8 bytes/byte, one-byte string: %b, %.0f ns/result%n",
+                    payload.charAt(0), (payload.length() - 1) / (double) data.length,
+                    (payload.substring(1).getBytes(UTF_8).length) / (double) data.length,
+                    oneByte, nanos / (double) iterations);
+        }
+    }
+
+    // Returns the payload of the single result in the queue, starting with its
+    // kind character.
+    private static String payloadOf(NativeToJsMessageQueue queue, PluginResult result) {
+        queue.addPluginResult(result, "cb");
+        String message = queue.popAndEncode(false);
+        return message.substring(message.indexOf(" cb ") + 4);
+    }
+
+    // Same as binaryPayloadToArrayBuffer() in cordova.js.
+    private static byte[] decode(String message) {
+        byte[] bytes = new byte[message.length() - 1];
+        int length = 0;
+        for (int i = 1; i < message.length(); i++) {
+            int c = message.charAt(i);
+            if (c == 1) {
+                c = message.charAt(++i) - 1;
+            }
+            bytes[length++] = (byte) c;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+}
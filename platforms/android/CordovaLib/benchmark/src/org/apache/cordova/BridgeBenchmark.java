@@ -0,0 +1,101 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Measures how long NativeToJsMessageQueue.popAndEncode() takes per message
+ * and how much it allocates, on a desktop JVM. See run.sh.
+ *
+ * Each iteration queues a batch of plugin results and pops them in one
+ * flush, the way a bridge mode does. Allocations made while queueing are
+ * subtracted, so the B/msg figure covers only the encode.
+ *
+ * The warmup rounds let the JIT settle and are not reported. The measured
+ * rounds are printed one by one, then summed up as min/median/max. The
+ * last line starts with "result" so run.sh can combine several forks.
+ */
+public class BridgeBenchmark {
+    private static final int BATCH = 8;
+    private static final int ITERATIONS = 200000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        NativeToJsMessageQueue queue = new NativeToJsMessageQueue();
+        queue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
+        queue.setBridgeMode(0);
+
+        PluginResult[] results = new PluginResult[BATCH];
+        String[] callbackIds = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            results[i] = i % 2 == 0
+                    ? new PluginResult(PluginResult.Status.OK, "value " + i)
+                    : new PluginResult(PluginResult.Status.OK, 12345 + i);
+            results[i].setKeepCallback(true);
+            callbackIds[i] = "Plugin" + i;
+        }
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long messages = (long) ITERATIONS * BATCH;
+        double[] nanosPerMessage = new double[ROUNDS];
+        double[] bytesPerMessage = new double[ROUNDS];
+
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            long chars = 0;
+            long queueBytes = 0;
+            long startBytes = mx.getThreadAllocatedBytes(thread);
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                long before = mx.getThreadAllocatedBytes(thread);
+                for (int j = 0; j < BATCH; j++) {
+                    queue.addPluginResult(results[j], callbackIds[j]);
+                }
+                queueBytes += mx.getThreadAllocatedBytes(thread) - before;
+                chars += queue.popAndEncode(false).length();
+            }
+            long nanos = System.nanoTime() - startNanos;
+            long encodeBytes = mx.getThreadAllocatedBytes(thread) - startBytes - queueBytes;
+            if (round < 0) {
+                continue;
+            }
+            nanosPerMessage[round] = nanos / (double) messages;
+            bytesPerMessage[round] = encodeBytes / (double) messages;
+            System.out.printf("round %d: %.1f ns/msg, %.1f B/msg allocated by encode, %.1f chars/msg%n",
+                    round, nanosPerMessage[round], bytesPerMessage[round], chars / (double) messages);
+        }
+
+        Arrays.sort(nanosPerMessage);
+        Arrays.sort(bytesPerMessage);
+        System.out.printf("ns/msg min %.1f, median %.1f, max %.1f%n",
+                nanosPerMessage[0], median(nanosPerMessage), nanosPerMessage[ROUNDS - 1]);
+        System.out.printf("B/msg min %.1f, median %.1f, max %.1f%n",
+                bytesPerMessage[0], median(bytesPerMessage), bytesPerMessage[ROUNDS - 1]);
+        System.out.printf("result %.1f %.1f%n", median(nanosPerMessage), median(bytesPerMessage));
+    }
+
+    private static double median(double[] sorted) {
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+}
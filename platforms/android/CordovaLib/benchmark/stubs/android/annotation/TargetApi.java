@@ -0,0 +1,6 @@
+package android.annotation;
+
+/** Benchmark stand-in for the Android annotation. */
+public @interface TargetApi {
+    int value();
+}
@@ -0,0 +1,6 @@
+package android.app;
+
+/** Benchmark stand-in for the Android class. Never runs anything. */
+public class Activity {
+    public final void runOnUiThread(Runnable action) {}
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/** Benchmark stand-in for the Android class. */
+public final class Build {
+    public static final class VERSION {
+        public static final int SDK_INT = 0;
+    }
+    public static final class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+    }
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+/** Benchmark stand-in for the Android class. Never runs anything. */
+public class Handler {
+    public Handler(Looper looper) {}
+    public final boolean post(Runnable r) { return true; }
+    public final boolean postAtTime(Runnable r, long uptimeMillis) { return true; }
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+/** Benchmark stand-in for the Android class. */
+public final class Looper {
+    public static Looper getMainLooper() { return null; }
+    public static Looper myLooper() { return null; }
+}
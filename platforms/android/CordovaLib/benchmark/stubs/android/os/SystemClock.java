@@ -0,0 +1,6 @@
+package android.os;
+
+/** Benchmark stand-in for the Android class. */
+public final class SystemClock {
+    public static long uptimeMillis() { return System.nanoTime() / 1000000; }
+}
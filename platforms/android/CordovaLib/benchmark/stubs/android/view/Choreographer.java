@@ -0,0 +1,10 @@
+package android.view;
+
+/** Benchmark stand-in for the Android class. */
+public final class Choreographer {
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+    public static Choreographer getInstance() { return new Choreographer(); }
+    public void postFrameCallback(FrameCallback callback) {}
+}
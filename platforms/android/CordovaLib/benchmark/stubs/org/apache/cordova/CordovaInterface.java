@@ -0,0 +1,8 @@
+package org.apache.cordova;
+
+import android.app.Activity;
+
+/** Benchmark stand-in: only referenced by bridge modes the benchmark doesn't use. */
+public interface CordovaInterface {
+    Activity getActivity();
+}
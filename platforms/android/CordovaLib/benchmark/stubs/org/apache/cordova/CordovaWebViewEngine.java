@@ -0,0 +1,6 @@
+package org.apache.cordova;
+
+/** Benchmark stand-in: only referenced by bridge modes the benchmark doesn't use. */
+public interface CordovaWebViewEngine {
+    void loadUrl(String url, boolean clearNavigationStack);
+}
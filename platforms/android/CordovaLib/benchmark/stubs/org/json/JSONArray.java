@@ -0,0 +1,5 @@
+package org.json;
+
+/** Benchmark stand-in for the Android class. Only what PluginResult uses. */
+public class JSONArray {
+}
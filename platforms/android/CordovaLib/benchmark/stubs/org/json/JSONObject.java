@@ -0,0 +1,16 @@
+package org.json;
+
+/** Benchmark stand-in for the Android class. Only what PluginResult uses. */
+public class JSONObject {
+    public static String quote(String string) {
+        StringBuilder sb = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.cordova;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -66,6 +67,8 @@ public class ConfigXmlParser {
     boolean insideFeature = false;
     String service = "", pluginClass = "", paramType = "";
     boolean onload = false;
+    PluginEntry.ExecPolicy execPolicy = null;
+    HashMap<String, PluginEntry.ExecPolicy> actionExecPolicies = null;
 
     public void parse(XmlPullParser xml) {
         int eventType = -1;
@@ -104,6 +107,8 @@ public class ConfigXmlParser {
                 pluginClass = xml.getAttributeValue(null,"value");
             else if (paramType.equals("onload"))
                 onload = "true".equals(xml.getAttributeValue(null, "value"));
+            else if (paramType.equals("android-exec") || paramType.startsWith("android-exec:"))
+                setExecPolicy(paramType, xml.getAttributeValue(null, "value"));
         }
         else if (strNode.equals("preference")) {
             String name = xml.getAttributeValue(null, "name").toLowerCase(Locale.ENGLISH);
@@ -121,12 +126,36 @@ public class ConfigXmlParser {
     public void handleEndTag(XmlPullParser xml) {
         String strNode = xml.getName();
         if (strNode.equals("feature")) {
-            pluginEntries.add(new PluginEntry(service, pluginClass, onload));
+            pluginEntries.add(new PluginEntry(service, pluginClass, onload, execPolicy, actionExecPolicies));
 
             service = "";
             pluginClass = "";
             insideFeature = false;
             onload = false;
+            execPolicy = null;
+            actionExecPolicies = null;
+        }
+    }
+
+    /**
+     * Handles <param name="android-exec" value="inline|serial|pool"/>, which
+     * sets where exec() runs the plugin's actions, and
+     * <param name="android-exec:action" .../>, which sets it for one action.
+     */
+    private void setExecPolicy(String paramType, String value) {
+        PluginEntry.ExecPolicy policy = PluginEntry.ExecPolicy.parse(value);
+        if (policy == null) {
+            LOG.w(TAG, "Ignoring unknown " + paramType + " value \"" + value + "\" of " + service);
+            return;
+        }
+        int colon = paramType.indexOf(':');
+        if (colon < 0) {
+            execPolicy = policy;
+        } else {
+            if (actionExecPolicies == null) {
+                actionExecPolicies = new HashMap<String, PluginEntry.ExecPolicy>();
+            }
+            actionExecPolicies.put(paramType.substring(colon + 1), policy);
         }
     }
 
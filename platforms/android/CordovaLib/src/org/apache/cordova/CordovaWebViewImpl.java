@@ -103,7 +103,8 @@ public class CordovaWebViewImpl implements CordovaWebView {
         resourceApi = new CordovaResourceApi(engine.getView().getContext(), pluginManager);
         nativeToJsMessageQueue = new NativeToJsMessageQueue();
         nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.NoOpBridgeMode());
-        nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.LoadUrlBridgeMode(engine, cordova));
+        int flushInterval = preferences.getInteger(NativeToJsFlushScheduler.PREFERENCE, NativeToJsFlushScheduler.FLUSH_ON_FRAME);
+        nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.LoadUrlBridgeMode(engine, cordova, flushInterval));
 
         if (preferences.getBoolean("DisallowOverscroll", false)) {
             engine.getView().setOverScrollMode(View.OVER_SCROLL_NEVER);
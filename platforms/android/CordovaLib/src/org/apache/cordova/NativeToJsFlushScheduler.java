@@ -0,0 +1,145 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Decides when a bridge mode hands queued messages to the WebView.
+ *
+ * Instead of waking the UI thread for every message, a flush runs at the next
+ * display frame, or at most once per interval, and delivers everything that
+ * arrived since the previous flush in one crossing. Requests made while a
+ * flush is pending are folded into it.
+ *
+ * The interval comes from the "BridgeFlushInterval" preference in config.xml:
+ * FLUSH_ON_FRAME (0, the default) aligns flushes to Choreographer frames,
+ * FLUSH_IMMEDIATELY (-1) flushes as soon as the UI thread gets to it, and a
+ * positive value is the minimum number of milliseconds between flushes.
+ */
+public class NativeToJsFlushScheduler {
+    public static final String PREFERENCE = "BridgeFlushInterval";
+    public static final int FLUSH_IMMEDIATELY = -1;
+    public static final int FLUSH_ON_FRAME = 0;
+
+    // Frame length assumed when Choreographer is not available (before API 16).
+    private static final long FALLBACK_FRAME_INTERVAL = 16;
+
+    private final int interval;
+    private final Runnable flush;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final FrameFlusher frameFlusher;
+
+    // Uptime of the last flush. Only accessed on the UI thread.
+    private long lastFlush;
+
+    private final Runnable runFlush = new Runnable() {
+        public void run() {
+            runFlush();
+        }
+    };
+
+    /**
+     * @param interval FLUSH_ON_FRAME, FLUSH_IMMEDIATELY or a minimum number of
+     *     milliseconds between flushes
+     * @param flush run on the UI thread to deliver the queued messages
+     */
+    public NativeToJsFlushScheduler(int interval, Runnable flush) {
+        this.interval = interval < 0 ? FLUSH_IMMEDIATELY : interval;
+        this.flush = flush;
+        frameFlusher = (this.interval == FLUSH_ON_FRAME && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                ? new FrameFlusher() : null;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Requests a flush. Does nothing if one is already pending. May be called
+     * from any thread.
+     */
+    public void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (interval == FLUSH_IMMEDIATELY) {
+            handler.post(runFlush);
+        } else if (frameFlusher != null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                frameFlusher.post();
+            } else {
+                // Choreographer.getInstance() belongs to the calling thread's looper.
+                handler.post(frameFlusher);
+            }
+        } else {
+            handler.post(new Runnable() {
+                public void run() {
+                    scheduleAfterInterval();
+                }
+            });
+        }
+    }
+
+    // On the UI thread. Flushes now if the interval has passed since the last
+    // flush, so an idle bridge doesn't add latency to the first message.
+    private void scheduleAfterInterval() {
+        long minInterval = interval == FLUSH_ON_FRAME ? FALLBACK_FRAME_INTERVAL : interval;
+        long when = lastFlush + minInterval;
+        if (when <= SystemClock.uptimeMillis()) {
+            runFlush();
+        } else {
+            handler.postAtTime(runFlush, when);
+        }
+    }
+
+    // On the UI thread.
+    private void runFlush() {
+        // Cleared first, so messages added during the flush schedule another.
+        if (!scheduled.getAndSet(false)) {
+            return;
+        }
+        lastFlush = SystemClock.uptimeMillis();
+        flush.run();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameFlusher implements Runnable, Choreographer.FrameCallback {
+        // Called on the UI thread.
+        public void run() {
+            post();
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            runFlush();
+        }
+    }
+}
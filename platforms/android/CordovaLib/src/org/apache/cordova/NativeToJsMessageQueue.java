@@ -19,12 +19,23 @@
 package org.apache.cordova;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import android.util.Log;
 
 /**
  * Holds the list of messages to be sent to the WebView.
+ *
+ * Plugins add messages from many threads while one bridge thread at a time
+ * pops them, so producers never take a lock: a message is pushed onto a
+ * lock-free stack with a single compare-and-set. The popping thread takes the
+ * whole stack in one swap, restores its order, and encodes from that snapshot
+ * while producers keep pushing.
  */
 public class NativeToJsMessageQueue {
     private static final String LOG_TAG = "JsMessageQueue";
@@ -42,17 +53,85 @@ public class NativeToJsMessageQueue {
     // This currently only chops up on message boundaries. It may be useful
     // to allow it to break up messages.
     private static int MAX_PAYLOAD_SIZE = 50 * 1024 * 10240;
+
+    // Largest encode buffer kept for the next pop. A bigger one is dropped
+    // after use, so one huge payload doesn't pin its memory.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    // Marks an escaped byte in a binary payload, see BinaryBridgeMode.
+    private static final int BINARY_ESCAPE = 0x01;
+
+    // Chars converted at a time when appending a binary payload.
+    private static final int BINARY_CHUNK_SIZE = 1024;
     
     /**
      * When true, the active listener is not fired upon enqueue. When set to false,
      * the active listener will be fired if the queue is non-empty. 
      */
-    private boolean paused;
+    private volatile boolean paused;
     
     /**
-     * The list of JavaScript statements to be sent to JavaScript.
+     * Messages added since the last pop, newest first, linked through
+     * JsMessage.next. Producers push with a compare-and-set.
+     */
+    private final AtomicReference<JsMessage> incoming = new AtomicReference<JsMessage>();
+
+    /**
+     * Messages taken from incoming but not sent yet, oldest first. Only
+     * accessed while holding popLock.
+     */
+    private JsMessage pendingHead;
+    private JsMessage pendingTail;
+
+    /**
+     * Serializes the threads that pop messages. Producers never take it.
+     */
+    private final Object popLock = new Object();
+
+    /**
+     * Reused by every pop, so a pop allocates only the returned String.
+     * Only accessed while holding popLock.
      */
-    private final LinkedList<JsMessage> queue = new LinkedList<JsMessage>();
+    private StringBuilder encodeBuffer = new StringBuilder(1024);
+
+    /**
+     * Where binary payloads are converted to chars before being appended
+     * to the encode buffer. Only accessed while holding popLock.
+     */
+    private final char[] binaryChunk = new char[BINARY_CHUNK_SIZE];
+
+    /**
+     * Number of messages added and not yet sent or dropped.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Set when the bridge mode has been told about new messages and hasn't
+     * popped them yet, so it is told once per pop instead of once per message.
+     */
+    private final AtomicBoolean notifyPending = new AtomicBoolean();
+
+    /**
+     * Queued latestOnly results that a newer one for the same callbackId may
+     * replace. Only a callback's last queued message is in here, so replacing
+     * it never reorders the results of a callback.
+     */
+    private final ConcurrentHashMap<String, JsMessage> replaceableMessages = new ConcurrentHashMap<String, JsMessage>();
+
+    /**
+     * Number of latestOnly results replaced before they were sent.
+     */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Totals of the pops that sent messages. Only accessed while holding popLock.
+     */
+    private long flushCount;
+    private long flushedMessages;
+    private long flushedChars;
+    private int maxMessagesPerFlush;
+    private int lastFlushMessages;
+    private int lastFlushChars;
 
     /**
      * The array of listeners that can be used to send messages to JS.
@@ -64,7 +143,15 @@ public class NativeToJsMessageQueue {
      * When disabled, all callbacks are dropped since they are assumed to be
      * relevant to the previous page.
      */
-    private BridgeMode activeBridgeMode;
+    private volatile BridgeMode activeBridgeMode;
+
+    /**
+     * Incremented by reset(), after the bridge is disabled. A producer reads it
+     * before checking activeBridgeMode, so a message that passed the check
+     * before a reset but was pushed after it carries an old generation, and is
+     * dropped when taken. Only written while holding popLock.
+     */
+    private volatile int generation;
 
     public void addBridgeMode(BridgeMode bridgeMode) {
         bridgeModes.add(bridgeMode);
@@ -75,7 +162,66 @@ public class NativeToJsMessageQueue {
     }
 
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return size.get() <= 0;
+    }
+
+    /**
+     * Returns how many latestOnly plugin results were replaced by newer ones
+     * before being sent.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Message counts and payload sizes of the batches sent to JS so far.
+     */
+    public static final class FlushStats {
+        public final long flushes;
+        public final long messages;
+        /** Payload length in chars, as handed to the WebView. */
+        public final long chars;
+        public final int maxMessagesPerFlush;
+        public final int lastFlushMessages;
+        public final int lastFlushChars;
+
+        FlushStats(long flushes, long messages, long chars, int maxMessagesPerFlush,
+                int lastFlushMessages, int lastFlushChars) {
+            this.flushes = flushes;
+            this.messages = messages;
+            this.chars = chars;
+            this.maxMessagesPerFlush = maxMessagesPerFlush;
+            this.lastFlushMessages = lastFlushMessages;
+            this.lastFlushChars = lastFlushChars;
+        }
+
+        @Override
+        public String toString() {
+            return "flushes=" + flushes + " messages=" + messages + " chars=" + chars
+                    + " maxMessagesPerFlush=" + maxMessagesPerFlush;
+        }
+    }
+
+    public FlushStats getFlushStats() {
+        synchronized (popLock) {
+            return new FlushStats(flushCount, flushedMessages, flushedChars, maxMessagesPerFlush,
+                    lastFlushMessages, lastFlushChars);
+        }
+    }
+
+    /**
+     * Must hold popLock.
+     */
+    private void recordFlush(int messages, int chars) {
+        flushCount++;
+        flushedMessages += messages;
+        flushedChars += chars;
+        maxMessagesPerFlush = Math.max(maxMessagesPerFlush, messages);
+        lastFlushMessages = messages;
+        lastFlushChars = chars;
+        if (LOG.isLoggable(LOG.VERBOSE)) {
+            LOG.v(LOG_TAG, "Flushed " + messages + " messages, " + chars + " chars");
+        }
     }
 
     /**
@@ -92,9 +238,9 @@ public class NativeToJsMessageQueue {
                     activeBridgeMode = newMode;
                     if (newMode != null) {
                         newMode.reset();
-                        if (!paused && !queue.isEmpty()) {
-                            newMode.onNativeToJsMessageAvailable(this);
-                        }
+                        // The new mode hasn't been told about queued messages yet.
+                        notifyPending.set(false);
+                        notifyIfPending();
                     }
                 }
             }
@@ -105,23 +251,129 @@ public class NativeToJsMessageQueue {
      * Clears all messages and resets to the default bridge mode.
      */
     public void reset() {
-        synchronized (this) {
-            queue.clear();
+        synchronized (popLock) {
             setBridgeMode(-1);
+            generation++;
+            takeIncoming();
+            int dropped = 0;
+            for (JsMessage message = pendingHead; message != null; message = message.next) {
+                dropped++;
+            }
+            pendingHead = pendingTail = null;
+            size.addAndGet(-dropped);
+            replaceableMessages.clear();
+            notifyPending.set(false);
+        }
+    }
+
+    /**
+     * Moves the messages pushed since the last call onto the end of the pending
+     * list, oldest first, and seals them so that their results no longer change.
+     * Messages from before the last reset() are dropped. Must hold popLock.
+     */
+    private void takeIncoming() {
+        JsMessage newest = incoming.getAndSet(null);
+        int currentGeneration = generation;
+        JsMessage oldest = null;
+        JsMessage last = null;
+        int dropped = 0;
+        while (newest != null) {
+            JsMessage next = newest.next;
+            if (newest.generation != currentGeneration) {
+                if (newest.seal() && newest.replaceable) {
+                    replaceableMessages.remove(newest.jsPayloadOrCallbackId, newest);
+                }
+                dropped++;
+            } else {
+                newest.next = oldest;
+                oldest = newest;
+                if (last == null) {
+                    last = newest;
+                }
+            }
+            newest = next;
+        }
+        if (dropped > 0) {
+            Log.d(LOG_TAG, "Dropping " + dropped + " Native->JS messages queued before the bridge was reset");
+            size.addAndGet(-dropped);
+        }
+        if (oldest == null) {
+            return;
         }
+        for (JsMessage message = oldest; message != null; message = message.next) {
+            if (message.seal() && message.replaceable) {
+                replaceableMessages.remove(message.jsPayloadOrCallbackId, message);
+            }
+        }
+        if (pendingTail == null) {
+            pendingHead = oldest;
+        } else {
+            pendingTail.next = oldest;
+        }
+        pendingTail = last;
+    }
+
+    /**
+     * Removes the first message of the pending list. Must hold popLock.
+     */
+    private JsMessage removeFirstPending() {
+        JsMessage message = pendingHead;
+        pendingHead = message.next;
+        if (pendingHead == null) {
+            pendingTail = null;
+        }
+        message.next = null;
+        size.decrementAndGet();
+        return message;
+    }
+
+    private int calculatePackedMessageLength(JsMessage message, boolean binary) {
+        int messageLen = message.calculateEncodedLength(binary);
+        return digitCount(messageLen) + messageLen + 1;
     }
 
-    private int calculatePackedMessageLength(JsMessage message) {
-        int messageLen = message.calculateEncodedLength();
-        String messageLenStr = String.valueOf(messageLen);
-        return messageLenStr.length() + messageLen + 1;        
+    /**
+     * Number of chars of a non-negative int in decimal, without formatting it.
+     */
+    static int digitCount(int value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the emptied encode buffer, with room for at least capacity chars.
+     * Must hold popLock.
+     */
+    private StringBuilder takeEncodeBuffer(int capacity) {
+        StringBuilder sb = encodeBuffer;
+        sb.setLength(0);
+        sb.ensureCapacity(capacity);
+        return sb;
+    }
+
+    /**
+     * Copies out the encoded payload, and drops the buffer if it grew too big
+     * to keep. Must hold popLock.
+     */
+    private String finishEncode(StringBuilder sb) {
+        String ret = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            encodeBuffer = new StringBuilder(1024);
+        } else {
+            sb.setLength(0);
+        }
+        return ret;
     }
     
-    private void packMessage(JsMessage message, StringBuilder sb) {
-        int len = message.calculateEncodedLength();
+    private void packMessage(JsMessage message, StringBuilder sb, boolean binary) {
+        int len = message.calculateEncodedLength(binary);
         sb.append(len)
           .append(' ');
-        message.encodeAsMessage(sb);
+        message.encodeAsMessage(sb, binary ? binaryChunk : null);
     }
     
     /**
@@ -130,18 +382,23 @@ public class NativeToJsMessageQueue {
      * Returns null if the queue is empty.
      */
     public String popAndEncode(boolean fromOnlineEvent) {
-        synchronized (this) {
-            if (activeBridgeMode == null) {
+        synchronized (popLock) {
+            BridgeMode bridgeMode = activeBridgeMode;
+            if (bridgeMode == null) {
                 return null;
             }
-            activeBridgeMode.notifyOfFlush(this, fromOnlineEvent);
-            if (queue.isEmpty()) {
+            bridgeMode.notifyOfFlush(this, fromOnlineEvent);
+            // Messages pushed from here on need a new notification.
+            notifyPending.set(false);
+            takeIncoming();
+            if (pendingHead == null) {
                 return null;
             }
+            boolean binary = bridgeMode.acceptsBinaryPayloads();
             int totalPayloadLen = 0;
             int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = calculatePackedMessageLength(message);
+            for (JsMessage message = pendingHead; message != null; message = message.next) {
+                int messageSize = calculatePackedMessageLength(message, binary);
                 if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
                     break;
                 }
@@ -149,17 +406,17 @@ public class NativeToJsMessageQueue {
                 numMessagesToSend += 1;
             }
 
-            StringBuilder sb = new StringBuilder(totalPayloadLen);
+            StringBuilder sb = takeEncodeBuffer(totalPayloadLen + 1);
             for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
-                packMessage(message, sb);
+                packMessage(removeFirstPending(), sb, binary);
             }
             
-            if (!queue.isEmpty()) {
+            if (pendingHead != null) {
                 // Attach a char to indicate that there are more messages pending.
                 sb.append('*');
             }
-            String ret = sb.toString();
+            String ret = finishEncode(sb);
+            recordFlush(numMessagesToSend, ret.length());
             return ret;
         }
     }
@@ -168,27 +425,29 @@ public class NativeToJsMessageQueue {
      * Same as popAndEncode(), except encodes in a form that can be executed as JS.
      */
     public String popAndEncodeAsJs() {
-        synchronized (this) {
-            int length = queue.size();
-            if (length == 0) {
+        synchronized (popLock) {
+            notifyPending.set(false);
+            takeIncoming();
+            if (pendingHead == null) {
                 return null;
             }
             int totalPayloadLen = 0;
             int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = message.calculateEncodedLength() + 50; // overestimate.
+            boolean willSendAllMessages = true;
+            for (JsMessage message = pendingHead; message != null; message = message.next) {
+                int messageSize = message.calculateEncodedLength(false) + 50; // overestimate.
                 if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
+                    willSendAllMessages = false;
                     break;
                 }
                 totalPayloadLen += messageSize;
                 numMessagesToSend += 1;
             }
-            boolean willSendAllMessages = numMessagesToSend == queue.size();
-            StringBuilder sb = new StringBuilder(totalPayloadLen + (willSendAllMessages ? 0 : 100));
+            StringBuilder sb = takeEncodeBuffer(totalPayloadLen + (willSendAllMessages ? 0 : 100));
             // Wrap each statement in a try/finally so that if one throws it does 
             // not affect the next.
             for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
+                JsMessage message = removeFirstPending();
                 if (willSendAllMessages && (i + 1 == numMessagesToSend)) {
                     message.encodeAsJsMessage(sb);
                 } else {
@@ -203,7 +462,8 @@ public class NativeToJsMessageQueue {
             for (int i = willSendAllMessages ? 1 : 0; i < numMessagesToSend; ++i) {
                 sb.append('}');
             }
-            String ret = sb.toString();
+            String ret = finishEncode(sb);
+            recordFlush(numMessagesToSend, ret.length());
             return ret;
         }
     }   
@@ -230,9 +490,14 @@ public class NativeToJsMessageQueue {
         if (noResult && keepCallback) {
             return;
         }
-        JsMessage message = new JsMessage(result, callbackId);
+        boolean replaceable = keepCallback && result.isLatestOnly() && !FORCE_ENCODE_USING_EVAL;
+        if (replaceable && replacePending(result, callbackId)) {
+            return;
+        }
+        JsMessage message = new JsMessage(result, callbackId, replaceable);
         if (FORCE_ENCODE_USING_EVAL) {
-            StringBuilder sb = new StringBuilder(message.calculateEncodedLength() + 50);
+            message.seal();
+            StringBuilder sb = new StringBuilder(message.calculateEncodedLength(false) + 50);
             message.encodeAsJsMessage(sb);
             message = new JsMessage(sb.toString());
         }
@@ -240,16 +505,55 @@ public class NativeToJsMessageQueue {
         enqueueMessage(message);
     }
 
+    /**
+     * Replaces the queued result of the callback with a newer one, if the
+     * queued one is replaceable and hasn't been taken for sending yet. The
+     * message keeps its place in the queue.
+     */
+    private boolean replacePending(PluginResult result, String callbackId) {
+        JsMessage pending = replaceableMessages.get(callbackId);
+        // A message from before a reset() is dropped, and must not take a newer page's result with it.
+        if (pending == null || pending.generation != generation || !pending.replacePluginResult(result)) {
+            return false;
+        }
+        coalescedCount.incrementAndGet();
+        return true;
+    }
+
     private void enqueueMessage(JsMessage message) {
-        synchronized (this) {
-            if (activeBridgeMode == null) {
-                Log.d(LOG_TAG, "Dropping Native->JS message due to disabled bridge");
-                return;
-            }
-            queue.add(message);
-            if (!paused) {
-                activeBridgeMode.onNativeToJsMessageAvailable(this);
-            }
+        // Read before the check, see generation.
+        message.generation = generation;
+        if (activeBridgeMode == null) {
+            Log.d(LOG_TAG, "Dropping Native->JS message due to disabled bridge");
+            return;
+        }
+        if (message.replaceable) {
+            // Registered before it can be popped, so that popping always unregisters it.
+            replaceableMessages.put(message.jsPayloadOrCallbackId, message);
+        } else if (message.hasPluginResult && !replaceableMessages.isEmpty()) {
+            // A later result must not be overtaken by one replacing an earlier result.
+            replaceableMessages.remove(message.jsPayloadOrCallbackId);
+        }
+        size.incrementAndGet();
+        JsMessage head;
+        do {
+            head = incoming.get();
+            message.next = head;
+        } while (!incoming.compareAndSet(head, message));
+
+        if (!paused) {
+            notifyIfPending();
+        }
+    }
+
+    /**
+     * Tells the active bridge mode that messages are available, unless it
+     * was already told and hasn't popped them yet.
+     */
+    private void notifyIfPending() {
+        BridgeMode bridgeMode = activeBridgeMode;
+        if (bridgeMode != null && !isEmpty() && notifyPending.compareAndSet(false, true)) {
+            bridgeMode.onNativeToJsMessageAvailable(this);
         }
     }
 
@@ -261,11 +565,7 @@ public class NativeToJsMessageQueue {
         }
         paused = value;
         if (!value) {
-            synchronized (this) {
-                if (!queue.isEmpty() && activeBridgeMode != null) {
-                    activeBridgeMode.onNativeToJsMessageAvailable(this);
-                }
-            }   
+            notifyIfPending();
         }
     }
 
@@ -273,6 +573,11 @@ public class NativeToJsMessageQueue {
         public abstract void onNativeToJsMessageAvailable(NativeToJsMessageQueue queue);
         public void notifyOfFlush(NativeToJsMessageQueue queue, boolean fromOnlineEvent) {}
         public void reset() {}
+        /**
+         * Returns true if the JS side of this mode decodes binary payloads,
+         * so ArrayBuffer results can skip the Base64 encoding.
+         */
+        public boolean acceptsBinaryPayloads() { return false; }
     }
 
     /** Uses JS polls for messages on a timer.. */
@@ -284,16 +589,19 @@ public class NativeToJsMessageQueue {
     /** Uses webView.loadUrl("javascript:") to execute messages. */
     public static class LoadUrlBridgeMode extends BridgeMode {
         private final CordovaWebViewEngine engine;
-        private final CordovaInterface cordova;
+        private final NativeToJsFlushScheduler flushScheduler;
+        private volatile NativeToJsMessageQueue queue;
 
         public LoadUrlBridgeMode(CordovaWebViewEngine engine, CordovaInterface cordova) {
-            this.engine = engine;
-            this.cordova = cordova;
+            this(engine, cordova, NativeToJsFlushScheduler.FLUSH_ON_FRAME);
         }
 
-        @Override
-        public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
-            cordova.getActivity().runOnUiThread(new Runnable() {
+        /**
+         * @param flushInterval see NativeToJsFlushScheduler
+         */
+        public LoadUrlBridgeMode(CordovaWebViewEngine engine, CordovaInterface cordova, int flushInterval) {
+            this.engine = engine;
+            flushScheduler = new NativeToJsFlushScheduler(flushInterval, new Runnable() {
                 public void run() {
                     String js = queue.popAndEncodeAsJs();
                     if (js != null) {
@@ -302,11 +610,19 @@ public class NativeToJsMessageQueue {
                 }
             });
         }
+
+        @Override
+        public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
+            this.queue = queue;
+            flushScheduler.schedule();
+        }
     }
 
     /** Uses online/offline events to tell the JS when to poll for messages. */
     public static class OnlineEventsBridgeMode extends BridgeMode {
         private final OnlineEventsBridgeModeDelegate delegate;
+        private final NativeToJsFlushScheduler flushScheduler;
+        private volatile NativeToJsMessageQueue queue;
         private boolean online;
         private boolean ignoreNextFlush;
 
@@ -316,7 +632,22 @@ public class NativeToJsMessageQueue {
         }
 
         public OnlineEventsBridgeMode(OnlineEventsBridgeModeDelegate delegate) {
+            this(delegate, NativeToJsFlushScheduler.FLUSH_ON_FRAME);
+        }
+
+        /**
+         * @param flushInterval see NativeToJsFlushScheduler
+         */
+        public OnlineEventsBridgeMode(OnlineEventsBridgeModeDelegate delegate, int flushInterval) {
             this.delegate = delegate;
+            flushScheduler = new NativeToJsFlushScheduler(flushInterval, new Runnable() {
+                public void run() {
+                    if (!queue.isEmpty()) {
+                        ignoreNextFlush = false;
+                        OnlineEventsBridgeMode.this.delegate.setNetworkAvailable(online);
+                    }
+                }
+            });
         }
 
         @Override
@@ -333,14 +664,8 @@ public class NativeToJsMessageQueue {
 
         @Override
         public void onNativeToJsMessageAvailable(final NativeToJsMessageQueue queue) {
-            delegate.runOnUiThread(new Runnable() {
-                public void run() {
-                    if (!queue.isEmpty()) {
-                        ignoreNextFlush = false;
-                        delegate.setNetworkAvailable(online);
-                    }
-                }
-            });
+            this.queue = queue;
+            flushScheduler.schedule();
         }
         // Track when online/offline events are fired so that we don't fire excess events.
         @Override
@@ -351,25 +676,111 @@ public class NativeToJsMessageQueue {
         }
     }
 
+    /**
+     * Wraps another bridge mode, and sends ArrayBuffer results as binary
+     * payloads instead of Base64 strings. Each byte becomes the char with the
+     * same code (Latin-1), so the JavaScript engine can keep the payload as a
+     * one-byte string and no decode table is needed. NUL is escaped, since
+     * some WebViews truncate strings at it: BINARY_ESCAPE followed by the
+     * byte plus one stands for a 0x00 or 0x01 byte. A payload with so many
+     * of those bytes that it would be longer than its Base64 form is sent as
+     * Base64 instead.
+     */
+    public static class BinaryBridgeMode extends BridgeMode {
+        private final BridgeMode delegate;
+
+        public BinaryBridgeMode(BridgeMode delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onNativeToJsMessageAvailable(NativeToJsMessageQueue queue) {
+            delegate.onNativeToJsMessageAvailable(queue);
+        }
+
+        @Override
+        public void notifyOfFlush(NativeToJsMessageQueue queue, boolean fromOnlineEvent) {
+            delegate.notifyOfFlush(queue, fromOnlineEvent);
+        }
+
+        @Override
+        public void reset() {
+            delegate.reset();
+        }
+
+        @Override
+        public boolean acceptsBinaryPayloads() {
+            return true;
+        }
+    }
+
     private static class JsMessage {
+        private static final AtomicReferenceFieldUpdater<JsMessage, PluginResult> PENDING_RESULT =
+                AtomicReferenceFieldUpdater.newUpdater(JsMessage.class, PluginResult.class, "pendingResult");
+        // Marks a message whose result can no longer be replaced.
+        private static final PluginResult SEALED = new PluginResult(PluginResult.Status.NO_RESULT);
+
         final String jsPayloadOrCallbackId;
-        final PluginResult pluginResult;
+        final boolean hasPluginResult;
+        // Whether a newer result may replace this one, see PluginResult.setLatestOnly().
+        final boolean replaceable;
+        // The result to send, set by seal(). Only accessed while holding popLock.
+        PluginResult pluginResult;
+        // The latest result until seal() takes it, SEALED afterwards.
+        private volatile PluginResult pendingResult;
+        // The next older message in the incoming stack, or the next message
+        // in the pending list.
+        JsMessage next;
+        // The queue's generation when the message was added.
+        int generation;
+        // Cached result of calculateEncodedLength(), valid when encodedLength >= 0
+        // and the binary flag matches. Only accessed while holding popLock.
+        private int encodedLength = -1;
+        private boolean encodedLengthBinary;
         JsMessage(String js) {
             if (js == null) {
                 throw new NullPointerException();
             }
             jsPayloadOrCallbackId = js;
-            pluginResult = null;
+            hasPluginResult = false;
+            replaceable = false;
         }
-        JsMessage(PluginResult pluginResult, String callbackId) {
+        JsMessage(PluginResult pluginResult, String callbackId, boolean replaceable) {
             if (callbackId == null || pluginResult == null) {
                 throw new NullPointerException();
             }
             jsPayloadOrCallbackId = callbackId;
-            this.pluginResult = pluginResult;
+            hasPluginResult = true;
+            this.replaceable = replaceable;
+            pendingResult = pluginResult;
         }
-        
-        static int calculateEncodedLengthHelper(PluginResult pluginResult) {
+
+        /**
+         * Replaces the result, unless the message has been sealed.
+         */
+        boolean replacePluginResult(PluginResult newResult) {
+            PluginResult current;
+            do {
+                current = pendingResult;
+                if (current == SEALED) {
+                    return false;
+                }
+            } while (!PENDING_RESULT.compareAndSet(this, current, newResult));
+            return true;
+        }
+
+        /**
+         * Fixes the result to send. Returns false if it was already sealed.
+         */
+        boolean seal() {
+            if (!hasPluginResult || pluginResult != null) {
+                return false;
+            }
+            pluginResult = PENDING_RESULT.getAndSet(this, SEALED);
+            return true;
+        }
+
+        static int calculateEncodedLengthHelper(PluginResult pluginResult, boolean binary) {
             switch (pluginResult.getMessageType()) {
                 case PluginResult.MESSAGE_TYPE_BOOLEAN: // f or t
                 case PluginResult.MESSAGE_TYPE_NULL: // N
@@ -381,13 +792,18 @@ public class NativeToJsMessageQueue {
                 case PluginResult.MESSAGE_TYPE_BINARYSTRING:
                     return 1 + pluginResult.getMessage().length();
                 case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
+                    if (binary) {
+                        int length = binaryPayloadLength(pluginResult.getBinaryMessage());
+                        if (length >= 0) {
+                            return 1 + length;
+                        }
+                    }
                     return 1 + pluginResult.getMessage().length();
                 case PluginResult.MESSAGE_TYPE_MULTIPART:
                     int ret = 1;
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
-                        int length = calculateEncodedLengthHelper(pluginResult.getMultipartMessage(i));
-                        int argLength = String.valueOf(length).length();
-                        ret += argLength + 1 + length;
+                        int length = calculateEncodedLengthHelper(pluginResult.getMultipartMessage(i), binary);
+                        ret += digitCount(length) + 1 + length;
                     }
                     return ret;
                 case PluginResult.MESSAGE_TYPE_JSON:
@@ -395,17 +811,66 @@ public class NativeToJsMessageQueue {
                     return pluginResult.getMessage().length();
             }
         }
+
+        /**
+         * Returns the length of the 'B' payload for data, or -1 when the
+         * escapes would make it longer than the Base64 one.
+         */
+        static int binaryPayloadLength(byte[] data) {
+            int limit = 4 * ((data.length + 2) / 3);
+            int length = data.length;
+            for (int i = 0; i < data.length && length <= limit; i++) {
+                if (data[i] == 0 || data[i] == BINARY_ESCAPE) {
+                    length++;
+                }
+            }
+            return length <= limit ? length : -1;
+        }
         
-        int calculateEncodedLength() {
-            if (pluginResult == null) {
-                return jsPayloadOrCallbackId.length() + 1;
+        int calculateEncodedLength(boolean binary) {
+            if (encodedLength >= 0 && encodedLengthBinary == binary) {
+                return encodedLength;
             }
-            int statusLen = String.valueOf(pluginResult.getStatus()).length();
-            int ret = 2 + statusLen + 1 + jsPayloadOrCallbackId.length() + 1;
-            return ret + calculateEncodedLengthHelper(pluginResult);
+            int ret;
+            if (!hasPluginResult) {
+                ret = jsPayloadOrCallbackId.length() + 1;
+            } else {
+                ret = 2 + digitCount(pluginResult.getStatus()) + 1 + jsPayloadOrCallbackId.length() + 1;
+                ret += calculateEncodedLengthHelper(pluginResult, binary);
             }
+            encodedLength = ret;
+            encodedLengthBinary = binary;
+            return ret;
+        }
 
-        static void encodeAsMessageHelper(StringBuilder sb, PluginResult pluginResult) {
+        /**
+         * Appends the 'B' payload of data. The bytes are converted a chunk at
+         * a time, since bulk appends are much faster than appending char by
+         * char.
+         */
+        static void appendBinaryPayload(StringBuilder sb, byte[] data, char[] chunk) {
+            int i = 0;
+            while (i < data.length) {
+                // Each byte takes at most two chars.
+                int end = Math.min(data.length, i + chunk.length / 2);
+                int length = 0;
+                for (; i < end; i++) {
+                    int b = data[i] & 0xFF;
+                    if (b == 0 || b == BINARY_ESCAPE) {
+                        chunk[length++] = (char) BINARY_ESCAPE;
+                        b++;
+                    }
+                    chunk[length++] = (char) b;
+                }
+                sb.append(chunk, 0, length);
+            }
+        }
+
+        /**
+         * Appends the payload of pluginResult. A non-null binaryChunk means the
+         * bridge mode accepts binary payloads, see appendBinaryPayload().
+         */
+        static void encodeAsMessageHelper(StringBuilder sb, PluginResult pluginResult, char[] binaryChunk) {
             switch (pluginResult.getMessageType()) {
                 case PluginResult.MESSAGE_TYPE_BOOLEAN:
                     sb.append(pluginResult.getMessage().charAt(0)); // t or f.
@@ -425,17 +890,22 @@ public class NativeToJsMessageQueue {
                     sb.append('S');
                     sb.append(pluginResult.getMessage());
                     break;                    
-                case PluginResult.MESSAGE_TYPE_ARRAYBUFFER: // A
-                    sb.append('A');
-                    sb.append(pluginResult.getMessage());
+                case PluginResult.MESSAGE_TYPE_ARRAYBUFFER: // A, or B when binary
+                    if (binaryChunk != null && binaryPayloadLength(pluginResult.getBinaryMessage()) >= 0) {
+                        sb.append('B');
+                        appendBinaryPayload(sb, pluginResult.getBinaryMessage(), binaryChunk);
+                    } else {
+                        sb.append('A');
+                        sb.append(pluginResult.getMessage());
+                    }
                     break;
                 case PluginResult.MESSAGE_TYPE_MULTIPART:
                     sb.append('M');
                     for (int i = 0; i < pluginResult.getMultipartMessagesSize(); i++) {
                         PluginResult multipartMessage = pluginResult.getMultipartMessage(i);
-                        sb.append(String.valueOf(calculateEncodedLengthHelper(multipartMessage)));
+                        sb.append(calculateEncodedLengthHelper(multipartMessage, binaryChunk != null));
                         sb.append(' ');
-                        encodeAsMessageHelper(sb, multipartMessage);
+                        encodeAsMessageHelper(sb, multipartMessage, binaryChunk);
                     }
                     break;
                 case PluginResult.MESSAGE_TYPE_JSON:
@@ -444,8 +914,8 @@ public class NativeToJsMessageQueue {
             }
         }
         
-        void encodeAsMessage(StringBuilder sb) {
-            if (pluginResult == null) {
+        void encodeAsMessage(StringBuilder sb, char[] binaryChunk) {
+            if (!hasPluginResult) {
                 sb.append('J')
                   .append(jsPayloadOrCallbackId);
                 return;
@@ -462,11 +932,11 @@ public class NativeToJsMessageQueue {
               .append(jsPayloadOrCallbackId)
               .append(' ');
 
-            encodeAsMessageHelper(sb, pluginResult);
+            encodeAsMessageHelper(sb, pluginResult, binaryChunk);
         }
 
         void encodeAsJsMessage(StringBuilder sb) {
-            if (pluginResult == null) {
+            if (!hasPluginResult) {
                 sb.append(jsPayloadOrCallbackId);
             } else {
                 int status = pluginResult.getStatus();
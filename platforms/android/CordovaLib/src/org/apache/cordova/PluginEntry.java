@@ -18,6 +18,10 @@
  */
 package org.apache.cordova;
 
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
 import org.apache.cordova.CordovaPlugin;
 
 /**
@@ -25,6 +29,32 @@ import org.apache.cordova.CordovaPlugin;
  */
 public final class PluginEntry {
 
+    /**
+     * Where PluginManager.exec() runs the plugin's execute().
+     */
+    public enum ExecPolicy {
+        /** On the JS bridge thread, blocking the calls queued behind it. */
+        INLINE,
+        /** On a thread of the plugin's own, one call at a time, in call order. */
+        SERIAL,
+        /** On CordovaInterface.getThreadPool(), concurrently with other calls. */
+        POOL;
+
+        /**
+         * Parses "inline", "serial" or "pool", or returns null.
+         */
+        public static ExecPolicy parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
     /**
      * The name of the service that this plugin implements
      */
@@ -45,6 +75,16 @@ public final class PluginEntry {
      */
     public final boolean onload;
 
+    /**
+     * Where exec() runs the actions that have no policy of their own.
+     */
+    public final ExecPolicy execPolicy;
+
+    /**
+     * Policies of single actions, overriding execPolicy.
+     */
+    private final Map<String, ExecPolicy> actionExecPolicies;
+
     /**
      * Constructs with a CordovaPlugin already instantiated.
      */
@@ -61,10 +101,36 @@ public final class PluginEntry {
         this(service, pluginClass, onload, null);
     }
 
+    /**
+     * @param service               The name of the service
+     * @param pluginClass           The plugin class name
+     * @param onload                Create plugin object when HTML page is loaded
+     * @param execPolicy            Where exec() runs the plugin's actions
+     * @param actionExecPolicies    Policies of single actions, or null
+     */
+    public PluginEntry(String service, String pluginClass, boolean onload, ExecPolicy execPolicy, Map<String, ExecPolicy> actionExecPolicies) {
+        this(service, pluginClass, onload, null, execPolicy, actionExecPolicies);
+    }
+
     private PluginEntry(String service, String pluginClass, boolean onload, CordovaPlugin plugin) {
+        this(service, pluginClass, onload, plugin, ExecPolicy.INLINE, null);
+    }
+
+    private PluginEntry(String service, String pluginClass, boolean onload, CordovaPlugin plugin, ExecPolicy execPolicy, Map<String, ExecPolicy> actionExecPolicies) {
         this.service = service;
         this.pluginClass = pluginClass;
         this.onload = onload;
         this.plugin = plugin;
+        this.execPolicy = execPolicy == null ? ExecPolicy.INLINE : execPolicy;
+        this.actionExecPolicies = actionExecPolicies == null || actionExecPolicies.isEmpty()
+                ? Collections.<String, ExecPolicy>emptyMap() : actionExecPolicies;
+    }
+
+    /**
+     * Returns where exec() runs the action.
+     */
+    public ExecPolicy getExecPolicy(String action) {
+        ExecPolicy policy = actionExecPolicies.get(action);
+        return policy != null ? policy : execPolicy;
     }
 }
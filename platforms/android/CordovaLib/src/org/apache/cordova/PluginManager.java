@@ -19,7 +19,17 @@
 package org.apache.cordova;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 
@@ -39,6 +49,8 @@ import android.util.Log;
 public class PluginManager {
     private static String TAG = "PluginManager";
     private static final int SLOW_EXEC_WARNING_THRESHOLD = Debug.isDebuggerConnected() ? 60 : 16;
+    // Seconds a SERIAL plugin's thread stays alive without work.
+    private static final int SERIAL_EXECUTOR_KEEP_ALIVE = 30;
 
     // List of service entries
     private final LinkedHashMap<String, CordovaPlugin> pluginMap = new LinkedHashMap<String, CordovaPlugin>();
@@ -50,6 +62,12 @@ public class PluginManager {
 
     private CordovaPlugin permissionRequester;
 
+    // Threads of plugins with ExecPolicy.SERIAL actions, by service.
+    private final HashMap<String, ThreadPoolExecutor> serialExecutors = new HashMap<String, ThreadPoolExecutor>();
+
+    // Latencies of execute() by "service.action".
+    private final ConcurrentHashMap<String, ExecLatencyHistogram> execLatencies = new ConcurrentHashMap<String, ExecLatencyHistogram>();
+
     public PluginManager(CordovaWebView cordovaWebView, CordovaInterface cordova, Collection<PluginEntry> pluginEntries) {
         this.ctx = cordova;
         this.app = cordovaWebView;
@@ -120,21 +138,44 @@ public class PluginManager {
      *                      plugin execute method.
      */
     public void exec(final String service, final String action, final String callbackId, final String rawArgs) {
-        CordovaPlugin plugin = getPlugin(service);
+        final CordovaPlugin plugin = getPlugin(service);
         if (plugin == null) {
             Log.d(TAG, "exec() call to unknown plugin: " + service);
             PluginResult cr = new PluginResult(PluginResult.Status.CLASS_NOT_FOUND_EXCEPTION);
             app.sendPluginResult(cr, callbackId);
             return;
         }
-        CallbackContext callbackContext = new CallbackContext(callbackId, app);
+        final CallbackContext callbackContext = new CallbackContext(callbackId, app);
+        PluginEntry entry = entryMap.get(service);
+        PluginEntry.ExecPolicy policy = entry == null ? PluginEntry.ExecPolicy.INLINE : entry.getExecPolicy(action);
+        if (policy == PluginEntry.ExecPolicy.INLINE) {
+            execute(plugin, service, action, rawArgs, callbackContext, true);
+            return;
+        }
+        Executor executor = policy == PluginEntry.ExecPolicy.SERIAL ? getSerialExecutor(service) : ctx.getThreadPool();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    execute(plugin, service, action, rawArgs, callbackContext, false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "exec() call to " + service + "." + action + " rejected by its executor, running it inline");
+            execute(plugin, service, action, rawArgs, callbackContext, true);
+        }
+    }
+
+    private void execute(CordovaPlugin plugin, String service, String action, String rawArgs, CallbackContext callbackContext, boolean onBridgeThread) {
         try {
-            long pluginStartTime = System.currentTimeMillis();
+            long pluginStartTime = System.nanoTime();
             boolean wasValidAction = plugin.execute(action, rawArgs, callbackContext);
-            long duration = System.currentTimeMillis() - pluginStartTime;
+            long duration = System.nanoTime() - pluginStartTime;
 
-            if (duration > SLOW_EXEC_WARNING_THRESHOLD) {
-                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + duration + "ms. Plugin should use CordovaInterface.getThreadPool().");
+            if (wasValidAction) {
+                recordExecLatency(service, action, duration);
+            }
+            if (onBridgeThread && duration / 1000000 > SLOW_EXEC_WARNING_THRESHOLD) {
+                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + (duration / 1000000) + "ms. Plugin should use CordovaInterface.getThreadPool(), or declare an android-exec policy in config.xml.");
             }
             if (!wasValidAction) {
                 PluginResult cr = new PluginResult(PluginResult.Status.INVALID_ACTION);
@@ -149,6 +190,57 @@ public class PluginManager {
         }
     }
 
+    /**
+     * Returns the single thread that runs the SERIAL actions of the service,
+     * in the order they were called. The thread exits when idle.
+     */
+    private synchronized Executor getSerialExecutor(final String service) {
+        ThreadPoolExecutor executor = serialExecutors.get(service);
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, SERIAL_EXECUTOR_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "PluginManager-" + service);
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            serialExecutors.put(service, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Drops the queued SERIAL calls and interrupts the running ones, so none
+     * runs against a destroyed plugin. Later calls get new threads.
+     */
+    private synchronized void shutdownSerialExecutors() {
+        for (ThreadPoolExecutor executor : serialExecutors.values()) {
+            executor.shutdownNow();
+        }
+        serialExecutors.clear();
+    }
+
+    private void recordExecLatency(String service, String action, long nanos) {
+        String key = service + "." + action;
+        ExecLatencyHistogram histogram = execLatencies.get(key);
+        if (histogram == null) {
+            histogram = new ExecLatencyHistogram();
+            ExecLatencyHistogram existing = execLatencies.putIfAbsent(key, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Returns the execute() latencies of the plugin actions called so far,
+     * keyed by "service.action".
+     */
+    public Map<String, ExecLatencyHistogram> getExecLatencies() {
+        return Collections.unmodifiableMap(execLatencies);
+    }
+
     /**
      * Get the plugin object that implements the service.
      * If the plugin object does not already exist, then create it.
@@ -293,6 +385,7 @@ public class PluginManager {
      * The final call you receive before your activity is destroyed.
      */
     public void onDestroy() {
+        shutdownSerialExecutors();
         for (CordovaPlugin plugin : this.pluginMap.values()) {
             if (plugin != null) {
                 plugin.onDestroy();
@@ -25,12 +25,26 @@ import org.json.JSONObject;
 
 import android.util.Base64;
 
+/**
+ * The result of a plugin call, sent to JavaScript with
+ * CallbackContext.sendPluginResult().
+ *
+ * Number messages are encoded lazily, the first time the NativeToJsMessageQueue
+ * needs them, so results that are dropped before reaching JS never pay for it.
+ * JSONObject and JSONArray messages are encoded in the constructor: plugins
+ * often keep changing or reusing them after the result is sent, and the JSON
+ * classes are not safe to read from the bridge thread meanwhile.
+ */
 public class PluginResult {
     private final int status;
     private final int messageType;
     private boolean keepCallback = false;
+    private boolean latestOnly = false;
     private String strMessage;
     private String encodedMessage;
+    private byte[] binaryMessage;
+    // A Number whose toString() is the encoded message.
+    private Number unencodedMessage;
     private List<PluginResult> multipartMessages;
 
     public PluginResult(Status status) {
@@ -58,13 +72,13 @@ public class PluginResult {
     public PluginResult(Status status, int i) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_NUMBER;
-        this.encodedMessage = ""+i;
+        this.unencodedMessage = i;
     }
 
     public PluginResult(Status status, float f) {
         this.status = status.ordinal();
         this.messageType = MESSAGE_TYPE_NUMBER;
-        this.encodedMessage = ""+f;
+        this.unencodedMessage = f;
     }
 
     public PluginResult(Status status, boolean b) {
@@ -80,7 +94,7 @@ public class PluginResult {
     public PluginResult(Status status, byte[] data, boolean binaryString) {
         this.status = status.ordinal();
         this.messageType = binaryString ? MESSAGE_TYPE_BINARYSTRING : MESSAGE_TYPE_ARRAYBUFFER;
-        this.encodedMessage = Base64.encodeToString(data, Base64.NO_WRAP);
+        this.binaryMessage = data;
     }
     
     // The keepCallback and status of multipartMessages are ignored.
@@ -94,6 +108,21 @@ public class PluginResult {
         this.keepCallback = b;
     }
 
+    /**
+     * Marks a keepCallback result as superseded by the next one. While it
+     * waits in the NativeToJsMessageQueue, a newer latestOnly keepCallback
+     * result for the same callback replaces it, so a busy WebView gets the
+     * freshest value instead of a backlog. Meant for streams such as sensor
+     * readings where only the current value matters.
+     */
+    public void setLatestOnly(boolean b) {
+        this.latestOnly = b;
+    }
+
+    public boolean isLatestOnly() {
+        return latestOnly;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -104,7 +133,15 @@ public class PluginResult {
 
     public String getMessage() {
         if (encodedMessage == null) {
-            encodedMessage = JSONObject.quote(strMessage);
+            if (binaryMessage != null) {
+                // Only encoded when the message is not sent as a binary payload.
+                encodedMessage = Base64.encodeToString(binaryMessage, Base64.NO_WRAP);
+            } else if (unencodedMessage != null) {
+                encodedMessage = unencodedMessage.toString();
+                unencodedMessage = null;
+            } else {
+                encodedMessage = JSONObject.quote(strMessage);
+            }
         }
         return encodedMessage;
     }
@@ -125,6 +162,14 @@ public class PluginResult {
         return strMessage;
     }
 
+    /**
+     * If messageType == MESSAGE_TYPE_ARRAYBUFFER or MESSAGE_TYPE_BINARYSTRING,
+     * then returns the raw bytes. Otherwise, returns null.
+     */
+    public byte[] getBinaryMessage() {
+        return binaryMessage;
+    }
+
     public boolean getKeepCallback() {
         return this.keepCallback;
     }
@@ -40,6 +40,7 @@ import org.apache.cordova.CordovaResourceApi;
 import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.CordovaWebViewEngine;
 import org.apache.cordova.ICordovaCookieManager;
+import org.apache.cordova.NativeToJsFlushScheduler;
 import org.apache.cordova.NativeToJsMessageQueue;
 import org.apache.cordova.PluginManager;
 
@@ -106,7 +107,7 @@ public class SystemWebViewEngine implements CordovaWebViewEngine {
 
         initWebViewSettings();
 
-        nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.OnlineEventsBridgeMode(new NativeToJsMessageQueue.OnlineEventsBridgeMode.OnlineEventsBridgeModeDelegate() {
+        NativeToJsMessageQueue.BridgeMode onlineEventsBridgeMode = new NativeToJsMessageQueue.OnlineEventsBridgeMode(new NativeToJsMessageQueue.OnlineEventsBridgeMode.OnlineEventsBridgeModeDelegate() {
             @Override
             public void setNetworkAvailable(boolean value) {
                 webView.setNetworkAvailable(value);
@@ -115,7 +116,9 @@ public class SystemWebViewEngine implements CordovaWebViewEngine {
             public void runOnUiThread(Runnable r) {
                 SystemWebViewEngine.this.cordova.getActivity().runOnUiThread(r);
             }
-        }));
+        }, preferences.getInteger(NativeToJsFlushScheduler.PREFERENCE, NativeToJsFlushScheduler.FLUSH_ON_FRAME));
+        nativeToJsMessageQueue.addBridgeMode(onlineEventsBridgeMode);
+        nativeToJsMessageQueue.addBridgeMode(new NativeToJsMessageQueue.BinaryBridgeMode(onlineEventsBridgeMode));
         bridge = new CordovaBridge(pluginManager, nativeToJsMessageQueue);
         exposeJsInterface(webView, bridge);
     }
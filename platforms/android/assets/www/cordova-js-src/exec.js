@@ -51,10 +51,13 @@ var cordova = require('cordova'),
         // For the ONLINE_EVENT to be viable, it would need to intercept all event
         // listeners (both through addEventListener and window.ononline) as well
         // as set the navigator property itself.
-        ONLINE_EVENT: 2
+        ONLINE_EVENT: 2,
+        // Same as ONLINE_EVENT, but ArrayBuffer results are sent as binary
+        // payloads (one char per byte) instead of Base64.
+        ONLINE_EVENT_BINARY: 3
     },
     jsToNativeBridgeMode,  // Set lazily.
-    nativeToJsBridgeMode = nativeToJsModes.ONLINE_EVENT,
+    nativeToJsBridgeMode = nativeToJsModes.ONLINE_EVENT_BINARY,
     pollEnabled = false,
     bridgeSecret = -1;
 
@@ -185,6 +188,21 @@ androidExec.setNativeToJsBridgeMode = function(mode) {
     }
 };
 
+// Each byte of a binary payload is sent as the char with the same code, except
+// that 0x00 and 0x01 are sent as U+0001 followed by the byte plus one.
+function binaryPayloadToArrayBuffer(message) {
+    var bytes = new Uint8Array(message.length - 1);
+    var length = 0;
+    for (var i = 1; i < message.length; i++) {
+        var c = message.charCodeAt(i);
+        if (c == 1) {
+            c = message.charCodeAt(++i) - 1;
+        }
+        bytes[length++] = c;
+    }
+    return length == bytes.length ? bytes.buffer : bytes.buffer.slice(0, length);
+}
+
 function buildPayload(payload, message) {
     var payloadKind = message.charAt(0);
     if (payloadKind == 's') {
@@ -200,6 +218,8 @@ function buildPayload(payload, message) {
     } else if (payloadKind == 'A') {
         var data = message.slice(1);
         payload.push(base64.toArrayBuffer(data));
+    } else if (payloadKind == 'B') {
+        payload.push(binaryPayloadToArrayBuffer(message));
     } else if (payloadKind == 'S') {
         payload.push(window.atob(message.slice(1)));
     } else if (payloadKind == 'M') {
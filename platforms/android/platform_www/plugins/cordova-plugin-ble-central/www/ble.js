@@ -66,6 +66,18 @@ module.exports = {
         cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services]);
     },
 
+    startScanWithOptions: function (services, options, success, failure) {
+        // in batch mode a single result holds several peripherals
+        var successWrapper = function(result) {
+            var peripherals = Array.isArray(result) ? result : [result];
+            peripherals.forEach(function(peripheral) {
+                convertToNativeJS(peripheral);
+                success(peripheral);
+            });
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'startScanWithOptions', [services, options || {}]);
+    },
+
     stopScan: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'stopScan', []);
     },
@@ -76,18 +88,29 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'list', []);
     },
 
-    connect: function (device_id, success, failure) {
+    // options is optional, Android only: { cachedServices: true }
+    connect: function (device_id, success, failure, options) {
         var successWrapper = function(peripheral) {
             convertToNativeJS(peripheral);
             success(peripheral);
         };
-        cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id]);
+        cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id, options || {}]);
     },
 
     disconnect: function (device_id, success, failure) {
         cordova.exec(success, failure, 'BLE', 'disconnect', [device_id]);
     },
 
+    // Android only - how many peripherals connect at once and how failed connects are retried
+    setConnectionOptions: function (options, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setConnectionOptions', [options || {}]);
+    },
+
+    // Android only - connect metrics across all peripherals
+    connectionStats: function (success, failure) {
+        cordova.exec(success, failure, 'BLE', 'connectionStats', []);
+    },
+
     // characteristic value comes back as ArrayBuffer in the success callback
     read: function (device_id, service_uuid, characteristic_uuid, success, failure) {
         cordova.exec(success, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid]);
@@ -129,6 +152,11 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'isConnected', [device_id]);
     },
 
+    // Android only - GATT operation queue metrics for a connected peripheral
+    queueStats: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'queueStats', [device_id]);
+    },
+
     isEnabled: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'isEnabled', []);
     },
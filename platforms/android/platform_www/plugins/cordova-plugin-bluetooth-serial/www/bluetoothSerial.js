@@ -29,6 +29,7 @@ module.exports = {
     },
 
     // the number of bytes of data available to read is passed to the success function
+    // this counts bytes, not characters: a character outside ASCII takes 2 to 4 bytes in UTF-8
     available: function (success, failure) {
         cordova.exec(success, failure, "BluetoothSerial", "available", []);
     },
@@ -45,6 +46,8 @@ module.exports = {
 
     // writes data to the bluetooth serial port
     // data can be an ArrayBuffer, string, integer array, or Uint8Array
+    // on Android the data is queued and the number of bytes waiting to be sent is passed
+    // to the success function; failure is called if the write queue is full
     write: function (data, success, failure) {
 
         // convert to ArrayBuffer
@@ -91,11 +94,47 @@ module.exports = {
         cordova.exec(success, failure, "BluetoothSerial", "unsubscribeRaw", []);
     },
 
+    // Android only - calls the success callback with an ArrayBuffer for each complete binary frame
+    // options.type selects the framing:
+    //   'fixed':        { length }
+    //   'lengthPrefix': { prefixSize: 1 | 2 | 4, bigEndian, includesPrefix } - the prefix is not delivered
+    //   'startByte':    { startByte, length, checksum: 'none' | 'sum8' | 'xor8' } - length includes both
+    //   'slip', 'cobs': decoded frames are delivered
+    // options.maxLength limits the frame size for 'lengthPrefix', 'slip' and 'cobs' (default 4096)
+    subscribeFrames: function (options, success, failure) {
+        cordova.exec(success, failure, "BluetoothSerial", "subscribeFrames", [options]);
+    },
+
+    // removes frame subscription
+    unsubscribeFrames: function (success, failure) {
+        cordova.exec(success, failure, "BluetoothSerial", "unsubscribeFrames", []);
+    },
+
     // clears the data buffer
     clear: function (success, failure) {
         cordova.exec(success, failure, "BluetoothSerial", "clear", []);
     },
 
+    // Android only - sets the size of the data buffer in bytes and what happens when it is full
+    // options: { capacity: 65536, overflow: 'dropOldest' | 'dropNewest' | 'error' }
+    // with 'error', the subscribe failure callback is called when data is dropped
+    // with 'dropOldest', the rest of a UTF-8 character cut by the drop is dropped too
+    configureBuffer: function (options, success, failure) {
+        cordova.exec(success, failure, "BluetoothSerial", "configureBuffer", [options]);
+    },
+
+    // Android only - configures the write queue
+    // options: { maxQueuedBytes: 65536, echo: false }
+    configureWriteQueue: function (options, success, failure) {
+        cordova.exec(success, failure, "BluetoothSerial", "configureWriteQueue", [options]);
+    },
+
+    // Android only - passes write queue metrics for the current connection to the success function
+    // { queuedWrites, queuedBytes, maxQueuedBytes, peakQueuedBytes, bytesWritten, socketWrites, rejectedWrites }
+    writeQueueStats: function (success, failure) {
+        cordova.exec(success, failure, "BluetoothSerial", "writeQueueStats", []);
+    },
+
     // reads the RSSI of the *connected* peripherial
     readRSSI: function (success, failure) {
         cordova.exec(success, failure, "BluetoothSerial", "readRSSI", []);
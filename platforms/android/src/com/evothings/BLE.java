@@ -24,10 +24,13 @@ import android.bluetooth.*;
 import android.bluetooth.BluetoothAdapter.LeScanCallback;
 import android.content.*;
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Iterator;
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import android.util.Base64;
 
@@ -35,6 +38,24 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	// Used by startScan().
 	private CallbackContext mScanCallbackContext;
 
+	// Decides which advertisements of the current scan are sent to JavaScript.
+	private volatile ScanThrottle<ScanResult> mScanThrottle;
+
+	// Advertisements that match none of these are dropped. null lets all through.
+	private volatile AdvertisementData.Filter[] mScanFilters;
+
+	// Sends the advertisements gathered by a scan in batch mode, every mScanThrottle.getInterval() ms.
+	private final Runnable mFlushScanBatch = new Runnable() {
+		@Override
+		public void run() {
+			flushScanBatch();
+			ScanThrottle<ScanResult> throttle = mScanThrottle;
+			if(throttle != null) {
+				mHandler.postDelayed(this, throttle.getInterval());
+			}
+		}
+	};
+
 	// Used by reset().
 	private CallbackContext mResetCallbackContext;
 
@@ -50,17 +71,22 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	// Used to send error messages to the JavaScript side if Bluetooth power-on fails.
 	private CallbackContext mPowerOnCallbackContext;
 
-	// Map of connected devices.
-	HashMap<Integer, GattHandler> mGatt = null;
+	// The connected devices, by the deviceHandle given to JavaScript.
+	final HandleTable<GattHandler> mGatt = new HandleTable<GattHandler>();
+
+	// Runs the latency deadlines of notification batches.
+	private Handler mHandler;
 
-	// Monotonically incrementing key to the Gatt map.
-	int mNextGattHandle = 1;
+	// The devices whose services were discovered before.
+	private KnownDevices mKnownDevices;
 
 	// Called each time cordova.js is loaded.
 	@Override
 	public void initialize(final CordovaInterface cordova, CordovaWebView webView) {
 		super.initialize(cordova, webView);
 		mContext = webView.getContext();
+		mHandler = new Handler(Looper.getMainLooper());
+		mKnownDevices = new KnownDevices(new File(mContext.getFilesDir(), "evothings-known-devices"), cordova.getThreadPool());
 
 		if(!mRegisteredReceiver) {
 			mContext.registerReceiver(new BluetoothStateReceiver(), new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
@@ -88,6 +114,7 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 		else if("writeDescriptor".equals(action)) { writeDescriptor(args, callbackContext); return true; }
 		else if("enableNotification".equals(action)) { enableNotification(args, callbackContext); return true; }
 		else if("disableNotification".equals(action)) { disableNotification(args, callbackContext); return true; }
+		else if("queueStats".equals(action)) { queueStats(args, callbackContext); return true; }
 		else if("testCharConversion".equals(action)) { testCharConversion(args, callbackContext); return true; }
 		else if("reset".equals(action)) { reset(args, callbackContext); return true; }
 		return false;
@@ -107,17 +134,17 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 		if(mScanCallbackContext != null) {
 			BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
 			a.stopLeScan(this);
+			mHandler.removeCallbacks(mFlushScanBatch);
+			mScanThrottle = null;
 			mScanCallbackContext = null;
 		}
-		if(mGatt != null) {
-			Iterator<GattHandler> itr = mGatt.values().iterator();
-			while(itr.hasNext()) {
-				GattHandler gh = itr.next();
-				if(gh.mGatt != null)
-					gh.mGatt.close();
-			}
-			mGatt.clear();
+		for(GattHandler gh : mGatt.values()) {
+			gh.cancelBatchers();
+			gh.mOperations.cancelAll("closed");
+			if(gh.mGatt != null)
+				gh.mGatt.close();
 		}
+		mGatt.clear();
 	}
 
 	// Possibly asynchronous.
@@ -178,35 +205,107 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 
 	// API implementation. See ble.js for documentation.
 	private void startScan(final CordovaArgs args, final CallbackContext callbackContext) {
+		final ScanThrottle<ScanResult> throttle;
+		final AdvertisementData.Filter[] filters;
+		try {
+			throttle = ScanThrottle.fromOptions(args.optJSONObject(0));
+			filters = AdvertisementData.Filter.fromOptions(args.optJSONObject(0));
+		} catch(IllegalArgumentException e) {
+			callbackContext.error(e.getMessage());
+			return;
+		}
 		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
 		final LeScanCallback self = this;
 		checkPowerState(adapter, callbackContext, new Runnable() {
 			@Override
 			public void run() {
+				mScanThrottle = throttle;
+				mScanFilters = filters;
 				if(!adapter.startLeScan(self)) {
+					mScanThrottle = null;
 					callbackContext.error("Android function startLeScan failed");
 					return;
 				}
 				mScanCallbackContext = callbackContext;
+				mHandler.removeCallbacks(mFlushScanBatch);
+				if(throttle.getMode() == ScanThrottle.Mode.BATCH) {
+					mHandler.postDelayed(mFlushScanBatch, throttle.getInterval());
+				}
 			}
 		});
 	}
 
+	// An advertisement kept by a batch scan.
+	private static class ScanResult {
+		final BluetoothDevice mDevice;
+		final int mRssi;
+		final byte[] mScanRecord;
+
+		ScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			mDevice = device;
+			mRssi = rssi;
+			mScanRecord = scanRecord;
+		}
+	}
+
 	// Called during scan, when a device advertisement is received.
 	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-		if(mScanCallbackContext == null) {
+		CallbackContext cc = mScanCallbackContext;
+		ScanThrottle<ScanResult> throttle = mScanThrottle;
+		if(cc == null || throttle == null) {
+			return;
+		}
+		AdvertisementData.Filter[] filters = mScanFilters;
+		if(filters != null && !AdvertisementData.Filter.matchesAny(filters, scanRecord)) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if(throttle.getMode() == ScanThrottle.Mode.BATCH) {
+			throttle.offer(device.getAddress(), rssi, new ScanResult(device, rssi, scanRecord), now);
+			return;
+		}
+		if(!throttle.offer(device.getAddress(), rssi, null, now)) {
 			return;
 		}
 		try {
 			//System.out.println("onLeScan "+device.getAddress()+" "+rssi+" "+device.getName());
-			JSONObject o = new JSONObject();
-			o.put("address", device.getAddress());
-			o.put("rssi", rssi);
-			o.put("name", device.getName());
-			o.put("scanRecord", Base64.encodeToString(scanRecord, Base64.NO_WRAP));
-			keepCallback(mScanCallbackContext, o);
+			keepCallback(cc, scanResultToJSON(device, rssi, scanRecord));
 		} catch(JSONException e) {
-			mScanCallbackContext.error(e.toString());
+			cc.error(e.toString());
+		}
+	}
+
+	private JSONObject scanResultToJSON(BluetoothDevice device, int rssi, byte[] scanRecord) throws JSONException {
+		JSONObject o = new JSONObject();
+		o.put("address", device.getAddress());
+		o.put("rssi", rssi);
+		o.put("name", device.getName());
+		o.put("scanRecord", Base64.encodeToString(scanRecord, Base64.NO_WRAP));
+		o.put("advertisementData", AdvertisementData.parse(scanRecord).toJSON());
+		return o;
+	}
+
+	// Sends the advertisements a batch scan gathered since the last batch, as one array.
+	private void flushScanBatch() {
+		CallbackContext cc = mScanCallbackContext;
+		ScanThrottle<ScanResult> throttle = mScanThrottle;
+		if(cc == null || throttle == null) {
+			return;
+		}
+		List<ScanResult> batch = throttle.drain();
+		if(batch.isEmpty()) {
+			return;
+		}
+		try {
+			JSONArray a = new JSONArray();
+			for(ScanResult r : batch) {
+				a.put(scanResultToJSON(r.mDevice, r.mRssi, r.mScanRecord));
+			}
+			PluginResult r = new PluginResult(PluginResult.Status.OK, a);
+			r.setKeepCallback(true);
+			cc.sendPluginResult(r);
+		} catch(JSONException e) {
+			cc.error(e.toString());
 		}
 	}
 
@@ -214,9 +313,22 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	private void stopScan(final CordovaArgs args, final CallbackContext callbackContext) {
 		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
 		adapter.stopLeScan(this);
+		mHandler.removeCallbacks(mFlushScanBatch);
+		// Whatever a batch scan gathered since the last batch.
+		flushScanBatch();
+		mScanThrottle = null;
 		mScanCallbackContext = null;
 	}
 
+	// Returns the device of the deviceHandle in args[0].
+	// Returns null, and calls cc.error, if the handle is not valid, e.g. because the device was closed.
+	private GattHandler gattHandler(CordovaArgs args, CallbackContext cc) throws JSONException {
+		GattHandler gh = mGatt.get(args.getInt(0));
+		if(gh == null)
+			cc.error("Invalid device handle");
+		return gh;
+	}
+
 	// API implementation.
 	private void connect(final CordovaArgs args, final CallbackContext callbackContext) {
 		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
@@ -226,14 +338,16 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 				try {
 					// Each device connection has a GattHandler, which handles the events the can happen to the connection.
 					// The implementation of the GattHandler class is found at the end of this file.
-					GattHandler gh = new GattHandler(mNextGattHandle, callbackContext);
-					gh.mGatt = adapter.getRemoteDevice(args.getString(0)).connectGatt(mContext, true, gh);
+					GattHandler gh = new GattHandler(args.getString(0), callbackContext);
+					// The handle is needed by the first callback.
+					gh.mHandle = mGatt.put(gh);
+					try {
+						gh.mGatt = adapter.getRemoteDevice(gh.mAddress).connectGatt(mContext, true, gh);
+					} catch(RuntimeException e) {
+						mGatt.remove(gh.mHandle);
+						throw e;
+					}
 					// Note that gh.mGatt and this.mGatt are different object and have different types.
-					if(mGatt == null)
-						mGatt = new HashMap<Integer, GattHandler>();
-					Object res = mGatt.put(mNextGattHandle, gh);
-					assert(res == null);
-					mNextGattHandle++;
 				} catch(Exception e) {
 					e.printStackTrace();
 					callbackContext.error(e.toString());
@@ -245,9 +359,13 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	// API implementation.
 	private void close(final CordovaArgs args, final CallbackContext callbackContext) {
 		try {
-			GattHandler gh = mGatt.get(args.getInt(0));
+			// Closing twice does nothing.
+			GattHandler gh = mGatt.remove(args.getInt(0));
+			if(gh == null)
+				return;
+			gh.cancelBatchers();
+			gh.mOperations.cancelAll("closed");
 			gh.mGatt.close();
-			mGatt.remove(args.getInt(0));
 		} catch(JSONException e) {
 			e.printStackTrace();
 			callbackContext.error(e.toString());
@@ -258,7 +376,9 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	private void rssi(final CordovaArgs args, final CallbackContext callbackContext) {
 		GattHandler gh = null;
 		try {
-			gh = mGatt.get(args.getInt(0));
+			gh = gattHandler(args, callbackContext);
+			if(gh == null)
+				return;
 			if(gh.mRssiContext != null) {
 				callbackContext.error("Previous call to rssi() not yet completed!");
 				return;
@@ -280,18 +400,10 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	// API implementation.
 	private void services(final CordovaArgs args, final CallbackContext callbackContext) {
 		try {
-			final GattHandler gh = mGatt.get(args.getInt(0));
-			gh.mOperations.add(new Runnable() {
-				@Override
-				public void run() {
-					gh.mCurrentOpContext = callbackContext;
-					if(!gh.mGatt.discoverServices()) {
-						gh.mCurrentOpContext = null;
-						callbackContext.error("discoverServices");
-						gh.process();
-					}
-				}
-			});
+			GattHandler gh = gattHandler(args, callbackContext);
+			if(gh == null)
+				return;
+			gh.mOperations.add(GattOperationQueue.SERVICES, 0, null, callbackContext);
 			gh.process();
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -301,22 +413,23 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 
 	// API implementation.
 	private void characteristics(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
+		final GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		BluetoothGattService s = gh.service(args.getInt(1));
+		if(s == null) {
+			callbackContext.error("Invalid service handle");
+			return;
+		}
 		JSONArray a = new JSONArray();
-		for(BluetoothGattCharacteristic c : gh.mServices.get(args.getInt(1)).getCharacteristics()) {
-			if(gh.mCharacteristics == null)
-				gh.mCharacteristics = new HashMap<Integer, BluetoothGattCharacteristic>();
-			Object res = gh.mCharacteristics.put(gh.mNextHandle, c);
-			assert(res == null);
-
+		for(BluetoothGattCharacteristic c : s.getCharacteristics()) {
 			JSONObject o = new JSONObject();
-			o.put("handle", gh.mNextHandle);
+			o.put("handle", gh.mObjects.put(c));
 			o.put("uuid", c.getUuid().toString());
 			o.put("permissions", c.getPermissions());
 			o.put("properties", c.getProperties());
 			o.put("writeType", c.getWriteType());
 
-			gh.mNextHandle++;
 			a.put(o);
 		}
 		callbackContext.success(a);
@@ -324,20 +437,21 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 
 	// API implementation.
 	private void descriptors(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
+		final GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		BluetoothGattCharacteristic c = gh.characteristic(args.getInt(1));
+		if(c == null) {
+			callbackContext.error("Invalid characteristic handle");
+			return;
+		}
 		JSONArray a = new JSONArray();
-		for(BluetoothGattDescriptor d : gh.mCharacteristics.get(args.getInt(1)).getDescriptors()) {
-			if(gh.mDescriptors == null)
-				gh.mDescriptors = new HashMap<Integer, BluetoothGattDescriptor>();
-			Object res = gh.mDescriptors.put(gh.mNextHandle, d);
-			assert(res == null);
-
+		for(BluetoothGattDescriptor d : c.getDescriptors()) {
 			JSONObject o = new JSONObject();
-			o.put("handle", gh.mNextHandle);
+			o.put("handle", gh.mObjects.put(d));
 			o.put("uuid", d.getUuid().toString());
 			o.put("permissions", d.getPermissions());
 
-			gh.mNextHandle++;
 			a.put(o);
 		}
 		callbackContext.success(a);
@@ -345,106 +459,68 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 
 	// API implementation.
 	private void readCharacteristic(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		gh.mOperations.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					if(!gh.mGatt.readCharacteristic(gh.mCharacteristics.get(args.getInt(1)))) {
-						gh.mCurrentOpContext = null;
-						callbackContext.error("readCharacteristic");
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.process();
-				}
-			}
-		});
+		GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		gh.mOperations.add(GattOperationQueue.READ_CHARACTERISTIC, args.getInt(1), null, callbackContext);
 		gh.process();
 	}
 
 	// API implementation.
 	private void readDescriptor(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		gh.mOperations.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					if(!gh.mGatt.readDescriptor(gh.mDescriptors.get(args.getInt(1)))) {
-						gh.mCurrentOpContext = null;
-						callbackContext.error("readDescriptor");
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.process();
-				}
-			}
-		});
+		GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		gh.mOperations.add(GattOperationQueue.READ_DESCRIPTOR, args.getInt(1), null, callbackContext);
 		gh.process();
 	}
 
 	// API implementation.
 	private void writeCharacteristic(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		gh.mOperations.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					BluetoothGattCharacteristic c = gh.mCharacteristics.get(args.getInt(1));
-					System.out.println("writeCharacteristic("+args.getInt(0)+", "+args.getInt(1)+", "+args.getString(2)+")");
-					c.setValue(args.getArrayBuffer(2));
-					if(!gh.mGatt.writeCharacteristic(c)) {
-						gh.mCurrentOpContext = null;
-						callbackContext.error("writeCharacteristic");
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.process();
-				}
-			}
-		});
+		GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		gh.mOperations.add(GattOperationQueue.WRITE_CHARACTERISTIC, args.getInt(1), args.getArrayBuffer(2), callbackContext);
 		gh.process();
 	}
 
 	// API implementation.
 	private void writeDescriptor(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		gh.mOperations.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					BluetoothGattDescriptor d = gh.mDescriptors.get(args.getInt(1));
-					d.setValue(args.getArrayBuffer(2));
-					if(!gh.mGatt.writeDescriptor(d)) {
-						gh.mCurrentOpContext = null;
-						callbackContext.error("writeDescriptor");
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.process();
-				}
-			}
-		});
+		GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		gh.mOperations.add(GattOperationQueue.WRITE_DESCRIPTOR, args.getInt(1), args.getArrayBuffer(2), callbackContext);
 		gh.process();
 	}
 
 	// API implementation.
 	private void enableNotification(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		BluetoothGattCharacteristic c = gh.mCharacteristics.get(args.getInt(1));
+		final GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		BluetoothGattCharacteristic c = gh.characteristic(args.getInt(1));
+		if(c == null) {
+			callbackContext.error("Invalid characteristic handle");
+			return;
+		}
+		JSONObject options = args.optJSONObject(2);
 		gh.mNotifications.put(c, callbackContext);
+		ULandingDecoder decoder = ULandingDecoder.fromOptions(options);
+		if(decoder != null) {
+			gh.mDecoders.put(c, decoder);
+		} else {
+			gh.mDecoders.remove(c);
+		}
+		if(options != null && options.optBoolean("latestOnly", false)) {
+			gh.mLatestOnly.add(c);
+		} else {
+			gh.mLatestOnly.remove(c);
+		}
+		NotificationBatcher batcher = NotificationBatcher.fromOptions(options, callbackContext, decoder, mHandler);
+		NotificationBatcher previous = (batcher != null) ? gh.mBatchers.put(c, batcher) : gh.mBatchers.remove(c);
+		if(previous != null) {
+			previous.cancel();
+		}
 		if(!gh.mGatt.setCharacteristicNotification(c, true)) {
 			callbackContext.error("setCharacteristicNotification");
 		}
@@ -452,9 +528,21 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 
 	// API implementation.
 	private void disableNotification(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
-		final GattHandler gh = mGatt.get(args.getInt(0));
-		BluetoothGattCharacteristic c = gh.mCharacteristics.get(args.getInt(1));
+		final GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		BluetoothGattCharacteristic c = gh.characteristic(args.getInt(1));
+		if(c == null) {
+			callbackContext.error("Invalid characteristic handle");
+			return;
+		}
 		gh.mNotifications.remove(c);
+		gh.mDecoders.remove(c);
+		gh.mLatestOnly.remove(c);
+		NotificationBatcher batcher = gh.mBatchers.remove(c);
+		if(batcher != null) {
+			batcher.cancel();
+		}
 		if(gh.mGatt.setCharacteristicNotification(c, false)) {
 			callbackContext.success();
 		} else {
@@ -462,6 +550,14 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 		}
 	}
 
+	// API implementation.
+	private void queueStats(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+		GattHandler gh = gattHandler(args, callbackContext);
+		if(gh == null)
+			return;
+		callbackContext.success(gh.mOperations.getStats());
+	}
+
 	// API implementation.
 	private void testCharConversion(final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
 		byte[] b = {(byte)args.getInt(0)};
@@ -541,47 +637,176 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 	// This class handles callbacks pertaining to device connections.
 	// Also maintains the per-device operation queue.
 	private class GattHandler extends BluetoothGattCallback {
-		// Local copy of the key to BLE.mGatt. Fed by BLE.mNextGattHandle.
-		final int mHandle;
+		// Local copy of the key to BLE.mGatt.
+		int mHandle;
+
+		// The device address, the key to mKnownDevices.
+		final String mAddress;
 
 		// The queue of operations.
-		LinkedList<Runnable> mOperations = new LinkedList<Runnable>();
+		final GattOperationQueue mOperations;
 
 		// connect() and rssi() are handled separately from other operations.
-		CallbackContext mConnectContext, mRssiContext, mCurrentOpContext;
+		CallbackContext mConnectContext, mRssiContext;
 
 		// The Android API connection.
 		BluetoothGatt mGatt;
 
-		// Maps of integer to Gatt subobject.
-		HashMap<Integer, BluetoothGattService> mServices;
-		HashMap<Integer, BluetoothGattCharacteristic> mCharacteristics;
-		HashMap<Integer, BluetoothGattDescriptor> mDescriptors;
+		// The services, characteristics and descriptors given to JavaScript, by handle.
+		// They share one table, so no two of them have the same handle.
+		final HandleTable<Object> mObjects = new HandleTable<Object>();
 
-		// Monotonically incrementing key to the subobject maps.
-		int mNextHandle = 1;
+		// A known device has its services discovered as soon as it connects,
+		// while the app is still being told about the connection. mDiscovering holds back the
+		// operation queue until that discovery completes, and mPrefetched tells the next
+		// services() call that the services are already there.
+		boolean mDiscovering, mPrefetched;
 
-		// Notification callbacks. The BluetoothGattCharacteristic object, as found in the mCharacteristics map, is the key.
+		// Notification callbacks. The BluetoothGattCharacteristic object, as found in mObjects, is the key.
 		HashMap<BluetoothGattCharacteristic, CallbackContext> mNotifications =
 			new HashMap<BluetoothGattCharacteristic, CallbackContext>();
 
-		GattHandler(int h, CallbackContext cc) {
-			mHandle = h;
+		// Native frame decoders for notifications that opted in to one. Same key as mNotifications.
+		HashMap<BluetoothGattCharacteristic, ULandingDecoder> mDecoders =
+			new HashMap<BluetoothGattCharacteristic, ULandingDecoder>();
+
+		// Notifications whose values not yet sent to JavaScript are replaced by newer ones.
+		HashSet<BluetoothGattCharacteristic> mLatestOnly = new HashSet<BluetoothGattCharacteristic>();
+
+		// Batchers for notifications that opted in to batching. Same key as mNotifications.
+		HashMap<BluetoothGattCharacteristic, NotificationBatcher> mBatchers =
+			new HashMap<BluetoothGattCharacteristic, NotificationBatcher>();
+
+		GattHandler(String address, CallbackContext cc) {
+			mAddress = address;
 			mConnectContext = cc;
+			mOperations = new GattOperationQueue(mHandler, new Runnable() {
+				@Override
+				public void run() {
+					process();
+				}
+			});
+		}
+
+		// The objects of the handles, or null if the handle is not one of that type.
+		BluetoothGattService service(int handle) {
+			Object o = mObjects.get(handle);
+			return (o instanceof BluetoothGattService) ? (BluetoothGattService)o : null;
+		}
+		BluetoothGattCharacteristic characteristic(int handle) {
+			Object o = mObjects.get(handle);
+			return (o instanceof BluetoothGattCharacteristic) ? (BluetoothGattCharacteristic)o : null;
+		}
+		BluetoothGattDescriptor descriptor(int handle) {
+			Object o = mObjects.get(handle);
+			return (o instanceof BluetoothGattDescriptor) ? (BluetoothGattDescriptor)o : null;
 		}
 
 		// Run the next operation, if any.
 		void process() {
-			if(mCurrentOpContext != null)
-				return;
-			Runnable r = mOperations.poll();
-			if(r == null)
+			if(mDiscovering)
 				return;
-			r.run();
+			GattOperationQueue.Operation op;
+			while((op = mOperations.start()) != null) {
+				if(dispatch(op))
+					return;
+				// Failed or answered without a GATT callback, go on with the next one.
+			}
+		}
+
+		// Starts an operation. Returns true if a GATT callback will complete it.
+		private boolean dispatch(GattOperationQueue.Operation op) {
+			switch(op.mType) {
+				case GattOperationQueue.SERVICES:
+					if(mPrefetched) {
+						// Discovered when the connection came up.
+						mPrefetched = false;
+						CallbackContext cc = mOperations.complete(op.mType, null);
+						cc.success(servicesToJSON(mGatt.getServices()));
+						return false;
+					}
+					if(mGatt.discoverServices())
+						return true;
+					return fail(op, "discoverServices");
+				case GattOperationQueue.READ_CHARACTERISTIC: {
+					BluetoothGattCharacteristic c = characteristic(op.mHandle);
+					op.mTarget = c;
+					if(c != null && mGatt.readCharacteristic(c))
+						return true;
+					return fail(op, "readCharacteristic");
+				}
+				case GattOperationQueue.READ_DESCRIPTOR: {
+					BluetoothGattDescriptor d = descriptor(op.mHandle);
+					op.mTarget = d;
+					if(d != null && mGatt.readDescriptor(d))
+						return true;
+					return fail(op, "readDescriptor");
+				}
+				case GattOperationQueue.WRITE_CHARACTERISTIC: {
+					BluetoothGattCharacteristic c = characteristic(op.mHandle);
+					op.mTarget = c;
+					if(c != null && c.setValue(op.mValue) && mGatt.writeCharacteristic(c))
+						return true;
+					return fail(op, "writeCharacteristic");
+				}
+				case GattOperationQueue.WRITE_DESCRIPTOR: {
+					BluetoothGattDescriptor d = descriptor(op.mHandle);
+					op.mTarget = d;
+					if(d != null && d.setValue(op.mValue) && mGatt.writeDescriptor(d))
+						return true;
+					return fail(op, "writeDescriptor");
+				}
+			}
+			return fail(op, "Unknown operation: " + op.mType);
+		}
+
+		private boolean fail(GattOperationQueue.Operation op, String message) {
+			CallbackContext cc = mOperations.complete(op.mType, op.mTarget);
+			if(cc != null)
+				cc.error(message);
+			return false;
+		}
+
+		// Drop pending notification batches. Called when the connection is closed.
+		void cancelBatchers() {
+			for(NotificationBatcher b : mBatchers.values()) {
+				b.cancel();
+			}
+			mBatchers.clear();
+		}
+
+		// Gives each service a handle and returns them as sent to services().
+		JSONArray servicesToJSON(List<BluetoothGattService> services) {
+			JSONArray a = new JSONArray();
+			for(BluetoothGattService s : services) {
+				try {
+					JSONObject o = new JSONObject();
+					// give the service a handle.
+					o.put("handle", mObjects.put(s));
+					o.put("uuid", s.getUuid().toString());
+					o.put("type", s.getType());
+
+					a.put(o);
+				} catch(JSONException e) {
+					e.printStackTrace();
+					assert(false);
+				}
+			}
+			return a;
 		}
 
 		@Override
 		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			if(newState == BluetoothGatt.STATE_CONNECTED) {
+				prefetchServices(gatt);
+			} else {
+				mPrefetched = false;
+				if(mDiscovering) {
+					// The discovery is lost with the connection, let the queue run again.
+					mDiscovering = false;
+					process();
+				}
+			}
 			if(status == BluetoothGatt.GATT_SUCCESS) {
 				try {
 					JSONObject o = new JSONObject();
@@ -596,6 +821,14 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 				mConnectContext.error(status);
 			}
 		}
+		// Start discovering the services of a device the app has discovered before.
+		// Only when the queue is idle, Android runs one GATT operation at a time.
+		private void prefetchServices(BluetoothGatt gatt) {
+			if(mDiscovering || mOperations.isBusy() || !mKnownDevices.contains(mAddress))
+				return;
+			mPrefetched = false;
+			mDiscovering = gatt.discoverServices();
+		}
 		@Override
 		public void onReadRemoteRssi(BluetoothGatt g, int rssi, int status) {
 			CallbackContext c = mRssiContext;
@@ -609,79 +842,100 @@ public class BLE extends CordovaPlugin implements LeScanCallback {
 		@Override
 		public void onServicesDiscovered(BluetoothGatt g, int status) {
 			if(status == BluetoothGatt.GATT_SUCCESS) {
-				List<BluetoothGattService> services = g.getServices();
-				JSONArray a = new JSONArray();
-				for(BluetoothGattService s : services) {
-					// give the service a handle.
-					if(mServices == null)
-						mServices = new HashMap<Integer, BluetoothGattService>();
-					Object res = mServices.put(mNextHandle, s);
-					assert(res == null);
-
-					try {
-						JSONObject o = new JSONObject();
-						o.put("handle", mNextHandle);
-						o.put("uuid", s.getUuid().toString());
-						o.put("type", s.getType());
-
-						mNextHandle++;
-						a.put(o);
-					} catch(JSONException e) {
-						e.printStackTrace();
-						assert(false);
-					}
-				}
-				mCurrentOpContext.success(a);
+				mKnownDevices.add(mAddress);
+			}
+			if(mDiscovering) {
+				// Started by prefetchServices(), keep the services for the next services() call.
+				mDiscovering = false;
+				mPrefetched = (status == BluetoothGatt.GATT_SUCCESS);
+				process();
+				return;
+			}
+			CallbackContext cc = mOperations.complete(GattOperationQueue.SERVICES, null);
+			if(cc == null) {
+				// Not ours, or the late callback of a timed out operation.
+				process();
+				return;
+			}
+			if(status == BluetoothGatt.GATT_SUCCESS) {
+				cc.success(servicesToJSON(g.getServices()));
 			} else {
-				mCurrentOpContext.error(status);
+				cc.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 		@Override
 		public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+			CallbackContext cc = mOperations.complete(GattOperationQueue.READ_CHARACTERISTIC, c);
+			if(cc == null) {
+				process();
+				return;
+			}
 			if(status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success(c.getValue());
+				cc.success(c.getValue());
 			} else {
-				mCurrentOpContext.error(status);
+				cc.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 		@Override
 		public void onDescriptorRead(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+			CallbackContext cc = mOperations.complete(GattOperationQueue.READ_DESCRIPTOR, d);
+			if(cc == null) {
+				process();
+				return;
+			}
 			if(status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success(d.getValue());
+				cc.success(d.getValue());
 			} else {
-				mCurrentOpContext.error(status);
+				cc.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 		@Override
 		public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+			CallbackContext cc = mOperations.complete(GattOperationQueue.WRITE_CHARACTERISTIC, c);
+			if(cc == null) {
+				process();
+				return;
+			}
 			if(status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success();
+				cc.success();
 			} else {
-				mCurrentOpContext.error(status);
+				cc.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 		@Override
 		public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+			CallbackContext cc = mOperations.complete(GattOperationQueue.WRITE_DESCRIPTOR, d);
+			if(cc == null) {
+				process();
+				return;
+			}
 			if(status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success();
+				cc.success();
 			} else {
-				mCurrentOpContext.error(status);
+				cc.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 		@Override
 		public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {
+			NotificationBatcher batcher = mBatchers.get(c);
+			if(batcher != null) {
+				batcher.add(c.getValue());
+				return;
+			}
 			CallbackContext cc = mNotifications.get(c);
-			keepCallback(cc, c.getValue());
+			ULandingDecoder decoder = mDecoders.get(c);
+			PluginResult r = (decoder != null) ? decoder.decode(c.getValue()) :
+				new PluginResult(PluginResult.Status.OK, c.getValue());
+			if(r != null) {
+				r.setKeepCallback(true);
+				r.setLatestOnly(mLatestOnly.contains(c));
+				cc.sendPluginResult(r);
+			}
 		}
 	};
 }
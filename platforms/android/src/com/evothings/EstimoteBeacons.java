@@ -95,7 +95,7 @@ public class EstimoteBeacons extends CordovaPlugin
 	 * Called when the WebView does a top-level navigation or refreshes.
 	 */
 	@Override
-	public void onReset() {
+	public synchronized void onReset() {
 		Log.i(LOGTAG, "onReset");
 
 		disconnectBeaconManager();
@@ -107,7 +107,7 @@ public class EstimoteBeacons extends CordovaPlugin
 	/**
 	 * The final call you receive before your activity is destroyed.
 	 */
-	public void onDestroy() {
+	public synchronized void onDestroy() {
 		Log.i(LOGTAG, "onDestroy");
 		disconnectConnectedBeacon();
 		disconnectBeaconManager();
@@ -125,9 +125,12 @@ public class EstimoteBeacons extends CordovaPlugin
 
 	/**
 	 * Entry point for JavaScript calls.
+	 * Runs on the plugin's own thread (android-exec in plugin.xml); the
+	 * beacon manager listeners hold the same lock while touching the
+	 * plugin state.
 	 */
 	@Override
-	public boolean execute(
+	public synchronized boolean execute(
 		String action,
 		CordovaArgs args,
 		final CallbackContext callbackContext)
@@ -228,7 +231,7 @@ public class EstimoteBeacons extends CordovaPlugin
 	 * Called when the Bluetooth dialog is closed.
 	 */
 	@Override
-	public void onActivityResult(int requestCode, int resultCode, Intent intent)
+	public synchronized void onActivityResult(int requestCode, int resultCode, Intent intent)
 	{
 		Log.i(LOGTAG, "onActivityResult");
 		if (REQUEST_ENABLE_BLUETOOTH == requestCode) {
@@ -278,9 +281,11 @@ public class EstimoteBeacons extends CordovaPlugin
 			mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
 				@Override
 				public void onServiceReady() {
-					Log.i(LOGTAG, "onServiceReady");
-					mIsConnected = true;
-					startRanging(region, callbackContext);
+					synchronized (EstimoteBeacons.this) {
+						Log.i(LOGTAG, "onServiceReady");
+						mIsConnected = true;
+						startRanging(region, callbackContext);
+					}
 				}
 			});
 		}
@@ -392,9 +397,11 @@ public class EstimoteBeacons extends CordovaPlugin
 			mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
 				@Override
 				public void onServiceReady() {
-					Log.i(LOGTAG, "onServiceReady");
-					mIsConnected = true;
-					startMonitoring(region, callbackContext);
+					synchronized (EstimoteBeacons.this) {
+						Log.i(LOGTAG, "onServiceReady");
+						mIsConnected = true;
+						startMonitoring(region, callbackContext);
+					}
 				}
 			});
 		}
@@ -570,13 +577,23 @@ public class EstimoteBeacons extends CordovaPlugin
 		}
 
 		mBeaconConnectionCallback = callbackContext;
-		mConnectedBeacon = new BeaconConnected(
-			cordova.getActivity(),
-			beacon,
-			new PluginConnectingListener()
-		);
 
-		mConnectedBeacon.authenticate();
+		// BeaconConnection makes its Handler on the calling thread, and
+		// execute() runs on a thread without a Looper.
+		final Beacon connectBeacon = beacon;
+		cordova.getActivity().runOnUiThread(new Runnable() {
+			public void run() {
+				synchronized (EstimoteBeacons.this) {
+					mConnectedBeacon = new BeaconConnected(
+						cordova.getActivity(),
+						connectBeacon,
+						new PluginConnectingListener()
+					);
+
+					mConnectedBeacon.authenticate();
+				}
+			}
+		});
 
 		return;
 	}
@@ -897,35 +914,37 @@ public class EstimoteBeacons extends CordovaPlugin
 	class PluginRangingListener implements BeaconManager.RangingListener {
 		@Override
 		public void onBeaconsDiscovered(Region region, List<Beacon> beacons) {
-			// Note that results are not delivered on UI thread.
-
-			Log.i(LOGTAG, "onBeaconsDiscovered");
-
-			try {
-				// store in plugin
-				mRangedBeacons.clear();
-				mRangedBeacons.addAll(beacons);
-
-				// Find region callback.
-				String key = regionHashMapKey(region);
-				CallbackContext rangingCallback = mRangingCallbackContexts.get(key);
-				if (null == rangingCallback) {
-					// No callback found.
-					Log.e(LOGTAG,
-						"onBeaconsDiscovered no callback found for key: " + key);
-					return;
+			synchronized (EstimoteBeacons.this) {
+				// Note that results are not delivered on UI thread.
+
+				Log.i(LOGTAG, "onBeaconsDiscovered");
+
+				try {
+					// store in plugin
+					mRangedBeacons.clear();
+					mRangedBeacons.addAll(beacons);
+
+					// Find region callback.
+					String key = regionHashMapKey(region);
+					CallbackContext rangingCallback = mRangingCallbackContexts.get(key);
+					if (null == rangingCallback) {
+						// No callback found.
+						Log.e(LOGTAG,
+							"onBeaconsDiscovered no callback found for key: " + key);
+						return;
+					}
+
+					// Create JSON beacon info object.
+					JSONObject json = makeJSONBeaconInfo(region, beacons);
+
+					// Send result to JavaScript.
+					PluginResult r = new PluginResult(PluginResult.Status.OK, json);
+					r.setKeepCallback(true);
+					rangingCallback.sendPluginResult(r);
+				}
+				catch(JSONException e) {
+					Log.e(LOGTAG, "onBeaconsDiscovered error:", e);
 				}
-
-				// Create JSON beacon info object.
-				JSONObject json = makeJSONBeaconInfo(region, beacons);
-
-				// Send result to JavaScript.
-				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-				r.setKeepCallback(true);
-				rangingCallback.sendPluginResult(r);
-			}
-			catch(JSONException e) {
-				Log.e(LOGTAG, "onBeaconsDiscovered error:", e);
 			}
 		}
 	}
@@ -952,26 +971,28 @@ public class EstimoteBeacons extends CordovaPlugin
 		}
 
 		private void sendRegionInfo(Region region, String state) {
-			try {
-				// Find region callback.
-				String key = regionHashMapKey(region);
-				CallbackContext monitoringCallback = mMonitoringCallbackContexts.get(key);
-				if (null == monitoringCallback) {
-					// No callback found.
-					Log.e(LOGTAG, "sendRegionInfo no callback found for key: " + key);
-					return;
+			synchronized (EstimoteBeacons.this) {
+				try {
+					// Find region callback.
+					String key = regionHashMapKey(region);
+					CallbackContext monitoringCallback = mMonitoringCallbackContexts.get(key);
+					if (null == monitoringCallback) {
+						// No callback found.
+						Log.e(LOGTAG, "sendRegionInfo no callback found for key: " + key);
+						return;
+					}
+
+					// Create JSON region info object with the given state.
+					JSONObject json = makeJSONRegion(region, state);
+
+					// Send result to JavaScript.
+					PluginResult r = new PluginResult(PluginResult.Status.OK, json);
+					r.setKeepCallback(true);
+					monitoringCallback.sendPluginResult(r);
+				}
+				catch(JSONException e) {
+					Log.e(LOGTAG, "sendRegionInfo error:", e);
 				}
-
-				// Create JSON region info object with the given state.
-				JSONObject json = makeJSONRegion(region, state);
-
-				// Send result to JavaScript.
-				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-				r.setKeepCallback(true);
-				monitoringCallback.sendPluginResult(r);
-			}
-			catch(JSONException e) {
-				Log.e(LOGTAG, "sendRegionInfo error:", e);
 			}
 		}
 	}
@@ -982,97 +1003,103 @@ public class EstimoteBeacons extends CordovaPlugin
 	class PluginConnectingListener implements BeaconConnection.ConnectionCallback
     {
         @Override public void onAuthenticated(BeaconInfo beaconInfo) {
-            CallbackContext callback = mBeaconConnectionCallback;
+            synchronized (EstimoteBeacons.this) {
+                CallbackContext callback = mBeaconConnectionCallback;
 
-            if (callback == null) {
-                return;
-            }
+                if (callback == null) {
+                    return;
+                }
 
-            try {
-                JSONObject json = new JSONObject();
-
-                // add beaconInfo
-                json.put(
-                        "batteryLifeExpectancyInDays",
-                        beaconInfo.batteryLifeExpectancyInDays
-                        );
-                json.put("color", beaconInfo.color.toString());
-                json.put("macAddress", beaconInfo.macAddress);
-                json.put("major", beaconInfo.major);
-                json.put("minor", beaconInfo.minor);
-                json.put("name", beaconInfo.name);
-                json.put("uuid", beaconInfo.uuid);
-
-                Log.i(LOGTAG, "2");
-                // add beaconInfo.settings
-                BeaconInfoSettings settings = beaconInfo.settings;
-                JSONObject jsonSettings = new JSONObject();
-                jsonSettings.put(
-                        "advertisingIntervalMillis",
-                        settings.advertisingIntervalMillis
-                        );
-                jsonSettings.put("batteryLevel", settings.batteryLevel);
-                jsonSettings.put(
-                        "broadcastingPower",
-                        settings.broadcastingPower
-                        );
-                jsonSettings.put("firmware", settings.firmware);
-                jsonSettings.put("hardware", settings.hardware);
-
-                Log.i(LOGTAG, "3");
-                // finish up response param
-                json.put("settings", jsonSettings);
-
-                Log.i(LOGTAG, "4");
-                Log.i(LOGTAG, json.toString());
-                // pass back to web
-                PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-                callback.sendPluginResult(r);
-            } catch (JSONException e) {
-                Log.i(LOGTAG, "inError");
-                String msg;
-                msg = "connection succeeded, could not marshall object: ";
-                msg = msg.concat(e.getMessage());
+                try {
+                    JSONObject json = new JSONObject();
+
+                    // add beaconInfo
+                    json.put(
+                            "batteryLifeExpectancyInDays",
+                            beaconInfo.batteryLifeExpectancyInDays
+                            );
+                    json.put("color", beaconInfo.color.toString());
+                    json.put("macAddress", beaconInfo.macAddress);
+                    json.put("major", beaconInfo.major);
+                    json.put("minor", beaconInfo.minor);
+                    json.put("name", beaconInfo.name);
+                    json.put("uuid", beaconInfo.uuid);
+
+                    Log.i(LOGTAG, "2");
+                    // add beaconInfo.settings
+                    BeaconInfoSettings settings = beaconInfo.settings;
+                    JSONObject jsonSettings = new JSONObject();
+                    jsonSettings.put(
+                            "advertisingIntervalMillis",
+                            settings.advertisingIntervalMillis
+                            );
+                    jsonSettings.put("batteryLevel", settings.batteryLevel);
+                    jsonSettings.put(
+                            "broadcastingPower",
+                            settings.broadcastingPower
+                            );
+                    jsonSettings.put("firmware", settings.firmware);
+                    jsonSettings.put("hardware", settings.hardware);
+
+                    Log.i(LOGTAG, "3");
+                    // finish up response param
+                    json.put("settings", jsonSettings);
+
+                    Log.i(LOGTAG, "4");
+                    Log.i(LOGTAG, json.toString());
+                    // pass back to web
+                    PluginResult r = new PluginResult(PluginResult.Status.OK, json);
+                    callback.sendPluginResult(r);
+                } catch (JSONException e) {
+                    Log.i(LOGTAG, "inError");
+                    String msg;
+                    msg = "connection succeeded, could not marshall object: ";
+                    msg = msg.concat(e.getMessage());
+
+                    callback.error(msg);
+                }
 
-                callback.error(msg);
+                // cleanup
+                mBeaconConnectionCallback = null;
             }
-
-            // cleanup
-            mBeaconConnectionCallback = null;
         }
 
         @Override public void onAuthenticationError(EstimoteDeviceException e) {
-            CallbackContext callback = mBeaconConnectionCallback;
+            synchronized (EstimoteBeacons.this) {
+                CallbackContext callback = mBeaconConnectionCallback;
 
-            if (callback == null) {
-                return;
-            }
+                if (callback == null) {
+                    return;
+                }
 
-            // pass back to js
-            callback.error(e.getMessage());
+                // pass back to js
+                callback.error(e.getMessage());
 
-            // print stacktrace to android logs
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-            Log.e(LOGTAG, sw.toString());
+                // print stacktrace to android logs
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                e.printStackTrace(pw);
+                Log.e(LOGTAG, sw.toString());
 
-            // cleanup
-            mBeaconConnectionCallback = null;
+                // cleanup
+                mBeaconConnectionCallback = null;
+            }
         }
 
         @Override public void onDisconnected() {
-            CallbackContext callback = mBeaconDisconnectionCallback;
+            synchronized (EstimoteBeacons.this) {
+                CallbackContext callback = mBeaconDisconnectionCallback;
 
-            if (callback == null) {
-                return;
-            }
+                if (callback == null) {
+                    return;
+                }
 
-            PluginResult r = new PluginResult(PluginResult.Status.OK);
-            callback.sendPluginResult(r);
+                PluginResult r = new PluginResult(PluginResult.Status.OK);
+                callback.sendPluginResult(r);
 
-            // cleanup
-            mBeaconDisconnectionCallback = null;
+                // cleanup
+                mBeaconDisconnectionCallback = null;
+            }
         }
     }
 
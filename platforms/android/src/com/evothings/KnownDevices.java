@@ -0,0 +1,165 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+// Remembers the addresses of the devices whose services the app has discovered, in a small
+// file in the app's private storage, so it survives restarts of the app. A known device has
+// its services discovered as soon as it connects, see GattHandler.prefetchServices().
+class KnownDevices {
+	// "EKD" and the file format version. Files with another header are ignored.
+	private static final int MAGIC = 0x454b4400;
+	private static final int VERSION = 1;
+
+	// The least recently discovered devices are forgotten beyond this.
+	static final int MAX_DEVICES = 32;
+
+	private final File mFile;
+	private final Executor mExecutor;
+
+	// The addresses, least recently used first. Loaded on first use.
+	private LinkedHashMap<String, Boolean> mDevices;
+
+	// True while a write of the file is queued, so a burst of additions is written once.
+	private boolean mSavePending;
+
+	// Held while the file is written, the executor may run two writes at once.
+	private final Object mFileLock = new Object();
+
+	KnownDevices(File file, Executor executor) {
+		mFile = file;
+		mExecutor = executor;
+	}
+
+	synchronized boolean contains(String address) {
+		return devices().containsKey(address);
+	}
+
+	// Records a discovery of the device's services. The file is rewritten if the device is new.
+	synchronized void add(String address) {
+		if(devices().put(address, Boolean.TRUE) == null) {
+			scheduleSave();
+		}
+	}
+
+	private LinkedHashMap<String, Boolean> devices() {
+		if(mDevices == null) {
+			mDevices = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > MAX_DEVICES;
+				}
+			};
+			load();
+		}
+		return mDevices;
+	}
+
+	private void load() {
+		if(!mFile.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				mDevices.put(in.readUTF(), Boolean.TRUE);
+			}
+		} catch(IOException e) {
+			// A damaged file only costs a discovery.
+			e.printStackTrace();
+			mDevices.clear();
+		} finally {
+			close(in);
+		}
+	}
+
+	// Writes the file on the executor, from a copy taken when the write starts.
+	private void scheduleSave() {
+		if(mSavePending) {
+			return;
+		}
+		mSavePending = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	private void save() {
+		synchronized(mFileLock) {
+			List<String> devices;
+			synchronized(this) {
+				mSavePending = false;
+				devices = new ArrayList<String>(mDevices.keySet());
+			}
+
+			// Written next to the file and renamed over it, so a crash can't leave half a file.
+			File tmp = new File(mFile.getPath() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(devices.size());
+				for(String address : devices) {
+					out.writeUTF(address);
+				}
+				out.close();
+				out = null;
+				if(!tmp.renameTo(mFile)) {
+					tmp.delete();
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+				tmp.delete();
+			} finally {
+				close(out);
+			}
+		}
+	}
+
+	private static void close(Closeable c) {
+		if(c != null) {
+			try {
+				c.close();
+			} catch(IOException e) {
+				// Nothing left to do.
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+
+// Decodes uLanding radar altimeter frames in native code.
+// A frame is a 0xAD header byte followed by the raw range as a little-endian
+// unsigned 16-bit integer. The altitude in meters is the raw range multiplied
+// by a per-unit coefficient.
+class ULandingDecoder {
+	// Name used to select this decoder in enableNotification() options.
+	static final String NAME = "ulanding";
+
+	static final int FRAME_HEADER = 0xAD;
+	static final int FRAME_MIN_LENGTH = 3;
+
+	// Confirm this is the coefficient for your specific uLanding.
+	static final double DEFAULT_COEFFICIENT = 0.045;
+
+	private final double mCoefficient;
+
+	ULandingDecoder(double coefficient) {
+		mCoefficient = coefficient;
+	}
+
+	// Returns a decoder configured from enableNotification() options,
+	// or null if the options do not ask for uLanding decoding.
+	static ULandingDecoder fromOptions(JSONObject options) {
+		if(options == null || !NAME.equals(options.optString("decoder"))) {
+			return null;
+		}
+		return new ULandingDecoder(options.optDouble("coefficient", DEFAULT_COEFFICIENT));
+	}
+
+	// True if data starts with a uLanding header and is long enough to carry a range.
+	static boolean isFrame(byte[] data) {
+		return data != null && data.length >= FRAME_MIN_LENGTH && (data[0] & 0xFF) == FRAME_HEADER;
+	}
+
+	// Raw range of a frame. Only valid if isFrame(data) is true.
+	static int rawRange(byte[] data) {
+		return ((data[2] & 0xFF) << 8) | (data[1] & 0xFF);
+	}
+
+	// Altitude in meters for a raw range. Never negative.
+	float altitude(int raw) {
+		double value = raw * mCoefficient;
+		if(value < 0) {
+			value = 0;
+		}
+		return (float)value;
+	}
+
+	// Appends the numbers sent to JavaScript for a frame, altitude then raw, to parts.
+	// Returns false, and appends nothing, if data is not a valid frame.
+	boolean decodeInto(byte[] data, List<PluginResult> parts) {
+		if(!isFrame(data)) {
+			return false;
+		}
+		int raw = rawRange(data);
+		parts.add(new PluginResult(PluginResult.Status.OK, altitude(raw)));
+		parts.add(new PluginResult(PluginResult.Status.OK, raw));
+		return true;
+	}
+
+	// Builds the result sent to JavaScript for a frame: a multipart message
+	// that arrives as the two number arguments (altitude, raw).
+	// Returns null if data is not a valid frame; such notifications are dropped.
+	PluginResult decode(byte[] data) {
+		List<PluginResult> parts = new ArrayList<PluginResult>(2);
+		if(!decodeInto(data, parts)) {
+			return null;
+		}
+		return new PluginResult(PluginResult.Status.OK, parts);
+	}
+}
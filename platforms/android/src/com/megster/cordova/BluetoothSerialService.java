@@ -3,8 +3,10 @@ package com.megster.cordova;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.Arrays;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -41,14 +43,26 @@ public class BluetoothSerialService {
     // Well known SPP UUID
     private static final UUID UUID_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+    // Size of the chunks the socket is read into, and how many idle chunks are kept for reuse
+    private static final int CHUNK_SIZE = 1024;
+    private static final int CHUNK_POOL_SIZE = 8;
+
+    // Queued writes smaller than this are merged into a single socket write
+    private static final int MERGE_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 64 * 1024;
+
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
+    private final Handler mDataHandler;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
+    private final ArrayDeque<Chunk> mChunkPool = new ArrayDeque<Chunk>(CHUNK_POOL_SIZE);
+    private volatile int mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private volatile boolean mEchoWrites;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -61,9 +75,21 @@ public class BluetoothSerialService {
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothSerialService(Handler handler) {
+        this(handler, handler);
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothSerial session that sends
+     * MESSAGE_READ and MESSAGE_WRITE to their own Handler, so received
+     * data does not have to wait for the UI thread.
+     * @param handler  A Handler for state changes and errors
+     * @param dataHandler  A Handler for MESSAGE_READ and MESSAGE_WRITE
+     */
+    public BluetoothSerialService(Handler handler, Handler dataHandler) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
+        mDataHandler = dataHandler;
     }
 
     /**
@@ -201,20 +227,109 @@ public class BluetoothSerialService {
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     * @param out The bytes to write
+     * Queue a write on the ConnectedThread in an unsynchronized manner.
+     * The bytes are sent by the connection's writer thread, so this never
+     * blocks on the socket.
+     * @param out The bytes to write, which must not be modified afterwards
+     * @return The number of bytes waiting to be sent, including these,
+     *         0 if not connected, or -1 if the write queue is full
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
+    public int write(byte[] out) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
+            if (mState != STATE_CONNECTED) return 0;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        return r.write(out);
+    }
+
+    /**
+     * Set how many bytes may wait to be sent before write() rejects more.
+     * A single write larger than this is still accepted when the queue is empty.
+     */
+    public void setMaxQueuedBytes(int maxQueuedBytes) {
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    public int getMaxQueuedBytes() {
+        return mMaxQueuedBytes;
+    }
+
+    /**
+     * Enable or disable sending MESSAGE_WRITE to the data Handler for each write
+     * once it has been sent. Off by default.
+     */
+    public void setEchoWrites(boolean echoWrites) {
+        mEchoWrites = echoWrites;
+    }
+
+    /**
+     * Write queue metrics for the current connection, all zero when not connected.
+     */
+    public WriteQueueStats getWriteQueueStats() {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mConnectedThread;
+        }
+        WriteQueueStats stats = new WriteQueueStats();
+        stats.maxQueuedBytes = mMaxQueuedBytes;
+        if (r != null) {
+            r.mmWriter.getStats(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * A snapshot of the write queue of a connection.
+     */
+    public static class WriteQueueStats {
+        public int queuedWrites;      // writes waiting to be sent
+        public int queuedBytes;       // bytes waiting to be sent, including the socket write in progress
+        public int maxQueuedBytes;    // limit on queuedBytes
+        public int peakQueuedBytes;   // highest queuedBytes seen
+        public long bytesWritten;     // bytes sent to the socket
+        public long socketWrites;     // socket writes, fewer than writes when small writes are merged
+        public long rejectedWrites;   // writes refused because the queue was full
+    }
+
+    /**
+     * A block of bytes read from the socket, sent to the data Handler with MESSAGE_READ.
+     * Chunks are pooled; the receiver must hand each one back with recycle()
+     * once it is done with the data.
+     */
+    public static class Chunk {
+        public final byte[] data;
+        public int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private Chunk obtainChunk() {
+        synchronized (mChunkPool) {
+            Chunk chunk = mChunkPool.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new Chunk(CHUNK_SIZE);
+    }
+
+    /**
+     * Return a chunk received with MESSAGE_READ to the pool.
+     * @param chunk  The chunk, which must not be used afterwards
+     */
+    public void recycle(Chunk chunk) {
+        synchronized (mChunkPool) {
+            if (mChunkPool.size() < CHUNK_POOL_SIZE) {
+                mChunkPool.push(chunk);
+            }
+        }
     }
 
     /**
@@ -420,6 +535,7 @@ public class BluetoothSerialService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final WriteThread mmWriter;
 
         public ConnectedThread(BluetoothSocket socket, String socketType) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
@@ -437,30 +553,34 @@ public class BluetoothSerialService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmWriter = new WriteThread(socket, tmpOut);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
             int bytes;
 
+            mmWriter.start();
+
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    String data = new String(buffer, 0, bytes);
-
-                    // Send the new data String to the UI Activity
-                    mHandler.obtainMessage(BluetoothSerial.MESSAGE_READ, data).sendToTarget();
-
-                    // Send the raw bytestream to the UI Activity.
-                    // We make a copy because the full array can have extra data at the end
-                    // when / if we read less than its size.
-                    if (bytes > 0) {
-                        byte[] rawdata = Arrays.copyOf(buffer, bytes);
-                        mHandler.obtainMessage(BluetoothSerial.MESSAGE_READ_RAW, rawdata).sendToTarget();
+                    // Read from the InputStream into a pooled chunk.
+                    // The receiver decides whether it needs the data as text, raw bytes or both.
+                    Chunk chunk = obtainChunk();
+                    bytes = mmInStream.read(chunk.data);
+                    if (bytes < 0) {
+                        recycle(chunk);
+                        throw new IOException("end of stream");
                     }
+                    if (bytes == 0) {
+                        recycle(chunk);
+                        continue;
+                    }
+                    chunk.length = bytes;
+
+                    // Send the new data to the data Handler
+                    mDataHandler.obtainMessage(BluetoothSerial.MESSAGE_READ, chunk).sendToTarget();
 
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
@@ -473,22 +593,16 @@ public class BluetoothSerialService {
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a write to the connected OutStream.
          * @param buffer  The bytes to write
+         * @return The number of bytes waiting to be sent, or -1 if the queue is full
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        public int write(byte[] buffer) {
+            return mmWriter.enqueue(buffer);
         }
 
         public void cancel() {
+            mmWriter.cancel();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -496,4 +610,153 @@ public class BluetoothSerialService {
             }
         }
     }
+
+    /**
+     * This thread sends the queued writes of a connection, so callers of
+     * write() never block on the socket. Writes that are waiting together
+     * are merged into one socket write when they fit in the merge buffer.
+     */
+    private class WriteThread extends Thread {
+        private final BluetoothSocket mmSocket;
+        private final OutputStream mmOutStream;
+        private final ArrayDeque<byte[]> mmQueue = new ArrayDeque<byte[]>();
+        private final byte[] mmMergeBuffer = new byte[MERGE_BUFFER_SIZE];
+        private final List<byte[]> mmSent = new ArrayList<byte[]>();
+        private boolean mmCancelled;
+
+        // Guarded by mmQueue
+        private int mmQueuedBytes;
+        private int mmPeakQueuedBytes;
+        private long mmBytesWritten;
+        private long mmSocketWrites;
+        private long mmRejectedWrites;
+
+        public WriteThread(BluetoothSocket socket, OutputStream out) {
+            mmSocket = socket;
+            mmOutStream = out;
+        }
+
+        public int enqueue(byte[] buffer) {
+            synchronized (mmQueue) {
+                if (mmCancelled) {
+                    return 0;
+                }
+                if (mmQueuedBytes > 0 && mmQueuedBytes + buffer.length > mMaxQueuedBytes) {
+                    mmRejectedWrites++;
+                    return -1;
+                }
+                mmQueue.add(buffer);
+                mmQueuedBytes += buffer.length;
+                if (mmQueuedBytes > mmPeakQueuedBytes) {
+                    mmPeakQueuedBytes = mmQueuedBytes;
+                }
+                mmQueue.notify();
+                return mmQueuedBytes;
+            }
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mWriteThread");
+            setName("WriteThread");
+
+            while (true) {
+                byte[] out;
+                int length;
+                boolean echo = mEchoWrites;
+
+                synchronized (mmQueue) {
+                    while (mmQueue.isEmpty() && !mmCancelled) {
+                        try {
+                            mmQueue.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mmCancelled) {
+                        return;
+                    }
+
+                    byte[] first = mmQueue.poll();
+                    if (echo) {
+                        mmSent.add(first);
+                    }
+                    byte[] next = mmQueue.peek();
+                    if (next == null || first.length + next.length > MERGE_BUFFER_SIZE) {
+                        out = first;
+                        length = first.length;
+                    } else {
+                        // merge the small writes that are waiting
+                        System.arraycopy(first, 0, mmMergeBuffer, 0, first.length);
+                        length = first.length;
+                        while (next != null && length + next.length <= MERGE_BUFFER_SIZE) {
+                            mmQueue.poll();
+                            if (echo) {
+                                mmSent.add(next);
+                            }
+                            System.arraycopy(next, 0, mmMergeBuffer, length, next.length);
+                            length += next.length;
+                            next = mmQueue.peek();
+                        }
+                        out = mmMergeBuffer;
+                    }
+                }
+
+                try {
+                    mmOutStream.write(out, 0, length);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                    // Closing the socket ends the read loop in ConnectedThread,
+                    // which reports the connection as lost.
+                    cancel();
+                    try {
+                        mmSocket.close();
+                    } catch (IOException e2) {
+                        Log.e(TAG, "close() of connect socket failed", e2);
+                    }
+                    return;
+                }
+
+                synchronized (mmQueue) {
+                    if (mmCancelled) {
+                        // cancel() already dropped the queued byte count
+                        return;
+                    }
+                    mmQueuedBytes -= length;
+                    mmBytesWritten += length;
+                    mmSocketWrites++;
+                }
+
+                if (echo) {
+                    // Share the sent messages back to the UI Activity
+                    for (byte[] buffer : mmSent) {
+                        mDataHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+                    }
+                    mmSent.clear();
+                }
+            }
+        }
+
+        public void getStats(WriteQueueStats stats) {
+            synchronized (mmQueue) {
+                stats.queuedWrites = mmQueue.size();
+                stats.queuedBytes = mmQueuedBytes;
+                stats.peakQueuedBytes = mmPeakQueuedBytes;
+                stats.bytesWritten = mmBytesWritten;
+                stats.socketWrites = mmSocketWrites;
+                stats.rejectedWrites = mmRejectedWrites;
+            }
+        }
+
+        /**
+         * Stop the thread, dropping any writes that have not been sent.
+         */
+        public void cancel() {
+            synchronized (mmQueue) {
+                mmCancelled = true;
+                mmQueue.clear();
+                mmQueuedBytes = 0;
+                mmQueue.notify();
+            }
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package com.megster.cordova;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity FIFO of the bytes received over the serial connection.
+ *
+ * Data stays as bytes until it is read out, and a delimiter search resumes
+ * where the previous search for the same delimiter stopped, so the cost of
+ * readUntil does not grow with the amount of unread data. When more data
+ * arrives than fits, the OverflowPolicy decides what is dropped.
+ */
+public class ByteRingBuffer {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // discard the oldest unread bytes to make room
+        DROP_NEWEST,    // discard the incoming bytes that don't fit
+        ERROR           // like DROP_NEWEST, and the caller reports an error
+    }
+
+    // Text is read out, and delimiters are matched, as UTF-8
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private byte[] data;
+    private int head;   // index of the oldest byte
+    private int size;   // number of unread bytes
+    private OverflowPolicy policy;
+
+    // Delimiter of the last search, and how many leading bytes are known not to start it
+    private byte[] scanDelimiter;
+    private int scanned;
+
+    public ByteRingBuffer(int capacity, OverflowPolicy policy) {
+        this.data = new byte[capacity];
+        this.policy = policy;
+    }
+
+    public synchronized int capacity() {
+        return data.length;
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Change the capacity, keeping the newest unread bytes that still fit.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity == data.length) {
+            return;
+        }
+        int keep = Math.min(size, capacity);
+        byte[] resized = new byte[capacity];
+        copyOut(size - keep, resized, 0, keep);
+        data = resized;
+        head = 0;
+        size = keep;
+        resetScan();
+        dropPartialCharacter();
+    }
+
+    /**
+     * Number of unread bytes. A character outside ASCII takes 2 to 4 of them.
+     */
+    public synchronized int available() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        resetScan();
+    }
+
+    /**
+     * Append bytes, applying the overflow policy if they don't all fit.
+     * @return the number of bytes dropped, either old or incoming ones
+     */
+    public synchronized int write(byte[] src, int offset, int length) {
+        int capacity = data.length;
+        int dropped = 0;
+
+        if (size + length > capacity) {
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                if (length > capacity) {
+                    // only the tail of the incoming data survives
+                    dropped = size + length - capacity;
+                    offset += length - capacity;
+                    length = capacity;
+                    head = 0;
+                    size = 0;
+                    resetScan();
+                } else {
+                    dropped = size + length - capacity;
+                    consume(dropped);
+                }
+            } else {
+                dropped = size + length - capacity;
+                length = capacity - size;
+            }
+        }
+
+        int tail = head + size;
+        if (tail >= capacity) {
+            tail -= capacity;
+        }
+        int first = Math.min(length, capacity - tail);
+        System.arraycopy(src, offset, data, tail, first);
+        System.arraycopy(src, offset + first, data, 0, length - first);
+        size += length;
+
+        if (dropped > 0 && policy == OverflowPolicy.DROP_OLDEST) {
+            dropped += dropPartialCharacter();
+        }
+        return dropped;
+    }
+
+    /**
+     * Find the first occurrence of the delimiter in the unread bytes.
+     * Repeated searches for the same delimiter only look at bytes that
+     * arrived since the previous search.
+     * @return the offset of the delimiter from the oldest unread byte, or -1
+     */
+    public synchronized int indexOf(byte[] delimiter) {
+        if (delimiter.length == 0) {
+            return -1;
+        }
+        if (!Arrays.equals(delimiter, scanDelimiter)) {
+            scanDelimiter = delimiter.clone();
+            scanned = 0;
+        }
+
+        int last = size - delimiter.length;
+        for (int i = scanned; i <= last; i++) {
+            if (matches(i, delimiter)) {
+                scanned = i;
+                return i;
+            }
+        }
+        scanned = Math.max(0, last + 1);
+        return -1;
+    }
+
+    /**
+     * Remove and return all unread bytes as text.
+     */
+    public synchronized String read() {
+        return readString(size);
+    }
+
+    /**
+     * Remove and return the unread bytes up to and including the delimiter.
+     * @return the text, or null if the delimiter hasn't been received
+     */
+    public synchronized String readUntil(byte[] delimiter) {
+        int index = indexOf(delimiter);
+        if (index < 0) {
+            return null;
+        }
+        return readString(index + delimiter.length);
+    }
+
+    /**
+     * Remove and return the first length unread bytes as text.
+     */
+    public synchronized String readString(int length) {
+        String s;
+        if (head + length <= data.length) {
+            // contiguous, decode straight out of the ring
+            s = new String(data, head, length, CHARSET);
+        } else {
+            byte[] slice = new byte[length];
+            copyOut(0, slice, 0, length);
+            s = new String(slice, CHARSET);
+        }
+        consume(length);
+        return s;
+    }
+
+    /**
+     * Remove and return the first length unread bytes.
+     */
+    public synchronized byte[] readBytes(int length) {
+        byte[] slice = new byte[length];
+        copyOut(0, slice, 0, length);
+        consume(length);
+        return slice;
+    }
+
+    /**
+     * Return the unread byte at the given offset from the oldest one, without removing it.
+     */
+    public synchronized int peek(int index) {
+        int i = head + index;
+        if (i >= data.length) {
+            i -= data.length;
+        }
+        return data[i] & 0xFF;
+    }
+
+    /**
+     * Discard the first length unread bytes.
+     */
+    public synchronized void skip(int length) {
+        consume(Math.min(length, size));
+    }
+
+    private void consume(int length) {
+        head += length;
+        if (head >= data.length) {
+            head -= data.length;
+        }
+        size -= length;
+        scanned = Math.max(0, scanned - length);
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    // After the oldest bytes were dropped, the first unread byte may be in the middle of a
+    // UTF-8 character, so drop the rest of that character too. That is at most 3 bytes,
+    // so binary data loses little.
+    private int dropPartialCharacter() {
+        int count = 0;
+        while (count < 3 && size > 0 && (peek(0) & 0xC0) == 0x80) {
+            consume(1);
+            count++;
+        }
+        return count;
+    }
+
+    private boolean matches(int index, byte[] delimiter) {
+        for (int j = 0; j < delimiter.length; j++) {
+            if (peek(index + j) != (delimiter[j] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyOut(int index, byte[] dest, int offset, int length) {
+        int start = head + index;
+        if (start >= data.length) {
+            start -= data.length;
+        }
+        int first = Math.min(length, data.length - start);
+        System.arraycopy(data, start, dest, offset, first);
+        System.arraycopy(data, 0, dest, offset + first, length - first);
+    }
+
+    private void resetScan() {
+        scanDelimiter = null;
+        scanned = 0;
+    }
+}
@@ -0,0 +1,312 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * The AD structures of the raw advertising data, decoded once in native code.
+ * See the Bluetooth Specification, v4.0, Volume 3, Part C, Section 11.
+ *
+ * The JSON uses the same keys as the advertising dictionary on iOS.
+ *
+ * Ported from com.evothings.AdvertisementData in cordova-plugin-ble, and named after the
+ * advertisingData key of this plugin. Fixes to the parsing or the filters belong in both.
+ */
+class AdvertisingData {
+
+    // AD types
+    static final int TYPE_FLAGS = 0x01;
+    static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    static final int TYPE_UUID16 = 0x03;
+    static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    static final int TYPE_UUID32 = 0x05;
+    static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    static final int TYPE_UUID128 = 0x07;
+    static final int TYPE_SHORT_NAME = 0x08;
+    static final int TYPE_NAME = 0x09;
+    static final int TYPE_TX_POWER = 0x0A;
+    static final int TYPE_SERVICE_DATA16 = 0x16;
+    static final int TYPE_SERVICE_DATA32 = 0x20;
+    static final int TYPE_SERVICE_DATA128 = 0x21;
+    static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // the base UUID as bits, a 16 or 32 bit UUID goes in the top 32 bits
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805f9b34fbL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    int flags = -1;                             // -1 if not advertised
+    String localName;
+    int txPowerLevel = Integer.MIN_VALUE;       // Integer.MIN_VALUE if not advertised
+    final List<UUID> serviceUUIDs = new ArrayList<UUID>();
+    final Map<UUID, byte[]> serviceData = new LinkedHashMap<UUID, byte[]>();
+    byte[] manufacturerData;                    // the last one, company identifier included
+
+    /**
+     * Decode the advertising data. A malformed structure ends the parsing, keeping what was decoded.
+     */
+    static AdvertisingData parse(byte[] scanRecord) {
+        AdvertisingData data = new AdvertisingData();
+        int position = 0;
+        while (position < scanRecord.length) {
+            int length = scanRecord[position] & 0xFF;
+            if (length == 0 || position + 1 + length > scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[position + 1] & 0xFF;
+            data.decode(scanRecord, type, position + 2, length - 1);
+            position += 1 + length;
+        }
+        return data;
+    }
+
+    private void decode(byte[] bytes, int type, int offset, int length) {
+        switch (type) {
+            case TYPE_FLAGS:
+                if (length >= 1) {
+                    flags = bytes[offset] & 0xFF;
+                }
+                break;
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16:
+                for (int i = 0; i + 2 <= length; i += 2) {
+                    serviceUUIDs.add(shortUUID(littleEndian(bytes, offset + i, 2)));
+                }
+                break;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32:
+                for (int i = 0; i + 4 <= length; i += 4) {
+                    serviceUUIDs.add(shortUUID(littleEndian(bytes, offset + i, 4)));
+                }
+                break;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128:
+                for (int i = 0; i + 16 <= length; i += 16) {
+                    serviceUUIDs.add(uuid128(bytes, offset + i));
+                }
+                break;
+            case TYPE_SHORT_NAME:
+            case TYPE_NAME:
+                localName = new String(bytes, offset, length, UTF8);
+                break;
+            case TYPE_TX_POWER:
+                if (length >= 1) {
+                    txPowerLevel = bytes[offset];
+                }
+                break;
+            case TYPE_SERVICE_DATA16:
+            case TYPE_SERVICE_DATA32:
+            case TYPE_SERVICE_DATA128:
+                int uuidLength = serviceDataUUIDLength(type);
+                if (length >= uuidLength) {
+                    serviceData.put(serviceDataUUID(bytes, type, offset),
+                            Arrays.copyOfRange(bytes, offset + uuidLength, offset + length));
+                }
+                break;
+            case TYPE_MANUFACTURER_DATA:
+                manufacturerData = Arrays.copyOfRange(bytes, offset, offset + length);
+                break;
+        }
+    }
+
+    JSONObject asJSONObject() throws JSONException {
+        JSONObject json = new JSONObject();
+        if (flags >= 0) {
+            json.put("flags", flags);
+        }
+        if (localName != null) {
+            json.put("kCBAdvDataLocalName", localName);
+        }
+        if (txPowerLevel != Integer.MIN_VALUE) {
+            json.put("kCBAdvDataTxPowerLevel", txPowerLevel);
+        }
+        if (!serviceUUIDs.isEmpty()) {
+            JSONArray uuids = new JSONArray();
+            for (UUID uuid : serviceUUIDs) {
+                uuids.put(UUIDHelper.uuidToString(uuid));
+            }
+            json.put("kCBAdvDataServiceUUIDs", uuids);
+        }
+        if (!serviceData.isEmpty()) {
+            JSONObject data = new JSONObject();
+            for (Map.Entry<UUID, byte[]> entry : serviceData.entrySet()) {
+                data.put(UUIDHelper.uuidToString(entry.getKey()), Peripheral.byteArrayToJSON(entry.getValue()));
+            }
+            json.put("kCBAdvDataServiceData", data);
+        }
+        if (manufacturerData != null) {
+            json.put("kCBAdvDataManufacturerData", Peripheral.byteArrayToJSON(manufacturerData));
+        }
+        return json;
+    }
+
+    /**
+     * A scan filter, checked against the raw advertising data before anything is decoded or sent
+     * to JavaScript. It matches a manufacturer data structure with the company identifier, or a
+     * service data structure for the service UUID, whose data starts with the prefix.
+     */
+    static class Filter {
+
+        final int manufacturerId;       // -1 for a service data filter
+        final UUID serviceUUID;         // null for a manufacturer data filter
+        final byte[] prefix;
+
+        Filter(int manufacturerId, UUID serviceUUID, byte[] prefix) {
+            this.manufacturerId = manufacturerId;
+            this.serviceUUID = serviceUUID;
+            this.prefix = prefix;
+        }
+
+        /**
+         * The filters in the "filters" array of the scan options, or null if there are none.
+         * @throws IllegalArgumentException if a filter is not valid
+         */
+        static Filter[] fromOptions(JSONObject options) {
+            JSONArray array = options.optJSONArray("filters");
+            if (array == null || array.length() == 0) {
+                return null;
+            }
+            Filter[] filters = new Filter[array.length()];
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject filter = array.optJSONObject(i);
+                if (filter == null) {
+                    throw new IllegalArgumentException("A filter must be an object");
+                }
+                if (filter.has("manufacturerId")) {
+                    int id = filter.optInt("manufacturerId", -1);
+                    if (id < 0 || id > 0xFFFF) {
+                        throw new IllegalArgumentException("manufacturerId must be 0 to 65535");
+                    }
+                    filters[i] = new Filter(id, null, prefix(filter.optJSONArray("manufacturerData")));
+                } else if (filter.has("serviceDataUUID")) {
+                    UUID uuid = UUIDHelper.uuidFromString(filter.optString("serviceDataUUID"));
+                    filters[i] = new Filter(-1, uuid, prefix(filter.optJSONArray("serviceData")));
+                } else {
+                    throw new IllegalArgumentException("A filter needs manufacturerId or serviceDataUUID");
+                }
+            }
+            return filters;
+        }
+
+        /**
+         * True if any of the filters matches the advertising data.
+         */
+        static boolean matchesAny(Filter[] filters, byte[] scanRecord) {
+            int position = 0;
+            while (position < scanRecord.length) {
+                int length = scanRecord[position] & 0xFF;
+                if (length == 0 || position + 1 + length > scanRecord.length) {
+                    return false;
+                }
+                int type = scanRecord[position + 1] & 0xFF;
+                for (Filter filter : filters) {
+                    if (filter.matches(scanRecord, type, position + 2, length - 1)) {
+                        return true;
+                    }
+                }
+                position += 1 + length;
+            }
+            return false;
+        }
+
+        private boolean matches(byte[] bytes, int type, int offset, int length) {
+            if (serviceUUID == null) {
+                return type == TYPE_MANUFACTURER_DATA && length >= 2
+                        && littleEndian(bytes, offset, 2) == manufacturerId
+                        && startsWith(bytes, offset + 2, length - 2);
+            }
+            if (type != TYPE_SERVICE_DATA16 && type != TYPE_SERVICE_DATA32 && type != TYPE_SERVICE_DATA128) {
+                return false;
+            }
+            int uuidLength = serviceDataUUIDLength(type);
+            return length >= uuidLength
+                    && uuidEquals(bytes, type, offset, serviceUUID)
+                    && startsWith(bytes, offset + uuidLength, length - uuidLength);
+        }
+
+        private boolean startsWith(byte[] bytes, int offset, int length) {
+            if (length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (bytes[offset + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[] prefix(JSONArray array) {
+            if (array == null) {
+                return new byte[0];
+            }
+            byte[] prefix = new byte[array.length()];
+            for (int i = 0; i < prefix.length; i++) {
+                int value = array.optInt(i, -1);
+                if (value < 0 || value > 0xFF) {
+                    throw new IllegalArgumentException("Filter data must be bytes, 0 to 255");
+                }
+                prefix[i] = (byte) value;
+            }
+            return prefix;
+        }
+    }
+
+    private static int serviceDataUUIDLength(int type) {
+        return type == TYPE_SERVICE_DATA16 ? 2 : (type == TYPE_SERVICE_DATA32 ? 4 : 16);
+    }
+
+    private static UUID serviceDataUUID(byte[] bytes, int type, int offset) {
+        if (type == TYPE_SERVICE_DATA128) {
+            return uuid128(bytes, offset);
+        }
+        return shortUUID(littleEndian(bytes, offset, serviceDataUUIDLength(type)));
+    }
+
+    // compare without creating a UUID
+    private static boolean uuidEquals(byte[] bytes, int type, int offset, UUID uuid) {
+        if (type == TYPE_SERVICE_DATA128) {
+            return littleEndian(bytes, offset, 8) == uuid.getLeastSignificantBits()
+                    && littleEndian(bytes, offset + 8, 8) == uuid.getMostSignificantBits();
+        }
+        long value = littleEndian(bytes, offset, serviceDataUUIDLength(type));
+        return uuid.getLeastSignificantBits() == BASE_LSB
+                && uuid.getMostSignificantBits() == ((value << 32) | BASE_MSB);
+    }
+
+    private static UUID shortUUID(long value) {
+        return new UUID((value << 32) | BASE_MSB, BASE_LSB);
+    }
+
+    // 128 bit UUIDs are advertised least significant byte first
+    private static UUID uuid128(byte[] bytes, int offset) {
+        return new UUID(littleEndian(bytes, offset + 8, 8), littleEndian(bytes, offset, 8));
+    }
+
+    private static long littleEndian(byte[] bytes, int offset, int count) {
+        long value = 0;
+        for (int i = offset + count - 1; i >= offset; i--) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
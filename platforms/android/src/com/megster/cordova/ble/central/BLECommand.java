@@ -1,5 +1,6 @@
 package com.megster.cordova.ble.central;
 
+import android.bluetooth.BluetoothGattCharacteristic;
 import org.apache.cordova.CallbackContext;
 
 import java.util.UUID;
@@ -16,6 +17,12 @@ class BLECommand {
     // BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
     // BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
+    // Priorities, highest first. See GattScheduler.
+    public static final int PRIORITY_NOTIFY = 0;   // notification setup
+    public static final int PRIORITY_DEFAULT = 1;  // reads and writes with response, kept in order
+    public static final int PRIORITY_BULK = 2;     // writes without response
+    public static final int PRIORITY_COUNT = 3;
+
     private CallbackContext callbackContext;
     private UUID serviceUUID;
     private UUID characteristicUUID;
@@ -42,6 +49,19 @@ class BLECommand {
         return type;
     }
 
+    public int getPriority() {
+        if (type == REGISTER_NOTIFY || type == REMOVE_NOTIFY) {
+            return PRIORITY_NOTIFY;
+        } else if (type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return PRIORITY_BULK;
+        }
+        return PRIORITY_DEFAULT;
+    }
+
+    public boolean isWrite() {
+        return type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
     public CallbackContext getCallbackContext() {
         return callbackContext;
     }
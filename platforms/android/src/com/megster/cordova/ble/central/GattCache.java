@@ -0,0 +1,246 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import org.apache.cordova.LOG;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Remembers the GATT table of each peripheral that was connected before, keyed by MAC address,
+ * in a small versioned file in the app's private storage.
+ *
+ * An entry holds the table encoded as services, characteristics and descriptors with their
+ * UUIDs, instance ids, properties and permissions, plus the services and characteristics JSON
+ * that was sent to JavaScript. Comparing the encoded table of a new discovery with the cached one
+ * tells whether the cached JSON is still right.
+ */
+class GattCache {
+
+    private static final String TAG = "GattCache";
+
+    // "BGC" and the file format version, files with another header are ignored
+    private static final int MAGIC = 0x42474300;
+    private static final int VERSION = 1;
+
+    // the least recently connected peripherals are forgotten beyond this
+    static final int MAX_PERIPHERALS = 32;
+
+    private static class Entry {
+        final byte[] layout;
+        final String json;
+
+        Entry(byte[] layout, String json) {
+            this.layout = layout;
+            this.json = json;
+        }
+    }
+
+    private final File file;
+    private final Executor executor;
+    private final Object fileLock = new Object();
+
+    // least recently used first, loaded on first use
+    private LinkedHashMap<String, Entry> entries;
+    private boolean savePending;
+
+    GattCache(File file, Executor executor) {
+        this.file = file;
+        this.executor = executor;
+    }
+
+    /**
+     * The JSON cached for the peripheral, or null.
+     */
+    synchronized String getJSON(String address) {
+        Entry entry = entries().get(address);
+        return entry != null ? entry.json : null;
+    }
+
+    /**
+     * True if the layout is the one cached for the peripheral.
+     */
+    synchronized boolean matches(String address, byte[] layout) {
+        Entry entry = entries().get(address);
+        return entry != null && Arrays.equals(entry.layout, layout);
+    }
+
+    /**
+     * Cache the layout and JSON of the peripheral and write the file in the background.
+     */
+    synchronized void put(String address, byte[] layout, String json) {
+        entries().put(address, new Entry(layout, json));
+        if (!savePending) {
+            savePending = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Encode the GATT table for comparison with the cached one.
+     */
+    static byte[] encode(List<BluetoothGattService> services) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(services.size());
+            for (BluetoothGattService service : services) {
+                writeUUID(out, service.getUuid());
+                out.writeShort(service.getInstanceId());
+                out.writeByte(service.getType());
+                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+                out.writeShort(characteristics.size());
+                for (BluetoothGattCharacteristic characteristic : characteristics) {
+                    writeUUID(out, characteristic.getUuid());
+                    out.writeShort(characteristic.getInstanceId());
+                    out.writeShort(characteristic.getProperties());
+                    out.writeShort(characteristic.getPermissions());
+                    List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+                    out.writeShort(descriptors.size());
+                    for (BluetoothGattDescriptor descriptor : descriptors) {
+                        writeUUID(out, descriptor.getUuid());
+                        out.writeShort(descriptor.getPermissions());
+                    }
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) { // this shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private LinkedHashMap<String, Entry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_PERIPHERALS;
+                }
+            };
+            load();
+        }
+        return entries;
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.w(TAG, "Ignoring GATT cache with an unknown format");
+                return;
+            }
+            // the sizes come from the file, so they are checked before anything is allocated
+            long size = file.length();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_PERIPHERALS) {
+                throw new IOException("Bad peripheral count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                byte[] layout = new byte[readLength(in, size)];
+                in.readFully(layout);
+                byte[] json = new byte[readLength(in, size)];
+                in.readFully(json);
+                entries.put(address, new Entry(layout, new String(json, "UTF-8")));
+            }
+        } catch (IOException e) {
+            // a damaged cache only costs a discovery
+            LOG.w(TAG, "Can't read GATT cache, deleting it", e);
+            entries.clear();
+            close(in);
+            in = null;
+            file.delete();
+        } finally {
+            close(in);
+        }
+    }
+
+    // A length read from the file, no longer than the file itself
+    private static int readLength(DataInputStream in, long fileSize) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > fileSize) {
+            throw new IOException("Bad length " + length);
+        }
+        return length;
+    }
+
+    private void save() {
+        synchronized (fileLock) {
+            Map<String, Entry> snapshot;
+            synchronized (this) {
+                savePending = false;
+                snapshot = new LinkedHashMap<String, Entry>(entries);
+            }
+
+            // written next to the cache and renamed over it, so a crash can't leave half a file
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                    byte[] json = e.getValue().json.getBytes("UTF-8");
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue().layout.length);
+                    out.write(e.getValue().layout);
+                    out.writeInt(json.length);
+                    out.write(json);
+                }
+                out.close();
+                out = null;
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                LOG.w(TAG, "Can't write GATT cache", e);
+                tmp.delete();
+            } finally {
+                close(out);
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ package com.megster.cordova.ble.central;
 import android.app.Activity;
 
 import android.bluetooth.*;
+import android.os.SystemClock;
 import android.util.Base64;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.LOG;
@@ -26,7 +27,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Peripheral wraps the BluetoothDevice and provides methods to convert to JSON.
@@ -36,22 +36,62 @@ public class Peripheral extends BluetoothGattCallback {
     // 0x2902 org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
     //public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
     public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUIDHelper.uuidFromString("2902");
+    // 0x2A05 org.bluetooth.characteristic.gatt.service_changed.xml
+    public final static UUID SERVICE_CHANGED_UUID = UUIDHelper.uuidFromString("2A05");
     private static final String TAG = "Peripheral";
 
     private BluetoothDevice device;
-    private byte[] advertisingData;
-    private int advertisingRSSI;
-    private boolean connected = false;
-    private ConcurrentLinkedQueue<BLECommand> commandQueue = new ConcurrentLinkedQueue<BLECommand>();
-    private boolean bleProcessing;
+    private volatile byte[] advertisingData;
+    private volatile int advertisingRSSI;
+    private volatile boolean connected = false;
+
+    // registry state: the order the peripheral was first seen in and when it last advertised
+    private long order;
+    private volatile long lastSeen;
+
+    // advertisingData decoded, redone only when a scan brings new advertising data
+    private byte[] decodedAdvertising;
+    private JSONObject advertisingJSON;
 
     BluetoothGatt gatt;
 
-    private CallbackContext connectCallback;
-    private CallbackContext readCallback;
-    private CallbackContext writeCallback;
+    private volatile CallbackContext connectCallback;
+    // set by the registry from connect() being called until connectCallback is set
+    private volatile boolean connectPending;
+
+    // the connect request in progress, until the first success or the last failed attempt
+    private ConnectionManager connectionManager;
+    private volatile boolean connecting;
+    private long connectRequested;
+    private volatile int connectAttempts;
+    private volatile long connectLatency;
+
+    // The services and characteristics as sent to JavaScript, built once from the discovered
+    // GATT table and reused until the device says its services changed. Never modified once built.
+    private JSONArray servicesJSON;
+    private JSONArray characteristicsJSON;
+    private int serviceCount;
+
+    // Tables of peripherals connected before, so the app can be told about the services as soon as
+    // the link is up. The cached JSON is kept until discovery confirms or replaces it.
+    private GattCache gattCache;
+    // whether this connect request asked for the cached services before discovery
+    private boolean sendCached;
+    private JSONArray cachedServicesJSON;
+    private JSONArray cachedCharacteristicsJSON;
+
+    private final GattScheduler scheduler = new GattScheduler(new GattScheduler.Dispatcher() {
+        @Override
+        public void dispatch(BLECommand command) {
+            processCommand(command);
+        }
+    });
 
-    private Map<String, CallbackContext> notificationCallbacks = new HashMap<String, CallbackContext>();
+    // Keyed by the characteristic object itself. BluetoothGatt passes the same objects it handed out
+    // after service discovery to onCharacteristicChanged, so routing a notification needs no key to be built.
+    // A new discovery hands out new objects, so the callbacks are moved to them, see rekeyNotificationCallbacks.
+    private final Map<BluetoothGattCharacteristic, CallbackContext> notificationCallbacks =
+            Collections.synchronizedMap(new IdentityHashMap<BluetoothGattCharacteristic, CallbackContext>());
 
     public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord) {
 
@@ -61,23 +101,87 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    public void connect(CallbackContext callbackContext, Activity activity) {
-        BluetoothDevice device = getDevice();
+    /**
+     * Connect when the connection manager has a slot for this peripheral.
+     */
+    public void connect(CallbackContext callbackContext, GattCache gattCache, boolean sendCached,
+                        ConnectionManager connectionManager) {
         connectCallback = callbackContext;
-        gatt = device.connectGatt(activity, false, this);
+        connectPending = false;
+        this.gattCache = gattCache;
+        this.sendCached = sendCached;
+        this.connectionManager = connectionManager;
+        connecting = true;
+        connectRequested = SystemClock.elapsedRealtime();
+        connectAttempts = 0;
+        connectLatency = -1;
+        // commands wait for service discovery
+        scheduler.hold();
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         callbackContext.sendPluginResult(result);
+
+        connectionManager.connect(this);
+    }
+
+    // called by the connection manager for each attempt
+    void openGatt(Activity activity) {
+        connectAttempts++;
+        gatt = getDevice().connectGatt(activity, false, this);
+    }
+
+    int getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    // ms from the connect request to the first success, -1 until then
+    long getConnectLatency() {
+        return connectLatency;
+    }
+
+    // A connect attempt failed. Unless it was the last one, close this attempt's
+    // connection, keeping the callback and the queued commands for the next.
+    private boolean retryConnect() {
+        if (!connecting || connectionManager == null) {
+            return false;
+        }
+        connected = false;
+        cachedServicesJSON = null;
+        cachedCharacteristicsJSON = null;
+        if (gatt != null) {
+            gatt.close();
+            gatt = null;
+        }
+        return connectionManager.failed(this);
+    }
+
+    // the first success of a connect request, reports how long it took
+    private void putConnectStats(JSONObject json) throws JSONException {
+        if (connectLatency < 0) {
+            connectLatency = SystemClock.elapsedRealtime() - connectRequested;
+        }
+        json.put("connectLatency", connectLatency);
+        json.put("connectAttempts", connectAttempts);
     }
 
     public void disconnect() {
         connectCallback = null;
+        connecting = false;
         connected = false;
+        cachedServicesJSON = null;
+        cachedCharacteristicsJSON = null;
         if (gatt != null) {
             gatt.close();
             gatt = null;
         }
+        scheduler.cancelAll("Peripheral " + device.getAddress() + " disconnected");
+        // the characteristics of this connection are never seen again
+        notificationCallbacks.clear();
+    }
+
+    public JSONObject getQueueStats() {
+        return scheduler.getStats();
     }
 
     public JSONObject asJSONObject()  {
@@ -88,6 +192,7 @@ public class Peripheral extends BluetoothGattCallback {
             json.put("name", device.getName());
             json.put("id", device.getAddress()); // mac address
             json.put("advertising", byteArrayToJSON(advertisingData));
+            json.put("advertisingData", decodedAdvertisingJSON());
             // TODO real RSSI if we have it, else
             json.put("rssi", advertisingRSSI);
         } catch (JSONException e) { // this shouldn't happen
@@ -97,54 +202,22 @@ public class Peripheral extends BluetoothGattCallback {
         return json;
     }
 
-    public JSONObject asJSONObject(BluetoothGatt gatt) {
+    public synchronized JSONObject asJSONObject(BluetoothGatt gatt) {
 
         JSONObject json = asJSONObject();
 
         try {
-            JSONArray servicesArray = new JSONArray();
-            JSONArray characteristicsArray = new JSONArray();
-            json.put("services", servicesArray);
-            json.put("characteristics", characteristicsArray);
-
             if (connected && gatt != null) {
-                for (BluetoothGattService service : gatt.getServices()) {
-                    servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
-
-                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                        JSONObject characteristicsJSON = new JSONObject();
-                        characteristicsArray.put(characteristicsJSON);
-
-                        characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
-                        characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
-                        //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
-
-                        characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
-                            // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
-
-                        if (characteristic.getPermissions() > 0) {
-                            characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
-                            // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
-                        }
-
-                        JSONArray descriptorsArray = new JSONArray();
-
-                        for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
-                            JSONObject descriptorJSON = new JSONObject();
-                            descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
-                            descriptorJSON.put("value", descriptor.getValue()); // always blank
-
-                            if (descriptor.getPermissions() > 0) {
-                                descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
-                                // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
-                            }
-                            descriptorsArray.put(descriptorJSON);
-                        }
-                        if (descriptorsArray.length() > 0) {
-                            characteristicsJSON.put("descriptors", descriptorsArray);
-                        }
-                    }
+                List<BluetoothGattService> services = gatt.getServices();
+                // the count is a cheap check that the cache is for the same table
+                if (servicesJSON == null || services.size() != serviceCount) {
+                    buildGattJSON(services);
                 }
+                json.put("services", servicesJSON);
+                json.put("characteristics", characteristicsJSON);
+            } else {
+                json.put("services", new JSONArray());
+                json.put("characteristics", new JSONArray());
             }
         } catch (JSONException e) { // TODO better error handling
             e.printStackTrace();
@@ -153,6 +226,134 @@ public class Peripheral extends BluetoothGattCallback {
         return json;
     }
 
+    private void buildGattJSON(List<BluetoothGattService> services) throws JSONException {
+
+        JSONArray servicesArray = new JSONArray();
+        JSONArray characteristicsArray = new JSONArray();
+
+        for (BluetoothGattService service : services) {
+            servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
+
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                JSONObject characteristicsJSON = new JSONObject();
+                characteristicsArray.put(characteristicsJSON);
+
+                characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
+                characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
+                //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
+
+                characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
+                    // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
+
+                if (characteristic.getPermissions() > 0) {
+                    characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
+                    // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
+                }
+
+                JSONArray descriptorsArray = new JSONArray();
+
+                for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
+                    JSONObject descriptorJSON = new JSONObject();
+                    descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
+                    descriptorJSON.put("value", descriptor.getValue()); // always blank
+
+                    if (descriptor.getPermissions() > 0) {
+                        descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
+                        // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
+                    }
+                    descriptorsArray.put(descriptorJSON);
+                }
+                if (descriptorsArray.length() > 0) {
+                    characteristicsJSON.put("descriptors", descriptorsArray);
+                }
+            }
+        }
+
+        servicesJSON = servicesArray;
+        characteristicsJSON = characteristicsArray;
+        serviceCount = services.size();
+    }
+
+    // The device's GATT table changed, rebuild the JSON after the next discovery
+    private synchronized void invalidateGattJSON() {
+        servicesJSON = null;
+        characteristicsJSON = null;
+    }
+
+    // Tell JavaScript about the services cached for this peripheral, before discovery completes, if
+    // the connect asked for it. Success may then be called twice, so callers have to opt in.
+    // Commands sent in response are queued until discovery has found the real characteristics.
+    private synchronized void sendCachedGatt() {
+        String cached = sendCached && gattCache != null ? gattCache.getJSON(device.getAddress()) : null;
+        if (cached == null || connectCallback == null) {
+            return;
+        }
+
+        try {
+            JSONObject gattJSON = new JSONObject(cached);
+            cachedServicesJSON = gattJSON.getJSONArray("services");
+            cachedCharacteristicsJSON = gattJSON.getJSONArray("characteristics");
+
+            JSONObject json = asJSONObject();
+            json.put("services", cachedServicesJSON);
+            json.put("characteristics", cachedCharacteristicsJSON);
+            json.put("cached", true);
+            putConnectStats(json);
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+            result.setKeepCallback(true);
+            connectCallback.sendPluginResult(result);
+        } catch (JSONException e) {
+            LOG.w(TAG, "Ignoring cached services of " + device.getAddress(), e);
+            cachedServicesJSON = null;
+            cachedCharacteristicsJSON = null;
+        }
+    }
+
+    // After discovery: reuse the cached JSON if the table is the cached one, else cache the new table.
+    // Returns true if JavaScript was already sent the right services.
+    private synchronized boolean updateGattCache(List<BluetoothGattService> services) {
+        if (gattCache == null) {
+            return false;
+        }
+
+        byte[] layout = GattCache.encode(services);
+        String address = device.getAddress();
+        boolean sentCached = cachedServicesJSON != null;
+
+        if (gattCache.matches(address, layout)) {
+            if (sentCached) {
+                servicesJSON = cachedServicesJSON;
+                characteristicsJSON = cachedCharacteristicsJSON;
+                serviceCount = services.size();
+            }
+        } else {
+            sentCached = false;
+            try {
+                buildGattJSON(services);
+                JSONObject gattJSON = new JSONObject();
+                gattJSON.put("services", servicesJSON);
+                gattJSON.put("characteristics", characteristicsJSON);
+                gattCache.put(address, layout, gattJSON.toString());
+            } catch (JSONException e) { // this shouldn't happen
+                e.printStackTrace();
+            }
+        }
+
+        cachedServicesJSON = null;
+        cachedCharacteristicsJSON = null;
+        return sentCached;
+    }
+
+    private synchronized JSONObject decodedAdvertisingJSON() throws JSONException {
+        byte[] data = advertisingData;
+        if (data != decodedAdvertising) {
+            advertisingJSON = AdvertisingData.parse(data).asJSONObject();
+            decodedAdvertising = data;
+        }
+        return advertisingJSON;
+    }
+
     static JSONObject byteArrayToJSON(byte[] bytes) throws JSONException {
         JSONObject object = new JSONObject();
         object.put("CDVType", "ArrayBuffer");
@@ -173,13 +374,86 @@ public class Peripheral extends BluetoothGattCallback {
         super.onServicesDiscovered(gatt, status);
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
-            result.setKeepCallback(true);
-            connectCallback.sendPluginResult(result);
+            rekeyNotificationCallbacks(gatt, gatt.getServices());
+            boolean sentCached = updateGattCache(gatt.getServices());
+            scheduler.release();
+            if (!sentCached && connectCallback != null) {
+                JSONObject json = this.asJSONObject(gatt);
+                try {
+                    putConnectStats(json);
+                } catch (JSONException e) { // this shouldn't happen
+                    e.printStackTrace();
+                }
+                PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+                result.setKeepCallback(true);
+                connectCallback.sendPluginResult(result);
+            }
+            if (connecting) {
+                connecting = false;
+                connectionManager.ready(this);
+            }
         } else {
             LOG.e(TAG, "Service discovery failed. status = " + status);
-            connectCallback.error(this.asJSONObject());
-            disconnect();
+            connectFailed();
+        }
+    }
+
+    // Move the notification callbacks to the characteristic objects of this discovery, matched on
+    // the service UUID, the characteristic UUID and the characteristic's instance id. A callback
+    // whose characteristic is gone is told so.
+    private void rekeyNotificationCallbacks(BluetoothGatt gatt, List<BluetoothGattService> services) {
+        synchronized (notificationCallbacks) {
+            if (notificationCallbacks.isEmpty()) {
+                return;
+            }
+            Map<BluetoothGattCharacteristic, CallbackContext> old =
+                    new IdentityHashMap<BluetoothGattCharacteristic, CallbackContext>(notificationCallbacks);
+            notificationCallbacks.clear();
+
+            for (Map.Entry<BluetoothGattCharacteristic, CallbackContext> entry : old.entrySet()) {
+                BluetoothGattCharacteristic characteristic = findSameCharacteristic(services, entry.getKey());
+                if (characteristic == null) {
+                    LOG.w(TAG, "Characteristic " + entry.getKey().getUuid() + " is gone, stopping its notifications");
+                    entry.getValue().error("Characteristic " + entry.getKey().getUuid() + " is gone after services changed");
+                    continue;
+                }
+                if (characteristic != entry.getKey()) {
+                    // the stack routes notifications by the new object's handle
+                    gatt.setCharacteristicNotification(characteristic, true);
+                }
+                notificationCallbacks.put(characteristic, entry.getValue());
+            }
+        }
+    }
+
+    private static BluetoothGattCharacteristic findSameCharacteristic(List<BluetoothGattService> services,
+                                                                      BluetoothGattCharacteristic previous) {
+        UUID serviceUUID = previous.getService().getUuid();
+        for (BluetoothGattService service : services) {
+            if (!service.getUuid().equals(serviceUUID)) {
+                continue;
+            }
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (characteristic.getUuid().equals(previous.getUuid()) &&
+                        characteristic.getInstanceId() == previous.getInstanceId()) {
+                    return characteristic;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Called by Android 12 and later when the device indicates its services changed, and by
+    // onCharacteristicChanged for the Service Changed characteristic on older versions.
+    // Not annotated with @Override so the plugin still builds against older SDKs.
+    public void onServiceChanged(BluetoothGatt gatt) {
+        LOG.d(TAG, "Services changed, discovering services again");
+        invalidateGattJSON();
+        scheduler.hold();
+        if (!gatt.discoverServices()) {
+            // onServicesDiscovered won't come to release the commands
+            LOG.w(TAG, "Could not start service discovery after services changed");
+            scheduler.release();
         }
     }
 
@@ -191,24 +465,49 @@ public class Peripheral extends BluetoothGattCallback {
         if (newState == BluetoothGatt.STATE_CONNECTED) {
 
             connected = true;
-            gatt.discoverServices();
+            sendCachedGatt();
+            if (!gatt.discoverServices()) {
+                // onServicesDiscovered won't come to free the connect slot and release the commands
+                LOG.w(TAG, "Could not start service discovery");
+                connectFailed();
+            }
 
         } else {
 
-            if (connectCallback != null) {
-                connectCallback.error(this.asJSONObject());
-            }
-            disconnect();
+            LOG.d(TAG, "Connecting failed. status = " + status);
+            connectFailed();
         }
 
     }
 
+    // called by the connection manager when the attempt held its slot too long
+    void connectTimedOut() {
+        connectFailed();
+    }
+
+    // Retry the connect, or report the failure and drop the connection
+    private void connectFailed() {
+        if (retryConnect()) {
+            return;
+        }
+        if (connectCallback != null) {
+            connectCallback.error(this.asJSONObject());
+        }
+        disconnect();
+    }
+
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
-        LOG.d(TAG, "onCharacteristicChanged " + characteristic);
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG, "onCharacteristicChanged " + characteristic);
+        }
+
+        if (SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+            onServiceChanged(gatt);
+        }
 
-        CallbackContext callback = notificationCallbacks.get(generateHashKey(characteristic));
+        CallbackContext callback = notificationCallbacks.get(characteristic);
 
         if (callback != null) {
             PluginResult result = new PluginResult(PluginResult.Status.OK, characteristic.getValue());
@@ -220,51 +519,98 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
-        LOG.d(TAG, "onCharacteristicRead " + characteristic);
-
-        if (readCallback != null) {
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                readCallback.success(characteristic.getValue());
-            } else {
-                readCallback.error("Error reading " + characteristic.getUuid() + " status=" + status);
-            }
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG, "onCharacteristicRead " + characteristic);
+        }
 
-            readCallback = null;
+        BLECommand command = scheduler.getCurrent();
+        if (!isCurrentCommand(command, characteristic) || command.getType() != BLECommand.READ) {
+            LOG.w(TAG, "Ignoring read of " + characteristic.getUuid() + ", it is not in progress");
+            return;
+        }
 
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            command.getCallbackContext().success(characteristic.getValue());
+        } else {
+            command.getCallbackContext().error("Error reading " + characteristic.getUuid() + " status=" + status);
         }
 
-        commandCompleted();
+        scheduler.completed(command);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
-        LOG.d(TAG, "onCharacteristicWrite " + characteristic);
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG, "onCharacteristicWrite " + characteristic);
+        }
 
-        if (writeCallback != null) {
+        BLECommand command = scheduler.getCurrent();
+        if (!isCurrentCommand(command, characteristic) || !command.isWrite()) {
+            LOG.w(TAG, "Ignoring write of " + characteristic.getUuid() + ", it is not in progress");
+            return;
+        }
 
+        // writes without response were answered when the stack accepted them
+        if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                writeCallback.success();
+                command.getCallbackContext().success();
             } else {
-                writeCallback.error(status);
+                command.getCallbackContext().error(status);
             }
-
-            writeCallback = null;
+        } else if (status != BluetoothGatt.GATT_SUCCESS) {
+            LOG.w(TAG, "Write without response to " + characteristic.getUuid() + " failed. status=" + status);
         }
 
-        commandCompleted();
+        scheduler.completed(command);
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
-        LOG.d(TAG, "onDescriptorWrite " + descriptor);
-        commandCompleted();
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG, "onDescriptorWrite " + descriptor);
+        }
+
+        BLECommand command = scheduler.getCurrent();
+        if (command == null || command.getType() != BLECommand.REGISTER_NOTIFY) {
+            LOG.w(TAG, "Ignoring descriptor write, it is not in progress");
+            return;
+        }
+        scheduler.completed(command);
     }
 
-    public void updateRssi(int rssi) {
+    // Late callbacks for commands that timed out must not complete the command that followed
+    private boolean isCurrentCommand(BLECommand command, BluetoothGattCharacteristic characteristic) {
+        return command != null && characteristic.getUuid().equals(command.getCharacteristicUUID());
+    }
+
+    // the latest advertisement seen while scanning
+    void updateAdvertising(int rssi, byte[] scanRecord, long now) {
         advertisingRSSI = rssi;
+        advertisingData = scanRecord;
+        lastSeen = now;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    long getOrder() {
+        return order;
+    }
+
+    void setOrder(long order) {
+        this.order = order;
+    }
+
+    void setConnectPending() {
+        connectPending = true;
+    }
+
+    // connected, or connecting, so it must not be forgotten
+    boolean isInUse() {
+        return connected || connectCallback != null || connectPending;
     }
 
     // This seems way too complicated
@@ -274,16 +620,16 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
             return;
         }
 
         BluetoothGattService service = gatt.getService(serviceUUID);
         BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
-        String key = generateHashKey(serviceUUID, characteristic);
 
         if (characteristic != null) {
 
-            notificationCallbacks.put(key, callbackContext);
+            notificationCallbacks.put(characteristic, callbackContext);
 
             if (gatt.setCharacteristicNotification(characteristic, true)) {
 
@@ -327,16 +673,16 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
             return;
         }
 
         BluetoothGattService service = gatt.getService(serviceUUID);
         BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
-        String key = generateHashKey(serviceUUID, characteristic);
 
         if (characteristic != null) {
 
-            notificationCallbacks.remove(key);
+            notificationCallbacks.remove(characteristic);
 
             if (gatt.setCharacteristicNotification(characteristic, false)) {
                 callbackContext.success();
@@ -392,6 +738,7 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
             return;
         }
 
@@ -401,11 +748,9 @@ public class Peripheral extends BluetoothGattCallback {
         if (characteristic == null) {
             callbackContext.error("Characteristic " + characteristicUUID + " not found.");
         } else {
-            readCallback = callbackContext;
             if (gatt.readCharacteristic(characteristic)) {
                 success = true;
             } else {
-                readCallback = null;
                 callbackContext.error("Read failed");
             }
         }
@@ -445,6 +790,7 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
             return;
         }
 
@@ -456,12 +802,20 @@ public class Peripheral extends BluetoothGattCallback {
         } else {
             characteristic.setValue(data);
             characteristic.setWriteType(writeType);
-            writeCallback = callbackContext;
 
             if (gatt.writeCharacteristic(characteristic)) {
                 success = true;
+
+                // Don't make the caller wait for the stack to drain its buffer, so writes
+                // without response can be streamed. The next one is dispatched when
+                // onCharacteristicWrite says there is room.
+                if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                    callbackContext.success();
+                }
+            } else if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE && scheduler.retryLater(scheduler.getCurrent())) {
+                // the stack is still busy, try again shortly
+                return;
             } else {
-                writeCallback = null;
                 callbackContext.error("Write failed");
             }
         }
@@ -521,69 +875,55 @@ public class Peripheral extends BluetoothGattCallback {
 
     // add a new command to the queue
     private void queueCommand(BLECommand command) {
-        LOG.d(TAG,"Queuing Command " + command);
-        commandQueue.add(command);
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG,"Queuing Command " + command);
+        }
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         command.getCallbackContext().sendPluginResult(result);
 
-        if (!bleProcessing) {
-            processCommands();
-        }
+        scheduler.add(command);
     }
 
-    // command finished, queue the next command
+    // command finished without waiting for a GATT callback, run the next command
+    // only called from inside processCommand, while the command is in progress
     private void commandCompleted() {
         LOG.d(TAG,"Processing Complete");
-        bleProcessing = false;
-        processCommands();
+        scheduler.completed(scheduler.getCurrent());
     }
 
-    // process the queue
-    private void processCommands() {
-        LOG.d(TAG,"Processing Commands");
-
-        if (bleProcessing) { return; }
-
-        BLECommand command = commandQueue.poll();
-        if (command != null) {
-            if (command.getType() == BLECommand.READ) {
+    // run a command, called by the scheduler
+    private void processCommand(BLECommand command) {
+        if (command.getType() == BLECommand.READ) {
+            if (LOG.isLoggable(LOG.DEBUG)) {
                 LOG.d(TAG,"Read " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            }
+            readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
+        } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            if (LOG.isLoggable(LOG.DEBUG)) {
                 LOG.d(TAG,"Write " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            }
+            writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
+        } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            if (LOG.isLoggable(LOG.DEBUG)) {
                 LOG.d(TAG,"Write No Response " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            }
+            writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
+        } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            if (LOG.isLoggable(LOG.DEBUG)) {
                 LOG.d(TAG,"Register Notify " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+            }
+            registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
+        } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+            if (LOG.isLoggable(LOG.DEBUG)) {
                 LOG.d(TAG,"Remove Notify " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                removeNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else {
-                // this shouldn't happen
-                throw new RuntimeException("Unexpected BLE Command type " + command.getType());
             }
+            removeNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
         } else {
-            LOG.d(TAG, "Command Queue is empty.");
+            // this shouldn't happen
+            throw new RuntimeException("Unexpected BLE Command type " + command.getType());
         }
-
-    }
-
-    private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-        return generateHashKey(characteristic.getService().getUuid(), characteristic);
-    }
-
-    private String generateHashKey(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
-        return String.valueOf(serviceUUID) + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
     }
 
 }
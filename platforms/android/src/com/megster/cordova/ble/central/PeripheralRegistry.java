@@ -0,0 +1,178 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The peripherals known to the plugin, keyed by MAC address.
+ *
+ * Scan callbacks add peripherals on a binder thread while plugin actions look them up and list
+ * them, so lookups go straight to a ConcurrentHashMap without locking. Additions and evictions
+ * are serialized among themselves.
+ *
+ * Peripherals that are not connected or connecting are evicted once they haven't advertised
+ * for STALE_AFTER ms, and the least recently seen ones are evicted when there are more than
+ * MAX_PERIPHERALS, so a busy RF environment can't grow the registry without bound.
+ */
+class PeripheralRegistry {
+
+    static final int MAX_PERIPHERALS = 256;
+    static final long STALE_AFTER = 5 * 60 * 1000;
+
+    // how often additions look for stale peripherals
+    private static final long SWEEP_INTERVAL = 10 * 1000;
+
+    private final ConcurrentHashMap<String, Peripheral> peripherals = new ConcurrentHashMap<String, Peripheral>();
+    private final Object lock = new Object();
+
+    private long nextOrder;
+    private long lastSweep;
+
+    /**
+     * The peripheral with the MAC address, or null.
+     */
+    Peripheral get(String address) {
+        return peripherals.get(address);
+    }
+
+    /**
+     * Record an advertisement, adding a peripheral for devices not seen before.
+     * @return the peripheral of the device
+     */
+    Peripheral advertised(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        long now = SystemClock.elapsedRealtime();
+        String address = device.getAddress();
+
+        Peripheral peripheral = peripherals.get(address);
+        if (peripheral != null) {
+            peripheral.updateAdvertising(rssi, scanRecord, now);
+            return peripheral;
+        }
+
+        synchronized (lock) {
+            peripheral = peripherals.get(address);
+            if (peripheral == null) {
+                peripheral = new Peripheral(device, rssi, scanRecord);
+                peripheral.updateAdvertising(rssi, scanRecord, now);
+                peripheral.setOrder(nextOrder++);
+                peripherals.put(address, peripheral);
+                evict(now);
+            }
+        }
+        return peripheral;
+    }
+
+    /**
+     * Keep the peripheral until its connect has started, putting it back if it was evicted after
+     * being looked up. Call before Peripheral.connect, which makes it in use for good.
+     * @return the peripheral to connect, the one registered for the address if that was replaced
+     */
+    Peripheral markConnecting(Peripheral peripheral) {
+        String address = peripheral.getDevice().getAddress();
+        synchronized (lock) {
+            Peripheral registered = peripherals.get(address);
+            if (registered == null) {
+                peripherals.put(address, peripheral);
+                registered = peripheral;
+            }
+            registered.setConnectPending();
+            return registered;
+        }
+    }
+
+    /**
+     * Forget the peripherals that are not connected or connecting, e.g. when a new scan starts.
+     */
+    void removeUnused() {
+        synchronized (lock) {
+            for (Iterator<Peripheral> iterator = peripherals.values().iterator(); iterator.hasNext(); ) {
+                if (!iterator.next().isInUse()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the peripherals, in the order they were first seen.
+     */
+    List<Peripheral> snapshot() {
+        List<Peripheral> snapshot = new ArrayList<Peripheral>(peripherals.values());
+        Collections.sort(snapshot, FIRST_SEEN);
+        return snapshot;
+    }
+
+    int size() {
+        return peripherals.size();
+    }
+
+    private void evict(long now) {
+        if (now - lastSweep >= SWEEP_INTERVAL) {
+            lastSweep = now;
+            for (Iterator<Peripheral> iterator = peripherals.values().iterator(); iterator.hasNext(); ) {
+                Peripheral peripheral = iterator.next();
+                if (!peripheral.isInUse() && now - peripheral.getLastSeen() > STALE_AFTER) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        int excess = peripherals.size() - MAX_PERIPHERALS;
+        if (excess <= 0) {
+            return;
+        }
+
+        // evict an eighth more than needed, so this doesn't run for every new device
+        List<Peripheral> candidates = new ArrayList<Peripheral>();
+        for (Peripheral peripheral : peripherals.values()) {
+            if (!peripheral.isInUse()) {
+                candidates.add(peripheral);
+            }
+        }
+        int count = Math.min(candidates.size(), excess + MAX_PERIPHERALS / 8);
+        if (count == 0) {
+            return;
+        }
+
+        // scans keep updating the times, so sort a copy of them
+        long[] seen = new long[candidates.size()];
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] = candidates.get(i).getLastSeen();
+        }
+        long[] sorted = seen.clone();
+        Arrays.sort(sorted);
+        long newestEvicted = sorted[count - 1];
+
+        for (int i = 0; i < seen.length && count > 0; i++) {
+            if (seen[i] <= newestEvicted) {
+                Peripheral peripheral = candidates.get(i);
+                peripherals.remove(peripheral.getDevice().getAddress(), peripheral);
+                count--;
+            }
+        }
+    }
+
+    private static final Comparator<Peripheral> FIRST_SEEN = new Comparator<Peripheral>() {
+        @Override
+        public int compare(Peripheral a, Peripheral b) {
+            return a.getOrder() < b.getOrder() ? -1 : (a.getOrder() == b.getOrder() ? 0 : 1);
+        }
+    };
+}
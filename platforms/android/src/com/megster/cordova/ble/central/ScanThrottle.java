@@ -0,0 +1,310 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which advertisements received during a scan are reported to JavaScript.
+ *
+ * A busy place can have dozens of devices advertising several times a second each, far more
+ * than the bridge should carry. Depending on the mode an advertisement is reported
+ * <ul>
+ * <li>ALL: always</li>
+ * <li>FIRST_SEEN: only the first one from each device</li>
+ * <li>RSSI_CHANGE: when the RSSI moved by rssiDelta since the last report of the device</li>
+ * <li>INTERVAL: at most once every interval ms per device</li>
+ * <li>BATCH: the latest one of each device is kept and drained every interval ms</li>
+ * </ul>
+ *
+ * The state of each device is kept in parallel arrays indexed by an open addressing hash
+ * of its MAC address packed into a long, so an advertisement costs no allocation. The table
+ * stops growing at MAX_CAPACITY, then devices not heard for STALE_TIME are forgotten.
+ */
+class ScanThrottle<T> {
+
+    enum Mode {
+        ALL, FIRST_SEEN, RSSI_CHANGE, INTERVAL, BATCH;
+
+        static Mode fromName(String name) {
+            if (name.equals("all")) {
+                return ALL;
+            } else if (name.equals("firstSeen")) {
+                return FIRST_SEEN;
+            } else if (name.equals("rssiChange")) {
+                return RSSI_CHANGE;
+            } else if (name.equals("interval")) {
+                return INTERVAL;
+            } else if (name.equals("batch")) {
+                return BATCH;
+            }
+            throw new IllegalArgumentException("Unknown scan mode: " + name);
+        }
+    }
+
+    static final int DEFAULT_RSSI_DELTA = 5;
+    static final long DEFAULT_INTERVAL = 1000;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 2048;       // tracks at most 1536 devices
+    private static final long STALE_TIME = 60 * 1000;   // forget devices not heard for this long once full
+    private static final long EMPTY = -1;   // MAC addresses only use the low 48 bits
+
+    private final Mode mode;
+    private final int rssiDelta;
+    private final long interval;
+
+    // per device state, slot i is in use when keys[i] != EMPTY
+    private long[] keys;
+    private byte[] reportedRssi;
+    private long[] reportedTime;
+    private long[] seenTime;
+    private int[] pendingIndex;     // index into pending, or -1
+    private int size;
+
+    // BATCH mode: the latest advertisement of each device since the last drain, and its slot.
+    // The first pending.size() entries of pendingSlots are in use.
+    private final List<T> pending = new ArrayList<T>();
+    private int[] pendingSlots = new int[INITIAL_CAPACITY];
+
+    ScanThrottle(Mode mode, int rssiDelta, long interval) {
+        if (rssiDelta < 0) {
+            throw new IllegalArgumentException("rssiDelta must not be negative");
+        }
+        if (interval <= 0 && (mode == Mode.INTERVAL || mode == Mode.BATCH)) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.mode = mode;
+        this.rssiDelta = rssiDelta;
+        this.interval = interval;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a throttle from the scan options passed by JavaScript.
+     * @throws IllegalArgumentException if the options are not valid
+     */
+    static <T> ScanThrottle<T> fromOptions(JSONObject options, Mode defaultMode) {
+        Mode mode = defaultMode;
+        if (options.has("mode")) {
+            mode = Mode.fromName(options.optString("mode"));
+        } else if (options.optBoolean("reportDuplicates", false)) {
+            mode = Mode.ALL;
+        }
+        return new ScanThrottle<T>(mode,
+                options.optInt("rssiDelta", DEFAULT_RSSI_DELTA),
+                options.optLong("interval", DEFAULT_INTERVAL));
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Offer an advertisement received at the given time.
+     * @return true if it should be reported now. In BATCH mode it is kept for drain() instead.
+     */
+    synchronized boolean offer(String address, int rssi, T advertisement, long now) {
+        if (mode == Mode.ALL) {
+            return true;
+        }
+
+        long key = parseAddress(address);
+        if (key == EMPTY) {
+            // not a MAC address, there is no state to throttle it with
+            return mode != Mode.BATCH;
+        }
+
+        int slot = find(key);
+        boolean firstSeen = keys[slot] == EMPTY;
+        if (firstSeen) {
+            slot = insert(slot, key, now);
+            if (slot < 0) {
+                // the table is full of devices waiting for drain(), this one isn't tracked
+                return mode != Mode.BATCH;
+            }
+        }
+        seenTime[slot] = now;
+
+        boolean report;
+        switch (mode) {
+            case FIRST_SEEN:
+                report = firstSeen;
+                break;
+            case RSSI_CHANGE:
+                report = firstSeen || Math.abs(rssi - reportedRssi[slot]) >= rssiDelta;
+                break;
+            case INTERVAL:
+                report = firstSeen || now - reportedTime[slot] >= interval;
+                break;
+            default: // BATCH
+                if (pendingIndex[slot] >= 0) {
+                    pending.set(pendingIndex[slot], advertisement);
+                } else {
+                    int count = pending.size();
+                    if (count == pendingSlots.length) {
+                        pendingSlots = Arrays.copyOf(pendingSlots, count * 2);
+                    }
+                    pendingIndex[slot] = count;
+                    pending.add(advertisement);
+                    pendingSlots[count] = slot;
+                }
+                return false;
+        }
+
+        if (report) {
+            reportedRssi[slot] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+            reportedTime[slot] = now;
+        }
+        return report;
+    }
+
+    /**
+     * Remove and return the advertisements kept in BATCH mode, one per device, in the order
+     * the devices were first heard since the last drain.
+     */
+    synchronized List<T> drain() {
+        if (pending.isEmpty()) {
+            return new ArrayList<T>(0);
+        }
+        List<T> batch = new ArrayList<T>(pending);
+        for (int i = 0; i < pending.size(); i++) {
+            pendingIndex[pendingSlots[i]] = -1;
+        }
+        pending.clear();
+        return batch;
+    }
+
+    /**
+     * Forget every device, e.g. when a new scan starts.
+     */
+    synchronized void clear() {
+        allocate(INITIAL_CAPACITY);
+        pending.clear();
+    }
+
+    synchronized int deviceCount() {
+        return size;
+    }
+
+    // "AA:BB:CC:DD:EE:FF" as a 48 bit number, or EMPTY if the string isn't a MAC address
+    static long parseAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return EMPTY;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return EMPTY;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return EMPTY;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    // the slot holding key, or the empty slot where it belongs
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // the slot key was put in, or -1 if the table is full
+    private int insert(int slot, long key, long now) {
+        if (isFull()) {
+            if (keys.length < MAX_CAPACITY) {
+                rebuild(keys.length * 2, Long.MIN_VALUE);
+            } else {
+                // forget the devices not heard for a while, or failing that all but the pending
+                // ones, a forgotten device counts as first seen when it is heard again
+                rebuild(keys.length, now - STALE_TIME);
+                if (isFull()) {
+                    rebuild(keys.length, Long.MAX_VALUE);
+                }
+                if (isFull()) {
+                    return -1;
+                }
+            }
+            slot = find(key);
+        }
+        keys[slot] = key;
+        pendingIndex[slot] = -1;
+        size++;
+        return slot;
+    }
+
+    private boolean isFull() {
+        return (size + 1) * 4 > keys.length * 3;
+    }
+
+    // move the devices heard at or after seenSince, and the pending ones, into a new table
+    private void rebuild(int capacity, long seenSince) {
+        long[] oldKeys = keys;
+        byte[] oldRssi = reportedRssi;
+        long[] oldTime = reportedTime;
+        long[] oldSeen = seenTime;
+        int[] oldPending = pendingIndex;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && (oldSeen[i] >= seenSince || oldPending[i] >= 0)) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                reportedRssi[slot] = oldRssi[i];
+                reportedTime[slot] = oldTime[i];
+                seenTime[slot] = oldSeen[i];
+                pendingIndex[slot] = oldPending[i];
+                if (oldPending[i] >= 0) {
+                    pendingSlots[oldPending[i]] = slot;
+                }
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        reportedRssi = new byte[capacity];
+        reportedTime = new long[capacity];
+        seenTime = new long[capacity];
+        pendingIndex = new int[capacity];
+        size = 0;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
@@ -14,34 +14,110 @@
 
 package com.megster.cordova.ble.central;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class UUIDHelper {
 
     // base UUID used to build 128 bit Bluetooth UUIDs
     public static final String UUID_BASE = "0000XXXX-0000-1000-8000-00805f9b34fb";
 
-    // handle 16 and 128 bit UUIDs
+    // the base UUID as bits, a 16 or 32 bit UUID goes in the top 32 bits
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805f9b34fbL;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // strings sent back to JavaScript, so the same services and characteristics aren't formatted again
+    private static final int STRING_CACHE_SIZE = 256;
+    private static final Map<UUID, String> stringCache = new LinkedHashMap<UUID, String>(STRING_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+            return size() > STRING_CACHE_SIZE;
+        }
+    };
+
+    // handle 16, 32 and 128 bit UUIDs
     public static UUID uuidFromString(String uuid) {
 
-        if (uuid.length() == 4) {
-            uuid = UUID_BASE.replace("XXXX", uuid);
+        int length = uuid.length();
+        if (length == 4 || length == 8) {
+            long value = parseHex(uuid, 0, length);
+            if (value >= 0) {
+                return new UUID((value << 32) | BASE_MSB, BASE_LSB);
+            }
+        } else if (length == 36 && uuid.charAt(8) == '-' && uuid.charAt(13) == '-' && uuid.charAt(18) == '-' && uuid.charAt(23) == '-') {
+            long a = parseHex(uuid, 0, 8);
+            long b = parseHex(uuid, 9, 4);
+            long c = parseHex(uuid, 14, 4);
+            long d = parseHex(uuid, 19, 4);
+            long e = parseHex(uuid, 24, 12);
+            if (a >= 0 && b >= 0 && c >= 0 && d >= 0 && e >= 0) {
+                return new UUID((a << 32) | (b << 16) | c, (d << 48) | e);
+            }
         }
+
+        // anything unusual gets the standard parser and its errors
         return UUID.fromString(uuid);
     }
 
     // return 16 bit UUIDs where possible
     public static String uuidToString(UUID uuid) {
-        String longUUID = uuid.toString();
-        Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(longUUID);
-        if (matcher.matches()) {
+        synchronized (stringCache) {
+            String cached = stringCache.get(uuid);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String string;
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        if (lsb == BASE_LSB && (msb & 0xffffffffL) == BASE_MSB && (msb >>> 32) <= 0xffff) {
             // 16 bit UUID
-            return matcher.group(1);
+            char[] chars = new char[4];
+            appendHex(chars, 0, msb >>> 32, 4);
+            string = new String(chars);
         } else {
-            return longUUID;
+            char[] chars = new char[36];
+            appendHex(chars, 0, msb >>> 32, 8);
+            chars[8] = '-';
+            appendHex(chars, 9, msb >>> 16, 4);
+            chars[13] = '-';
+            appendHex(chars, 14, msb, 4);
+            chars[18] = '-';
+            appendHex(chars, 19, lsb >>> 48, 4);
+            chars[23] = '-';
+            appendHex(chars, 24, lsb, 12);
+            string = new String(chars);
+        }
+
+        synchronized (stringCache) {
+            stringCache.put(uuid, string);
+        }
+        return string;
+    }
+
+    // the value of count hex digits, or -1 if any of them isn't a hex digit
+    private static long parseHex(String s, int offset, int count) {
+        long value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    // write the low count hex digits of value
+    private static void appendHex(char[] chars, int offset, long value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            chars[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
         }
     }
 }
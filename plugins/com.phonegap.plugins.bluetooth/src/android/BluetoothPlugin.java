@@ -17,6 +17,7 @@ import org.json.JSONException;
 import android.util.Log;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.annotation.TargetApi;
 
@@ -123,6 +124,20 @@ public class BluetoothPlugin extends CordovaPlugin
 	 */
 	@Override
 	public boolean execute(String action, JSONArray args, CallbackContext callbackCtx)
+	{
+		// getPaired only reads the bonded devices, so it runs on the thread pool without the lock.
+		// The other actions run on the plugin's own thread (see android-exec in plugin.xml) and
+		// share the callback fields with _handler on the main thread, so both hold the lock.
+		if(ACTION_GET_PAIRED.equals(action))
+		{
+			getPaired(args, callbackCtx);
+			return true;
+		}
+
+		return executeLocked(action, args, callbackCtx);
+	}
+
+	private synchronized boolean executeLocked(String action, JSONArray args, CallbackContext callbackCtx)
 	{
 		if(ACTION_IS_BT_ENABLED.equals(action))
 		{
@@ -160,10 +175,6 @@ public class BluetoothPlugin extends CordovaPlugin
 		{
 			unpair(args, callbackCtx);
 		}
-		else if(ACTION_GET_PAIRED.equals(action))
-		{
-			getPaired(args, callbackCtx);
-		}
 		else if(ACTION_GET_UUIDS.equals(action))
 		{
 			getUuids(args, callbackCtx);
@@ -750,282 +761,285 @@ public class BluetoothPlugin extends CordovaPlugin
 	 * @see Message
 	 * @see BluetoothWrapper
 	 */
-	private final Handler _handler = new Handler(new Handler.Callback()
+	private final Handler _handler = new Handler(Looper.getMainLooper(), new Handler.Callback()
 	{
 		@Override
 		public boolean handleMessage(Message msg)
 		{
-			switch(msg.what)
+			synchronized(BluetoothPlugin.this)
 			{
-				case BluetoothWrapper.MSG_DISCOVERY_STARTED:
+				switch(msg.what)
+				{
+					case BluetoothWrapper.MSG_DISCOVERY_STARTED:
 
-					_wasDiscoveryCanceled = false;
+						_wasDiscoveryCanceled = false;
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_DISCOVERY_FINISHED:
+					case BluetoothWrapper.MSG_DISCOVERY_FINISHED:
 
-					if(!_wasDiscoveryCanceled)
-					{
-						if(_discoveryCallback != null)
+						if(!_wasDiscoveryCanceled)
 						{
-							PluginResult result = new PluginResult(PluginResult.Status.OK, false);
-							_discoveryCallback.sendPluginResult(result);
-							_discoveryCallback = null;
+							if(_discoveryCallback != null)
+							{
+								PluginResult result = new PluginResult(PluginResult.Status.OK, false);
+								_discoveryCallback.sendPluginResult(result);
+								_discoveryCallback = null;
+							}
 						}
-					}
-
-					break;
 
-				case BluetoothWrapper.MSG_DEVICE_FOUND:
+						break;
 
-					try
-					{
-						String name 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
-						String address 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
+					case BluetoothWrapper.MSG_DEVICE_FOUND:
 
-						JSONObject device = new JSONObject();
-						device.put("name", name);
-						device.put("address", address);
-
-						// Send one device at a time, keeping callback to be used again
-						if(_discoveryCallback != null)
+						try
 						{
-							PluginResult result = new PluginResult(PluginResult.Status.OK, device);
-							result.setKeepCallback(true);
-							_discoveryCallback.sendPluginResult(result);
+							String name 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
+							String address 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
+
+							JSONObject device = new JSONObject();
+							device.put("name", name);
+							device.put("address", address);
+
+							// Send one device at a time, keeping callback to be used again
+							if(_discoveryCallback != null)
+							{
+								PluginResult result = new PluginResult(PluginResult.Status.OK, device);
+								result.setKeepCallback(true);
+								_discoveryCallback.sendPluginResult(result);
+							}
+							else
+							{
+								Log.e(LOG_TAG, "CallbackContext for discovery doesn't exist.");
+							}
 						}
-						else
-						{
-							Log.e(LOG_TAG, "CallbackContext for discovery doesn't exist.");
-						}
-					}
-					catch(JSONException e)
-					{
-						if(_discoveryCallback != null)
+						catch(JSONException e)
 						{
-							BluetoothPlugin.this.error(_discoveryCallback,
-								e.getMessage(),
-								BluetoothError.ERR_UNKNOWN
-							);
-							_discoveryCallback = null;
+							if(_discoveryCallback != null)
+							{
+								BluetoothPlugin.this.error(_discoveryCallback,
+									e.getMessage(),
+									BluetoothError.ERR_UNKNOWN
+								);
+								_discoveryCallback = null;
+							}
 						}
-					}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_UUIDS_FOUND:
+					case BluetoothWrapper.MSG_UUIDS_FOUND:
 
-					try
-					{
-						if(_uuidCallback != null)
+						try
+						{
+							if(_uuidCallback != null)
+							{
+								String name 			= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
+								String address 			= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
+								ArrayList<String> uuids = msg.getData().getStringArrayList(BluetoothWrapper.DATA_UUIDS);
+
+								JSONObject deviceInfo = new JSONObject();
+								JSONArray deviceUuids = new JSONArray(uuids);
+
+								deviceInfo.put("name", name);
+								deviceInfo.put("address", address);
+								deviceInfo.put("uuids", deviceUuids);
+
+								_uuidCallback.success(deviceInfo);
+								_uuidCallback = null;
+							}
+							else
+							{
+								Log.e(LOG_TAG, "CallbackContext for uuid fetching doesn't exist.");
+							}
+						}
+						catch(Exception e)
 						{
-							String name 			= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
-							String address 			= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
-							ArrayList<String> uuids = msg.getData().getStringArrayList(BluetoothWrapper.DATA_UUIDS);
+							if(_uuidCallback != null)
+							{
+								BluetoothPlugin.this.error(_uuidCallback,
+									e.getMessage(), BluetoothError.ERR_UNKNOWN
+								);
+								_uuidCallback = null;
+							}
+						}
 
-							JSONObject deviceInfo = new JSONObject();
-							JSONArray deviceUuids = new JSONArray(uuids);
+						break;
 
-							deviceInfo.put("name", name);
-							deviceInfo.put("address", address);
-							deviceInfo.put("uuids", deviceUuids);
+					case BluetoothWrapper.MSG_DEVICE_BONDED:
 
-							_uuidCallback.success(deviceInfo);
-							_uuidCallback = null;
-						}
-						else
+						try
 						{
-							Log.e(LOG_TAG, "CallbackContext for uuid fetching doesn't exist.");
+							String name 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
+							String address 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
+
+							JSONObject bondedDevice = new JSONObject();
+							bondedDevice.put("name", name);
+							bondedDevice.put("address", address);
+
+							if(_pairingCallback != null)
+							{
+								_pairingCallback.success(bondedDevice);
+								_pairingCallback = null;
+							}
+							else
+							{
+								Log.e(LOG_TAG, "CallbackContext for pairing doesn't exist.");
+							}
 						}
-					}
-					catch(Exception e)
-					{
-						if(_uuidCallback != null)
+						catch(Exception e)
 						{
-							BluetoothPlugin.this.error(_uuidCallback,
-								e.getMessage(), BluetoothError.ERR_UNKNOWN
-							);
-							_uuidCallback = null;
+							if(_pairingCallback != null)
+							{
+								BluetoothPlugin.this.error(_pairingCallback,
+									e.getMessage(), BluetoothError.ERR_PAIRING_FAILED
+								);
+								_pairingCallback = null;
+							}
 						}
-					}
-
-					break;
 
-				case BluetoothWrapper.MSG_DEVICE_BONDED:
-
-					try
-					{
-						String name 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME);
-						String address 	= msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS);
+						break;
 
-						JSONObject bondedDevice = new JSONObject();
-						bondedDevice.put("name", name);
-						bondedDevice.put("address", address);
+					case BluetoothWrapper.MSG_CONNECTION_ESTABLISHED:
 
-						if(_pairingCallback != null)
+						if(_connectCallback != null)
 						{
-							_pairingCallback.success(bondedDevice);
-							_pairingCallback = null;
+							_connectCallback.success();
+							_connectCallback = null;
 						}
 						else
 						{
-							Log.e(LOG_TAG, "CallbackContext for pairing doesn't exist.");
-						}
-					}
-					catch(Exception e)
-					{
-						if(_pairingCallback != null)
-						{
-							BluetoothPlugin.this.error(_pairingCallback,
-								e.getMessage(), BluetoothError.ERR_PAIRING_FAILED
-							);
-							_pairingCallback = null;
+							Log.e(LOG_TAG, "CallbackContext for connection doesn't exist.");
 						}
-					}
-
-					break;
-
-				case BluetoothWrapper.MSG_CONNECTION_ESTABLISHED:
-
-					if(_connectCallback != null)
-					{
-						_connectCallback.success();
-						_connectCallback = null;
-					}
-					else
-					{
-						Log.e(LOG_TAG, "CallbackContext for connection doesn't exist.");
-					}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_CONNECTION_FAILED:
+					case BluetoothWrapper.MSG_CONNECTION_FAILED:
 
-					String error = msg.getData().getString(BluetoothWrapper.DATA_ERROR);
+						String error = msg.getData().getString(BluetoothWrapper.DATA_ERROR);
 
-					if(_connectCallback != null)
-					{
-						BluetoothPlugin.this.error(_connectCallback,
-							error, BluetoothError.ERR_CONNECTING_FAILED
-						);
-						_connectCallback = null;
-					}
-					else
-					{
-						Log.e(LOG_TAG, "CallbackContext for connection doesn't exist.");
-					}
+						if(_connectCallback != null)
+						{
+							BluetoothPlugin.this.error(_connectCallback,
+								error, BluetoothError.ERR_CONNECTING_FAILED
+							);
+							_connectCallback = null;
+						}
+						else
+						{
+							Log.e(LOG_TAG, "CallbackContext for connection doesn't exist.");
+						}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_CONNECTION_LOST:
+					case BluetoothWrapper.MSG_CONNECTION_LOST:
 
-					if(_connectCallback != null)
-					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
-						);
-						_connectCallback = null;
-					}
+						if(_connectCallback != null)
+						{
+							BluetoothPlugin.this.error(_connectCallback,
+								"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
+							);
+							_connectCallback = null;
+						}
 
-					if(_ioCallback != null)
-					{
-						BluetoothPlugin.this.error(_ioCallback,
-							"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
-						);
-						_ioCallback = null;
-					}
+						if(_ioCallback != null)
+						{
+							BluetoothPlugin.this.error(_ioCallback,
+								"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
+							);
+							_ioCallback = null;
+						}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_CONNECTION_STOPPED:
+					case BluetoothWrapper.MSG_CONNECTION_STOPPED:
 
-					if(_connectCallback != null)
-					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Disconnected.", BluetoothError.ERR_DISCONNECTED
-						);
-						_connectCallback = null;
-					}
+						if(_connectCallback != null)
+						{
+							BluetoothPlugin.this.error(_connectCallback,
+								"Disconnected.", BluetoothError.ERR_DISCONNECTED
+							);
+							_connectCallback = null;
+						}
 
-					if(_ioCallback != null)
-					{
-						BluetoothPlugin.this.error(_ioCallback,
-							"Disconnected.", BluetoothError.ERR_DISCONNECTED
-						);
-						_ioCallback = null;
-					}
+						if(_ioCallback != null)
+						{
+							BluetoothPlugin.this.error(_ioCallback,
+								"Disconnected.", BluetoothError.ERR_DISCONNECTED
+							);
+							_ioCallback = null;
+						}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_READ:
+					case BluetoothWrapper.MSG_READ:
 
-					String data = new String(
-						msg.getData().getByteArray(BluetoothWrapper.DATA_BYTES),
-						BluetoothPlugin.this._encoding);
+						String data = new String(
+							msg.getData().getByteArray(BluetoothWrapper.DATA_BYTES),
+							BluetoothPlugin.this._encoding);
 
-					if(_ioCallback != null)
-					{
-						PluginResult result = new PluginResult(PluginResult.Status.OK, data);
-						result.setKeepCallback(true);
-						_ioCallback.sendPluginResult(result);
-					}
-					else
-					{
-						Log.e(LOG_TAG, "CallbackContext for IO doesn't exist.");
-					}
+						if(_ioCallback != null)
+						{
+							PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+							result.setKeepCallback(true);
+							_ioCallback.sendPluginResult(result);
+						}
+						else
+						{
+							Log.e(LOG_TAG, "CallbackContext for IO doesn't exist.");
+						}
 
-					break;
+						break;
 
-				case BluetoothWrapper.MSG_BLUETOOTH_LOST:
+					case BluetoothWrapper.MSG_BLUETOOTH_LOST:
 
-					if(_discoveryCallback != null)
-					{
-						BluetoothPlugin.this.error(_discoveryCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_discoveryCallback = null;
-					}
+						if(_discoveryCallback != null)
+						{
+							BluetoothPlugin.this.error(_discoveryCallback,
+								"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
+							);
+							_discoveryCallback = null;
+						}
 
-					if(_pairingCallback != null)
-					{
-						BluetoothPlugin.this.error(_pairingCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_pairingCallback = null;
-					}
+						if(_pairingCallback != null)
+						{
+							BluetoothPlugin.this.error(_pairingCallback,
+								"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
+							);
+							_pairingCallback = null;
+						}
 
-					if(_uuidCallback != null)
-					{
-						BluetoothPlugin.this.error(_uuidCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_uuidCallback = null;
-					}
+						if(_uuidCallback != null)
+						{
+							BluetoothPlugin.this.error(_uuidCallback,
+								"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
+							);
+							_uuidCallback = null;
+						}
 
-					if(_connectCallback != null)
-					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_connectCallback = null;
-					}
+						if(_connectCallback != null)
+						{
+							BluetoothPlugin.this.error(_connectCallback,
+								"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
+							);
+							_connectCallback = null;
+						}
 
-					if(_ioCallback != null)
-					{
-						BluetoothPlugin.this.error(_ioCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_ioCallback = null;
-					}
+						if(_ioCallback != null)
+						{
+							BluetoothPlugin.this.error(_ioCallback,
+								"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
+							);
+							_ioCallback = null;
+						}
 
-					break;
+						break;
 
-				default:
+					default:
 
-					Log.e(LOG_TAG, "Message type could not be resolved.");
+						Log.e(LOG_TAG, "Message type could not be resolved.");
 
-					break;
+						break;
+				}
 			}
 
 			return true;
@@ -22,6 +22,8 @@ import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import android.provider.Settings;
 import org.apache.cordova.CallbackContext;
@@ -31,7 +33,9 @@ import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.File;
 import java.util.*;
 
 public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.LeScanCallback {
@@ -39,12 +43,15 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     // actions
     private static final String SCAN = "scan";
     private static final String START_SCAN = "startScan";
+    private static final String START_SCAN_WITH_OPTIONS = "startScanWithOptions";
     private static final String STOP_SCAN = "stopScan";
 
     private static final String LIST = "list";
 
     private static final String CONNECT = "connect";
     private static final String DISCONNECT = "disconnect";
+    private static final String SET_CONNECTION_OPTIONS = "setConnectionOptions";
+    private static final String CONNECTION_STATS = "connectionStats";
 
     private static final String READ = "read";
     private static final String WRITE = "write";
@@ -55,6 +62,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     private static final String IS_ENABLED = "isEnabled";
     private static final String IS_CONNECTED  = "isConnected";
+    private static final String QUEUE_STATS = "queueStats";
 
     private static final String SETTINGS = "showBluetoothSettings";
     private static final String ENABLE = "enable";
@@ -68,7 +76,32 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     BluetoothAdapter bluetoothAdapter;
 
     // key is the MAC Address
-    Map<String, Peripheral> peripherals = new LinkedHashMap<String, Peripheral>();
+    // written by scan callbacks, read by actions on other threads
+    final PeripheralRegistry peripherals = new PeripheralRegistry();
+
+    // GATT tables of peripherals connected before, created on first connect
+    private GattCache gattCache;
+
+    // limits how many peripherals connect at once, created on first use
+    private ConnectionManager connectionManager;
+
+    // decides which advertisements of the current scan are reported
+    private volatile ScanThrottle<Peripheral> scanThrottle;
+    // advertisements matching none of these are ignored, null lets all through
+    private volatile AdvertisingData.Filter[] scanFilters;
+    private final Handler scanHandler = new Handler(Looper.getMainLooper());
+
+    // sends the advertisements gathered by a scan in batch mode
+    private final Runnable flushScanBatch = new Runnable() {
+        @Override
+        public void run() {
+            flushScanBatch();
+            ScanThrottle<Peripheral> throttle = scanThrottle;
+            if (throttle != null) {
+                scanHandler.postDelayed(this, throttle.getInterval());
+            }
+        }
+    };
 
     @Override
     public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
@@ -87,16 +120,31 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
             int scanSeconds = args.getInt(1);
-            findLowEnergyDevices(callbackContext, serviceUUIDs, scanSeconds);
+            scanFilters = null;
+            findLowEnergyDevices(callbackContext, serviceUUIDs, scanSeconds, defaultScanThrottle());
 
         } else if (action.equals(START_SCAN)) {
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
-            findLowEnergyDevices(callbackContext, serviceUUIDs, -1);
+            scanFilters = null;
+            findLowEnergyDevices(callbackContext, serviceUUIDs, -1, defaultScanThrottle());
+
+        } else if (action.equals(START_SCAN_WITH_OPTIONS)) {
+
+            UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
+            JSONObject options = args.optJSONObject(1);
+            try {
+                ScanThrottle<Peripheral> throttle = options == null ? defaultScanThrottle() :
+                        ScanThrottle.<Peripheral>fromOptions(options, ScanThrottle.Mode.FIRST_SEEN);
+                scanFilters = options == null ? null : AdvertisingData.Filter.fromOptions(options);
+                findLowEnergyDevices(callbackContext, serviceUUIDs, -1, throttle);
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
 
         } else if (action.equals(STOP_SCAN)) {
 
-            bluetoothAdapter.stopLeScan(this);
+            stopScan();
             callbackContext.success();
 
         } else if (action.equals(LIST)) {
@@ -106,13 +154,28 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         } else if (action.equals(CONNECT)) {
 
             String macAddress = args.getString(0);
-            connect(callbackContext, macAddress);
+            JSONObject options = args.optJSONObject(1);
+            boolean cachedServices = options != null && options.optBoolean("cachedServices");
+            connect(callbackContext, macAddress, cachedServices);
 
         } else if (action.equals(DISCONNECT)) {
 
             String macAddress = args.getString(0);
             disconnect(callbackContext, macAddress);
 
+        } else if (action.equals(SET_CONNECTION_OPTIONS)) {
+
+            try {
+                getConnectionManager().configure(args.getJSONObject(0));
+                callbackContext.success();
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
+
+        } else if (action.equals(CONNECTION_STATS)) {
+
+            callbackContext.success(getConnectionManager().getStats());
+
         } else if (action.equals(READ)) {
 
             String macAddress = args.getString(0);
@@ -164,12 +227,25 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
             String macAddress = args.getString(0);
 
-            if (peripherals.containsKey(macAddress) && peripherals.get(macAddress).isConnected()) {
+            Peripheral peripheral = peripherals.get(macAddress);
+
+            if (peripheral != null && peripheral.isConnected()) {
                 callbackContext.success();
             } else {
                 callbackContext.error("Not connected.");
             }
 
+        } else if (action.equals(QUEUE_STATS)) {
+
+            String macAddress = args.getString(0);
+            Peripheral peripheral = peripherals.get(macAddress);
+
+            if (peripheral != null) {
+                callbackContext.success(peripheral.getQueueStats());
+            } else {
+                callbackContext.error("Peripheral " + macAddress + " not found.");
+            }
+
         } else if (action.equals(SETTINGS)) {
 
             Intent intent = new Intent(Settings.ACTION_BLUETOOTH_SETTINGS);
@@ -202,21 +278,39 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         return serviceUUIDs.toArray(new UUID[jsonArray.length()]);
     }
 
-    private void connect(CallbackContext callbackContext, String macAddress) {
+    private void connect(CallbackContext callbackContext, String macAddress, boolean cachedServices) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
-            peripheral.connect(callbackContext, cordova.getActivity());
+            // evict() and removeUnused() would otherwise be free to drop it until connect() has run
+            peripheral = peripherals.markConnecting(peripheral);
+            peripheral.connect(callbackContext, getGattCache(), cachedServices, getConnectionManager());
         } else {
             callbackContext.error("Peripheral " + macAddress + " not found.");
         }
 
     }
 
+    private GattCache getGattCache() {
+        if (gattCache == null) {
+            File file = new File(cordova.getActivity().getFilesDir(), "ble-central-gatt-cache");
+            gattCache = new GattCache(file, cordova.getThreadPool());
+        }
+        return gattCache;
+    }
+
+    private ConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            connectionManager = new ConnectionManager(cordova.getActivity());
+        }
+        return connectionManager;
+    }
+
     private void disconnect(CallbackContext callbackContext, String macAddress) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
+            getConnectionManager().cancel(peripheral);
             peripheral.disconnect();
         }
         callbackContext.success();
@@ -294,19 +388,23 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     }
 
 
-    private void findLowEnergyDevices(CallbackContext callbackContext, UUID[] serviceUUIDs, int scanSeconds) {
+    private ScanThrottle<Peripheral> defaultScanThrottle() {
+        return new ScanThrottle<Peripheral>(ScanThrottle.Mode.FIRST_SEEN, 0, ScanThrottle.DEFAULT_INTERVAL);
+    }
+
+    private void findLowEnergyDevices(CallbackContext callbackContext, UUID[] serviceUUIDs, int scanSeconds, ScanThrottle<Peripheral> throttle) {
 
         // TODO skip if currently scanning
 
         // clear non-connected cached peripherals
-        for(Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<String, Peripheral> entry = iterator.next();
-            if(!entry.getValue().isConnected()) {
-                iterator.remove();
-            }
-        }
+        peripherals.removeUnused();
 
         discoverCallback = callbackContext;
+        scanThrottle = throttle;
+        scanHandler.removeCallbacks(flushScanBatch);
+        if (throttle.getMode() == ScanThrottle.Mode.BATCH) {
+            scanHandler.postDelayed(flushScanBatch, throttle.getInterval());
+        }
 
         if (serviceUUIDs.length > 0) {
             bluetoothAdapter.startLeScan(serviceUUIDs, this);
@@ -320,7 +418,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
                 @Override
                 public void run() {
                     LOG.d(TAG, "Stopping Scan");
-                    BLECentralPlugin.this.bluetoothAdapter.stopLeScan(BLECentralPlugin.this);
+                    stopScan();
                 }
             }, scanSeconds * 1000);
         }
@@ -330,14 +428,44 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         callbackContext.sendPluginResult(result);
     }
 
+    private void stopScan() {
+        bluetoothAdapter.stopLeScan(this);
+        scanHandler.removeCallbacks(flushScanBatch);
+        // whatever a batch scan gathered since the last report
+        flushScanBatch();
+        scanThrottle = null;
+    }
+
+    private void flushScanBatch() {
+        ScanThrottle<Peripheral> throttle = scanThrottle;
+        if (throttle == null || throttle.getMode() != ScanThrottle.Mode.BATCH || discoverCallback == null) {
+            return;
+        }
+        List<Peripheral> batch = throttle.drain();
+        if (batch.isEmpty()) {
+            return;
+        }
+        JSONArray json = new JSONArray();
+        for (Peripheral peripheral : batch) {
+            json.put(peripheral.asJSONObject());
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        discoverCallback.sendPluginResult(result);
+    }
+
     private void listKnownDevices(CallbackContext callbackContext) {
 
         JSONArray json = new JSONArray();
 
-        // do we care about consistent order? will peripherals.values() be in order?
-        for (Map.Entry<String, Peripheral> entry : peripherals.entrySet()) {
-            Peripheral peripheral = entry.getValue();
-            json.put(peripheral.asJSONObject());
+        // a copy in the order the peripherals were discovered, scanning may go on meanwhile
+        for (Peripheral peripheral : peripherals.snapshot()) {
+            if (peripheral.isConnected()) {
+                // reuses the services and characteristics cached at connect time
+                json.put(peripheral.asJSONObject(peripheral.gatt));
+            } else {
+                json.put(peripheral.asJSONObject());
+            }
         }
 
         PluginResult result = new PluginResult(PluginResult.Status.OK, json);
@@ -347,27 +475,22 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
 
-        String address = device.getAddress();
-
-        if (!peripherals.containsKey(address)) {
-
-            Peripheral peripheral = new Peripheral(device, rssi, scanRecord);
-            peripherals.put(device.getAddress(), peripheral);
+        // checked on the raw bytes, so other devices cost neither a Peripheral nor a trip over the bridge
+        AdvertisingData.Filter[] filters = scanFilters;
+        if (filters != null && !AdvertisingData.Filter.matchesAny(filters, scanRecord)) {
+            return;
+        }
 
-            if (discoverCallback != null) {
-                PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                result.setKeepCallback(true);
-                discoverCallback.sendPluginResult(result);
-            }
+        Peripheral peripheral = peripherals.advertised(device, rssi, scanRecord);
 
-        } else {
-            // this isn't necessary
-            Peripheral peripheral = peripherals.get(address);
-            peripheral.updateRssi(rssi);
+        ScanThrottle<Peripheral> throttle = scanThrottle;
+        if (discoverCallback != null && throttle != null
+                && throttle.offer(device.getAddress(), rssi, peripheral, SystemClock.elapsedRealtime())) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
+            result.setKeepCallback(true);
+            discoverCallback.sendPluginResult(result);
         }
 
-        // TODO offer option to return duplicates
-
     }
 
     @Override
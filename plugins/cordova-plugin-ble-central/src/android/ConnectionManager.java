@@ -0,0 +1,255 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import org.apache.cordova.LOG;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schedules the connects of all peripherals.
+ *
+ * The Android stack misbehaves when several connectGatt calls or service discoveries
+ * overlap, so at most maxConnecting peripherals are connecting at a time. A peripheral
+ * holds its slot from connectGatt until its services are discovered, then the next
+ * waiting peripheral is connected.
+ *
+ * A connect that fails before the services are discovered, e.g. with the stack's
+ * status 133, is retried up to retries times. The retry waits retryDelay ms, doubled
+ * for each further attempt, without holding a slot, and then goes ahead of peripherals
+ * that haven't had an attempt yet.
+ *
+ * An attempt that still holds its slot after slotTimeout ms, e.g. because the stack
+ * never reported the discovered services, fails like any other attempt, so one lost
+ * callback can't keep the other peripherals waiting.
+ */
+class ConnectionManager {
+
+    private static final String TAG = "ConnectionManager";
+
+    static final int DEFAULT_MAX_CONNECTING = 1;
+    static final int DEFAULT_RETRIES = 2;
+    static final long DEFAULT_RETRY_DELAY = 500;
+    static final long MAX_RETRY_DELAY = 30 * 1000;
+    // longer than the stack's own connect timeout of about 30 s, plus a slow discovery
+    static final long DEFAULT_SLOT_TIMEOUT = 40 * 1000;
+
+    private final Activity activity;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int maxConnecting = DEFAULT_MAX_CONNECTING;
+    private int retries = DEFAULT_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private long slotTimeout = DEFAULT_SLOT_TIMEOUT;
+
+    private final ArrayDeque<Peripheral> waiting = new ArrayDeque<Peripheral>();
+    // holding a slot, with the timeout of the attempt
+    private final Map<Peripheral, Runnable> connecting = new HashMap<Peripheral, Runnable>();
+    private final Set<Peripheral> backingOff = new HashSet<Peripheral>();   // waiting to retry
+
+    // stats
+    private long connected;
+    private long failed;
+    private long retried;
+    private long timedOut;
+    private long totalLatency;
+    private long maxLatency;
+
+    ConnectionManager(Activity activity) {
+        this.activity = activity;
+    }
+
+    /**
+     * Change the limits with the options passed by JavaScript. Options left out keep their value.
+     * @throws IllegalArgumentException if the options are not valid
+     */
+    void configure(JSONObject options) {
+        int maxConnecting = options.optInt("maxConnecting", this.maxConnecting);
+        int retries = options.optInt("retries", this.retries);
+        long retryDelay = options.optLong("retryDelay", this.retryDelay);
+        long slotTimeout = options.optLong("slotTimeout", this.slotTimeout);
+
+        if (maxConnecting < 1) {
+            throw new IllegalArgumentException("maxConnecting must be at least 1");
+        }
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative");
+        }
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("retryDelay must not be negative");
+        }
+        if (slotTimeout < 1) {
+            throw new IllegalArgumentException("slotTimeout must be positive");
+        }
+
+        synchronized (this) {
+            this.maxConnecting = maxConnecting;
+            this.retries = retries;
+            this.retryDelay = retryDelay;
+            this.slotTimeout = slotTimeout;
+            // a higher limit may let waiting peripherals go
+            startWaiting();
+        }
+    }
+
+    /**
+     * Connect the peripheral when a slot is free. Does nothing if it is already being connected.
+     */
+    synchronized void connect(Peripheral peripheral) {
+        if (connecting.containsKey(peripheral) || backingOff.contains(peripheral) || waiting.contains(peripheral)) {
+            return;
+        }
+        waiting.add(peripheral);
+        startWaiting();
+    }
+
+    /**
+     * The peripheral's services were discovered, its slot is free.
+     */
+    synchronized void ready(Peripheral peripheral) {
+        if (!freeSlot(peripheral)) {
+            return;
+        }
+        long latency = peripheral.getConnectLatency();
+        connected++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        LOG.d(TAG, "Connected " + peripheral.getDevice().getAddress() + " in " + latency + " ms, attempt " +
+                peripheral.getConnectAttempts());
+        startWaiting();
+    }
+
+    /**
+     * A connect attempt failed before the services were discovered.
+     * @return true if it will be retried, false if the connect failed for good
+     */
+    synchronized boolean failed(final Peripheral peripheral) {
+        if (!freeSlot(peripheral)) {
+            // cancelled meanwhile
+            return false;
+        }
+        int attempts = peripheral.getConnectAttempts();
+
+        boolean retry = attempts <= retries;
+        if (retry) {
+            retried++;
+            backingOff.add(peripheral);
+            long delay = Math.min(retryDelay << Math.min(attempts - 1, 16), MAX_RETRY_DELAY);
+            LOG.d(TAG, "Connecting " + peripheral.getDevice().getAddress() + " failed, retrying in " + delay + " ms");
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    retry(peripheral);
+                }
+            }, delay);
+        } else {
+            failed++;
+            LOG.w(TAG, "Connecting " + peripheral.getDevice().getAddress() + " failed after " + attempts + " attempts");
+        }
+
+        startWaiting();
+        return retry;
+    }
+
+    /**
+     * Forget the peripheral, e.g. when JavaScript disconnects it while it is connecting.
+     */
+    synchronized void cancel(Peripheral peripheral) {
+        waiting.remove(peripheral);
+        backingOff.remove(peripheral);
+        if (freeSlot(peripheral)) {
+            startWaiting();
+        }
+    }
+
+    synchronized JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("maxConnecting", maxConnecting);
+            json.put("retries", retries);
+            json.put("retryDelay", retryDelay);
+            json.put("slotTimeout", slotTimeout);
+            json.put("connecting", connecting.size());
+            json.put("waiting", waiting.size());
+            json.put("backingOff", backingOff.size());
+            json.put("connected", connected);
+            json.put("failed", failed);
+            json.put("retried", retried);
+            json.put("timedOut", timedOut);
+            json.put("averageLatency", connected > 0 ? (double) totalLatency / connected : 0);
+            json.put("maxLatency", maxLatency);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private synchronized void retry(Peripheral peripheral) {
+        // unless it was cancelled meanwhile
+        if (backingOff.remove(peripheral)) {
+            waiting.addFirst(peripheral);
+            startWaiting();
+        }
+    }
+
+    // The attempt still held its slot when its time was up
+    private void timedOut(Peripheral peripheral, Runnable timeout) {
+        synchronized (this) {
+            // unless it finished meanwhile, or this is an earlier attempt's timeout
+            if (connecting.get(peripheral) != timeout) {
+                return;
+            }
+            timedOut++;
+        }
+        LOG.w(TAG, "Connecting " + peripheral.getDevice().getAddress() + " timed out after " + slotTimeout + " ms");
+        // calls failed() like any failed attempt, outside the lock as the stack's callbacks do
+        peripheral.connectTimedOut();
+    }
+
+    // Returns false if the peripheral wasn't holding a slot
+    private boolean freeSlot(Peripheral peripheral) {
+        Runnable timeout = connecting.remove(peripheral);
+        if (timeout == null) {
+            return false;
+        }
+        handler.removeCallbacks(timeout);
+        return true;
+    }
+
+    // connectGatt is called with the lock held, so cancel() can't slip in between
+    private void startWaiting() {
+        while (connecting.size() < maxConnecting && !waiting.isEmpty()) {
+            final Peripheral peripheral = waiting.poll();
+            Runnable timeout = new Runnable() {
+                @Override
+                public void run() {
+                    timedOut(peripheral, this);
+                }
+            };
+            connecting.put(peripheral, timeout);
+            handler.postDelayed(timeout, slotTimeout);
+            peripheral.openGatt(activity);
+        }
+    }
+}
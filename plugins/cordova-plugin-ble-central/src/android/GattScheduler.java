@@ -0,0 +1,272 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.LOG;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs the GATT operations of a Peripheral one at a time.
+ *
+ * Android ignores a GATT operation while another one is in progress, so commands are
+ * queued and dispatched when the previous one completes. Notification setup goes first,
+ * then reads and writes with response in the order they were made, then writes without
+ * response, so a bulk upload doesn't hold up configuring the device.
+ *
+ * An operation that doesn't complete within its timeout is failed and the next one is
+ * dispatched, so one lost callback can't block the queue.
+ *
+ * While the peripheral's services are being discovered the scheduler is held: commands are
+ * queued but not dispatched until release() is called.
+ */
+class GattScheduler {
+
+    /**
+     * Starts commands for the scheduler. The dispatcher must call completed() when the
+     * command finishes, which may be before dispatch() returns.
+     */
+    interface Dispatcher {
+        void dispatch(BLECommand command);
+    }
+
+    private static final String TAG = "GattScheduler";
+
+    // How long an operation may take before it is failed
+    static final long OPERATION_TIMEOUT = 5000;
+    // Writes without response complete as soon as the stack has buffered them
+    static final long WRITE_NO_RESPONSE_TIMEOUT = 1000;
+
+    // Retries when the stack is still busy with a write without response
+    static final int MAX_BUSY_RETRIES = 5;
+    static final long BUSY_RETRY_DELAY = 10;
+
+    private final Dispatcher dispatcher;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<BLECommand>[] queues = new ArrayDeque[BLECommand.PRIORITY_COUNT];
+
+    private BLECommand current;
+    private long currentStarted;
+    private int currentRetries;
+    private boolean held;
+
+    // stats
+    private int maxQueued;
+    private long completed;
+    private long timedOut;
+    private long retried;
+    private long cancelled;
+    private long totalLatency;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            redispatch();
+        }
+    };
+
+    GattScheduler(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<BLECommand>();
+        }
+    }
+
+    synchronized void add(BLECommand command) {
+        queues[command.getPriority()].add(command);
+        int queued = queued();
+        if (queued > maxQueued) {
+            maxQueued = queued;
+        }
+        if (current == null) {
+            next();
+        }
+    }
+
+    /**
+     * Queue commands without dispatching them, e.g. until service discovery completes.
+     */
+    synchronized void hold() {
+        held = true;
+    }
+
+    /**
+     * Dispatch the commands queued while held.
+     */
+    synchronized void release() {
+        held = false;
+        next();
+    }
+
+    /**
+     * The command in progress, or null.
+     */
+    synchronized BLECommand getCurrent() {
+        return current;
+    }
+
+    /**
+     * Mark the command as finished and dispatch the next one. Ignored if the command is not
+     * the one in progress, e.g. a late callback for an operation that already timed out.
+     */
+    synchronized void completed(BLECommand command) {
+        if (command == null || command != current) {
+            LOG.d(TAG, "Ignoring completion of a command that is not in progress");
+            return;
+        }
+        handler.removeCallbacks(timeout);
+        handler.removeCallbacks(retry);
+        completed++;
+        totalLatency += SystemClock.elapsedRealtime() - currentStarted;
+        current = null;
+        next();
+    }
+
+    /**
+     * Dispatch the command in progress again after a short delay, because the stack was busy.
+     * @return false if the command has been retried too often and should be failed
+     */
+    synchronized boolean retryLater(BLECommand command) {
+        if (command != current || currentRetries >= MAX_BUSY_RETRIES) {
+            return false;
+        }
+        currentRetries++;
+        retried++;
+        handler.postDelayed(retry, BUSY_RETRY_DELAY);
+        return true;
+    }
+
+    /**
+     * Fail every queued command and the one in progress, e.g. after disconnecting.
+     */
+    synchronized void cancelAll(String reason) {
+        handler.removeCallbacks(timeout);
+        handler.removeCallbacks(retry);
+        if (current != null) {
+            fail(current, reason);
+            cancelled++;
+            current = null;
+        }
+        for (ArrayDeque<BLECommand> queue : queues) {
+            BLECommand command;
+            while ((command = queue.poll()) != null) {
+                fail(command, reason);
+                cancelled++;
+            }
+        }
+    }
+
+    synchronized JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("queued", queued());
+            json.put("queuedNotify", queues[BLECommand.PRIORITY_NOTIFY].size());
+            json.put("queuedDefault", queues[BLECommand.PRIORITY_DEFAULT].size());
+            json.put("queuedBulk", queues[BLECommand.PRIORITY_BULK].size());
+            json.put("maxQueued", maxQueued);
+            json.put("busy", current != null);
+            json.put("held", held);
+            json.put("completed", completed);
+            json.put("timedOut", timedOut);
+            json.put("retried", retried);
+            json.put("cancelled", cancelled);
+            json.put("averageLatency", completed > 0 ? (double) totalLatency / completed : 0);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private int queued() {
+        int queued = 0;
+        for (ArrayDeque<BLECommand> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    private void next() {
+        while (current == null && !held) {
+            BLECommand command = null;
+            for (ArrayDeque<BLECommand> queue : queues) {
+                command = queue.poll();
+                if (command != null) {
+                    break;
+                }
+            }
+            if (command == null) {
+                LOG.d(TAG, "Command Queue is empty.");
+                return;
+            }
+
+            current = command;
+            currentStarted = SystemClock.elapsedRealtime();
+            currentRetries = 0;
+            handler.postDelayed(timeout, timeoutFor(command));
+
+            // may complete synchronously, in which case the loop picks the next command
+            dispatcher.dispatch(command);
+        }
+    }
+
+    private synchronized void redispatch() {
+        if (current != null) {
+            dispatcher.dispatch(current);
+        }
+    }
+
+    private synchronized void onTimeout() {
+        if (current == null) {
+            return;
+        }
+        LOG.w(TAG, "Command timed out " + current.getCharacteristicUUID());
+        timedOut++;
+        handler.removeCallbacks(retry);
+        fail(current, "Operation timed out");
+        current = null;
+        next();
+    }
+
+    private long timeoutFor(BLECommand command) {
+        if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return WRITE_NO_RESPONSE_TIMEOUT;
+        }
+        return OPERATION_TIMEOUT;
+    }
+
+    // Writes without response have already been answered, so only unanswered callbacks are failed
+    private void fail(BLECommand command, String reason) {
+        CallbackContext callbackContext = command.getCallbackContext();
+        if (!callbackContext.isFinished()) {
+            callbackContext.error(reason);
+        }
+    }
+}
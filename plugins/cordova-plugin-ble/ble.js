@@ -13,9 +13,25 @@ var exec = cordova.require('cordova/exec');
 * <p>Will keep scanning indefinitely until you call stopScan().</p>
 * To conserve energy, call stopScan() as soon as you've found the device you're looking for.
 * <p>Calling this function while scanning is in progress has no effect?</p>
+* <p>By default every advertisement is reported, so a nearby device is reported
+* several times a second. On Android, options.mode chooses which advertisements
+* are reported instead:</p>
+* <ul>
+* <li>'all': every advertisement (the default).</li>
+* <li>'firstSeen': the first advertisement of each device.</li>
+* <li>'rssiChange': when the rssi of a device changed by at least options.rssiDelta
+* (default 5) since it was last reported.</li>
+* <li>'interval': each device at most once every options.interval milliseconds (default 1000).</li>
+* <li>'batch': the latest advertisement of each device, sent together every
+* options.interval milliseconds. win is still called once per device.</li>
+* </ul>
+* <p>On Android, options.filters limits the scan to devices whose advertisement
+* matches at least one filter. Filters are checked natively, before anything is
+* sent to JavaScript. See {@link ScanFilter}.</p>
 *
 * @param {scanCallback} win
 * @param {failCallback} fail
+* @param {ScanOptions} [options]
 *
 * @example
 evothings.ble.startScan(
@@ -29,10 +45,36 @@ evothings.ble.startScan(
 	}
 );
 */
-exports.startScan = function(win, fail) {
-	exec(win, fail, 'BLE', 'startScan', []);
+exports.startScan = function(win, fail, options) {
+	// In batch mode a single result holds several devices.
+	function onScan(result) {
+		if(Array.isArray(result)) {
+			for(var i = 0; i < result.length; i++) {
+				win(result[i]);
+			}
+		} else {
+			win(result);
+		}
+	}
+	exec(onScan, fail, 'BLE', 'startScan', options ? [options] : []);
 };
 
+/** Options for startScan(). Android only.
+* @typedef {Object} ScanOptions
+* @property {string} mode - 'all', 'firstSeen', 'rssiChange', 'interval' or 'batch'.
+* @property {number} rssiDelta - RSSI change that reports a device again in 'rssiChange' mode.
+* @property {number} interval - Milliseconds between reports in 'interval' and 'batch' modes.
+* @property {ScanFilter[]} filters - Report only devices that match one of these.
+*/
+
+/** A scan filter. Give either manufacturerId or serviceDataUUID.
+* @typedef {Object} ScanFilter
+* @property {number} manufacturerId - Company identifier of the manufacturer data, e.g. 0x0059.
+* @property {number[]} manufacturerData - Bytes the manufacturer data must start with, after the company identifier. Optional.
+* @property {string} serviceDataUUID - Service of the service data, 4 or 8 hex digits or a full UUID.
+* @property {number[]} serviceData - Bytes the service data must start with. Optional.
+*/
+
 /** This function is a parameter to startScan() and is called when a new device is discovered.
 * @callback scanCallback
 * @param {DeviceInfo} device
@@ -46,7 +88,7 @@ exports.startScan = function(win, fail) {
 * @property {number} rssi - A negative integer, the signal strength in decibels.
 * @property {string} name - The device's name, or nil.
 * @property {string} scanRecord - Base64-encoded binary data. Its meaning is device-specific. Not available on iOS.
-* @property {AdvertisementData} advertisementData - Object containing some of the data from the scanRecord. Available natively on iOS. Available on Android by parsing the scanRecord, which is implemented in the library {@link https://github.com/evothings/evothings-examples/tree/master/resources/libs/evothings/easyble|easyble.js}.
+* @property {AdvertisementData} advertisementData - Object containing some of the data from the scanRecord. Available natively on iOS, and on Android where the plugin decodes the scanRecord.
 */
 
 /** Information extracted from a scanRecord. Some or all of the fields may be undefined. This varies between BLE devices.
@@ -55,9 +97,10 @@ exports.startScan = function(win, fail) {
  * @property {string} kCBAdvDataLocalName - The device's name. Equal to DeviceInfo.name.
  * @property {number} kCBAdvDataChannel - A positive integer, the BLE channel on which the device listens for connections. Ignore this number.
  * @property {boolean} kCBAdvDataIsConnectable - True if the device accepts connections. False if it doesn't.
- * @property {array} kCBAdvDataServiceUUIDs - Array of strings, the UUIDs of services advertised by the device. Formatted according to RFC 4122, all lowercase.
+ * @property {array} kCBAdvDataServiceUUIDs - Array of strings, the UUIDs of services advertised by the device. Formatted according to RFC 4122, all lowercase. When easyble parses the scanRecord itself, 128-bit UUIDs here and in kCBAdvDataServiceData come out in reversed byte order.
  * @property {object} kCBAdvDataServiceData - Dictionary of strings to strings. The keys are service UUIDs. The values are base-64-encoded binary data.
  * @property {string} kCBAdvDataManufacturerData - Base-64-encoded binary data. This field is used by BLE devices to advertise custom data that don't fit into any of the other fields.
+ * @property {number} flags - The advertised flags byte. Android only.
  */
 
 /** This function is called when an operation fails.
@@ -124,6 +167,8 @@ exports.connectionState = {
 /** Close the connection to a remote device.
 * <p>Frees any native resources associated with the device.
 * <p>Does not cause any callbacks to the function passed to connect().
+* <p>Functions called with the deviceHandle afterwards fail with "Invalid device handle",
+* and operations still queued fail with "closed".
 
 * @param {number} deviceHandle - A handle from {@link connectCallback}.
 * @example
@@ -420,10 +465,29 @@ exports.writeDescriptor = function(deviceHandle, descriptorHandle, data, win, fa
 * in addition to calling this function.
 * Refer to your device's documentation.
 *
+* <p>On Android, notifications from a uLanding radar altimeter can be decoded
+* natively by passing the options <code>{ decoder: 'ulanding', coefficient: 0.045 }</code>.
+* Frames without the 0xAD header are dropped, and win is called with
+* the two numbers (altitude, raw) instead of an ArrayBuffer.
+* The coefficient defaults to 0.045; confirm it for your specific uLanding.
+*
+* <p>On Android, high-rate notifications can be batched by passing
+* <code>{ batchSize: 16, batchLatency: 50 }</code> in the options.
+* Up to batchSize values are then sent to JavaScript in one bridge message,
+* which is flushed when full or at most batchLatency milliseconds
+* (default 50) after its first value arrived.
+* win is still called once per value.
+*
+* <p>On Android, <code>{ latestOnly: true }</code> in the options makes a value
+* that is still waiting to be sent to JavaScript be replaced by the next one.
+* When JavaScript is busy, win then gets the current value instead of a backlog.
+* Has no effect on batched notifications.
+*
 * @param {number} deviceHandle - A handle from {@link connectCallback}.
 * @param {number} characteristicHandle - A handle from {@link characteristicCallback}.
 * @param {dataCallback} win - Called every time the value changes.
 * @param {failCallback} fail
+* @param {object} [options] - Optional notification settings, see above.
 * @example
 evothings.ble.enableNotification(
 	deviceHandle,
@@ -437,8 +501,22 @@ evothings.ble.enableNotification(
 		console.log('BLE enableNotification error: ' + errorCode);
 	});
 */
-exports.enableNotification = function(deviceHandle, characteristicHandle, win, fail) {
-	exec(win, fail, 'BLE', 'enableNotification', [deviceHandle, characteristicHandle]);
+exports.enableNotification = function(deviceHandle, characteristicHandle, win, fail, options) {
+	var args = [deviceHandle, characteristicHandle];
+	var callback = win;
+	if (options) {
+		args.push(options);
+		if (options.batchSize > 1) {
+			// A batch arrives as one call with the arguments of each value in a row.
+			var stride = (options.decoder == 'ulanding') ? 2 : 1;
+			callback = function() {
+				for (var i = 0; i < arguments.length; i += stride) {
+					win.apply(null, Array.prototype.slice.call(arguments, i, i + stride));
+				}
+			};
+		}
+	}
+	exec(callback, fail, 'BLE', 'enableNotification', args);
 };
 
 /** Disable notification of changes to a characteristic's value.
@@ -463,6 +541,26 @@ exports.disableNotification = function(deviceHandle, characteristicHandle, win,
 	exec(win, fail, 'BLE', 'disableNotification', [deviceHandle, characteristicHandle]);
 };
 
+/** Reports on the queue of GATT operations of a device. Android only.
+* <p>Reads, writes and services() are queued and run one at a time. An operation
+* whose result doesn't come within 5 seconds (20 for services) fails with "timeout"
+* and the queue moves on. close() fails the queued operations with "closed".
+*
+* @param {number} deviceHandle - A handle from {@link connectCallback}.
+* @param {queueStatsCallback} win
+* @param {failCallback} fail
+*/
+exports.queueStats = function(deviceHandle, win, fail) {
+	exec(win, fail, 'BLE', 'queueStats', [deviceHandle]);
+};
+
+/**
+* @callback queueStatsCallback
+* @param {object} stats - With the number of operations <code>queued</code>,
+* <code>maxQueued</code>, <code>busy</code> if one is running, and the number of
+* operations <code>completed</code>, <code>timedOut</code> and <code>cancelled</code>.
+*/
+
 /** i is an integer. It is converted to byte and put in an array[1].
 * The array is returned.
 * <p>assert(string.charCodeAt(0) == i).
@@ -0,0 +1,334 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import android.util.Base64;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// The AD structures of a scanRecord, decoded once in native code.
+// See the Bluetooth Specification, v4.0, Volume 3, Part C, Section 11.
+//
+// toJSON() gives the advertisementData object, so easyble.js skips its own
+// parsing of the scanRecord. It differs from what easyble.js builds in two ways:
+// 128-bit UUIDs, in kCBAdvDataServiceUUIDs and as kCBAdvDataServiceData keys,
+// are in canonical order rather than the reversed byte order they are sent in,
+// so they compare equal to the UUIDs an app passes in. And there is a flags key.
+//
+// cordova-plugin-ble-central has a port of this class, named AdvertisingData
+// after its own JSON key. Fixes to the parsing or the filters belong in both.
+class AdvertisementData {
+	// AD types.
+	static final int TYPE_FLAGS = 0x01;
+	static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	static final int TYPE_UUID16 = 0x03;
+	static final int TYPE_UUID32_INCOMPLETE = 0x04;
+	static final int TYPE_UUID32 = 0x05;
+	static final int TYPE_UUID128_INCOMPLETE = 0x06;
+	static final int TYPE_UUID128 = 0x07;
+	static final int TYPE_SHORT_NAME = 0x08;
+	static final int TYPE_NAME = 0x09;
+	static final int TYPE_TX_POWER = 0x0A;
+	static final int TYPE_SERVICE_DATA16 = 0x16;
+	static final int TYPE_SERVICE_DATA32 = 0x20;
+	static final int TYPE_SERVICE_DATA128 = 0x21;
+	static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+	// The Bluetooth base UUID, a 16 or 32 bit UUID goes in the top 32 bits.
+	private static final long BASE_MSB = 0x0000000000001000L;
+	private static final long BASE_LSB = 0x800000805f9b34fbL;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// -1 if not advertised.
+	int mFlags = -1;
+	String mLocalName;
+	// Integer.MIN_VALUE if not advertised.
+	int mTxPowerLevel = Integer.MIN_VALUE;
+	final List<UUID> mServiceUUIDs = new ArrayList<UUID>();
+	final Map<UUID, byte[]> mServiceData = new LinkedHashMap<UUID, byte[]>();
+	// The last manufacturer data structure, company identifier included.
+	byte[] mManufacturerData;
+
+	// Decodes a scanRecord. Malformed structures end the parsing, keeping what was decoded so far.
+	static AdvertisementData parse(byte[] scanRecord) {
+		AdvertisementData ad = new AdvertisementData();
+		int pos = 0;
+		while(pos < scanRecord.length) {
+			int length = scanRecord[pos] & 0xFF;
+			if(length == 0 || pos + 1 + length > scanRecord.length) {
+				break;
+			}
+			int type = scanRecord[pos + 1] & 0xFF;
+			int data = pos + 2;
+			int dataLength = length - 1;
+			ad.decode(scanRecord, type, data, dataLength);
+			pos += 1 + length;
+		}
+		return ad;
+	}
+
+	private void decode(byte[] b, int type, int offset, int length) {
+		switch(type) {
+			case TYPE_FLAGS:
+				if(length >= 1) {
+					mFlags = b[offset] & 0xFF;
+				}
+				break;
+			case TYPE_UUID16_INCOMPLETE:
+			case TYPE_UUID16:
+				for(int i = 0; i + 2 <= length; i += 2) {
+					mServiceUUIDs.add(shortUuid(littleEndian(b, offset + i, 2)));
+				}
+				break;
+			case TYPE_UUID32_INCOMPLETE:
+			case TYPE_UUID32:
+				for(int i = 0; i + 4 <= length; i += 4) {
+					mServiceUUIDs.add(shortUuid(littleEndian(b, offset + i, 4)));
+				}
+				break;
+			case TYPE_UUID128_INCOMPLETE:
+			case TYPE_UUID128:
+				for(int i = 0; i + 16 <= length; i += 16) {
+					mServiceUUIDs.add(uuid128(b, offset + i));
+				}
+				break;
+			case TYPE_SHORT_NAME:
+			case TYPE_NAME:
+				mLocalName = new String(b, offset, length, UTF8);
+				break;
+			case TYPE_TX_POWER:
+				if(length >= 1) {
+					mTxPowerLevel = b[offset];
+				}
+				break;
+			case TYPE_SERVICE_DATA16:
+			case TYPE_SERVICE_DATA32:
+			case TYPE_SERVICE_DATA128:
+				int uuidLength = serviceDataUuidLength(type);
+				if(length >= uuidLength) {
+					mServiceData.put(serviceDataUuid(b, type, offset), copy(b, offset + uuidLength, length - uuidLength));
+				}
+				break;
+			case TYPE_MANUFACTURER_DATA:
+				mManufacturerData = copy(b, offset, length);
+				break;
+		}
+	}
+
+	// The advertisementData object documented in ble.js.
+	JSONObject toJSON() throws JSONException {
+		JSONObject o = new JSONObject();
+		if(mFlags >= 0) {
+			o.put("flags", mFlags);
+		}
+		if(mLocalName != null) {
+			o.put("kCBAdvDataLocalName", mLocalName);
+		}
+		if(mTxPowerLevel != Integer.MIN_VALUE) {
+			o.put("kCBAdvDataTxPowerLevel", mTxPowerLevel);
+		}
+		if(!mServiceUUIDs.isEmpty()) {
+			JSONArray a = new JSONArray();
+			for(UUID u : mServiceUUIDs) {
+				a.put(u.toString());
+			}
+			o.put("kCBAdvDataServiceUUIDs", a);
+		}
+		if(!mServiceData.isEmpty()) {
+			JSONObject d = new JSONObject();
+			for(Map.Entry<UUID, byte[]> e : mServiceData.entrySet()) {
+				d.put(e.getKey().toString(), Base64.encodeToString(e.getValue(), Base64.NO_WRAP));
+			}
+			o.put("kCBAdvDataServiceData", d);
+		}
+		if(mManufacturerData != null) {
+			o.put("kCBAdvDataManufacturerData", Base64.encodeToString(mManufacturerData, Base64.NO_WRAP));
+		}
+		return o;
+	}
+
+	// Scan filters, checked against the raw scanRecord before anything is decoded.
+	// A filter matches a manufacturer data structure with the given company identifier,
+	// or a service data structure with the given service UUID, whose data starts with the prefix.
+	static class Filter {
+		// -1 for a service data filter.
+		final int mManufacturerId;
+		// null for a manufacturer data filter.
+		final UUID mServiceUuid;
+		final byte[] mPrefix;
+
+		Filter(int manufacturerId, UUID serviceUuid, byte[] prefix) {
+			mManufacturerId = manufacturerId;
+			mServiceUuid = serviceUuid;
+			mPrefix = prefix;
+		}
+
+		// Returns the filters in the "filters" array of startScan() options, or null if there are none.
+		// Throws IllegalArgumentException if a filter is not valid.
+		static Filter[] fromOptions(JSONObject options) {
+			JSONArray a = options != null ? options.optJSONArray("filters") : null;
+			if(a == null || a.length() == 0) {
+				return null;
+			}
+			Filter[] filters = new Filter[a.length()];
+			for(int i = 0; i < a.length(); i++) {
+				JSONObject f = a.optJSONObject(i);
+				if(f == null) {
+					throw new IllegalArgumentException("A filter must be an object");
+				}
+				if(f.has("manufacturerId")) {
+					int id = f.optInt("manufacturerId", -1);
+					if(id < 0 || id > 0xFFFF) {
+						throw new IllegalArgumentException("manufacturerId must be 0 to 65535");
+					}
+					filters[i] = new Filter(id, null, prefix(f.optJSONArray("manufacturerData")));
+				} else if(f.has("serviceDataUUID")) {
+					filters[i] = new Filter(-1, parseUuid(f.optString("serviceDataUUID")), prefix(f.optJSONArray("serviceData")));
+				} else {
+					throw new IllegalArgumentException("A filter needs manufacturerId or serviceDataUUID");
+				}
+			}
+			return filters;
+		}
+
+		// True if any of the filters matches the scanRecord.
+		static boolean matchesAny(Filter[] filters, byte[] scanRecord) {
+			int pos = 0;
+			while(pos < scanRecord.length) {
+				int length = scanRecord[pos] & 0xFF;
+				if(length == 0 || pos + 1 + length > scanRecord.length) {
+					return false;
+				}
+				int type = scanRecord[pos + 1] & 0xFF;
+				for(Filter f : filters) {
+					if(f.matches(scanRecord, type, pos + 2, length - 1)) {
+						return true;
+					}
+				}
+				pos += 1 + length;
+			}
+			return false;
+		}
+
+		private boolean matches(byte[] b, int type, int offset, int length) {
+			if(mServiceUuid == null) {
+				return type == TYPE_MANUFACTURER_DATA && length >= 2
+					&& littleEndian(b, offset, 2) == mManufacturerId
+					&& startsWith(b, offset + 2, length - 2);
+			}
+			if(type != TYPE_SERVICE_DATA16 && type != TYPE_SERVICE_DATA32 && type != TYPE_SERVICE_DATA128) {
+				return false;
+			}
+			int uuidLength = serviceDataUuidLength(type);
+			return length >= uuidLength
+				&& uuidEquals(b, type, offset, mServiceUuid)
+				&& startsWith(b, offset + uuidLength, length - uuidLength);
+		}
+
+		private boolean startsWith(byte[] b, int offset, int length) {
+			if(length < mPrefix.length) {
+				return false;
+			}
+			for(int i = 0; i < mPrefix.length; i++) {
+				if(b[offset + i] != mPrefix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static byte[] prefix(JSONArray a) {
+			if(a == null) {
+				return new byte[0];
+			}
+			byte[] prefix = new byte[a.length()];
+			for(int i = 0; i < prefix.length; i++) {
+				int v = a.optInt(i, -1);
+				if(v < 0 || v > 0xFF) {
+					throw new IllegalArgumentException("Filter data must be bytes, 0 to 255");
+				}
+				prefix[i] = (byte)v;
+			}
+			return prefix;
+		}
+
+		// Accepts 16 and 32 bit UUIDs as 4 or 8 hex digits, as well as full UUIDs.
+		private static UUID parseUuid(String s) {
+			try {
+				if(s.length() == 4 || s.length() == 8) {
+					return shortUuid(Long.parseLong(s, 16));
+				}
+				return UUID.fromString(s);
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Not a UUID: " + s);
+			}
+		}
+	}
+
+	private static int serviceDataUuidLength(int type) {
+		return type == TYPE_SERVICE_DATA16 ? 2 : (type == TYPE_SERVICE_DATA32 ? 4 : 16);
+	}
+
+	private static UUID serviceDataUuid(byte[] b, int type, int offset) {
+		if(type == TYPE_SERVICE_DATA128) {
+			return uuid128(b, offset);
+		}
+		return shortUuid(littleEndian(b, offset, serviceDataUuidLength(type)));
+	}
+
+	// Compares without creating a UUID.
+	private static boolean uuidEquals(byte[] b, int type, int offset, UUID uuid) {
+		if(type == TYPE_SERVICE_DATA128) {
+			return littleEndian(b, offset, 8) == uuid.getLeastSignificantBits()
+				&& littleEndian(b, offset + 8, 8) == uuid.getMostSignificantBits();
+		}
+		long value = littleEndian(b, offset, serviceDataUuidLength(type));
+		return uuid.getLeastSignificantBits() == BASE_LSB
+			&& uuid.getMostSignificantBits() == ((value << 32) | BASE_MSB);
+	}
+
+	private static UUID shortUuid(long value) {
+		return new UUID((value << 32) | BASE_MSB, BASE_LSB);
+	}
+
+	// 128 bit UUIDs are advertised least significant byte first.
+	private static UUID uuid128(byte[] b, int offset) {
+		return new UUID(littleEndian(b, offset + 8, 8), littleEndian(b, offset, 8));
+	}
+
+	private static long littleEndian(byte[] b, int offset, int count) {
+		long value = 0;
+		for(int i = offset + count - 1; i >= offset; i--) {
+			value = (value << 8) | (b[i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static byte[] copy(byte[] b, int offset, int length) {
+		byte[] c = new byte[length];
+		System.arraycopy(b, offset, c, 0, length);
+		return c;
+	}
+}
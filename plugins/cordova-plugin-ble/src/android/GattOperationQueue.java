@@ -0,0 +1,266 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+import android.os.Handler;
+import android.os.SystemClock;
+
+// The queue of GATT operations of one device. Android runs one operation at a time,
+// so an operation is started when the previous one has completed.
+//
+// Operations are records kept in a ring that doubles when full. A record is
+// reused once its operation has completed, so queueing costs no allocation.
+//
+// The running operation has a deadline. If its GATT callback doesn't come by then,
+// the operation fails with "timeout", so one lost callback doesn't freeze all I/O to
+// the device. The next operation is started only after a grace period, or when the
+// late callback arrives, whichever is first. Starting it at once would let the late
+// callback complete the wrong operation, and while the stack is still busy the next
+// operations would fail one after another.
+//
+// A callback completes the running operation only if its type and its characteristic
+// or descriptor object match, so a stray callback never answers another caller.
+class GattOperationQueue {
+	// Operation types.
+	static final int SERVICES = 0;
+	static final int READ_CHARACTERISTIC = 1;
+	static final int READ_DESCRIPTOR = 2;
+	static final int WRITE_CHARACTERISTIC = 3;
+	static final int WRITE_DESCRIPTOR = 4;
+
+	// How long an operation may run before it fails.
+	static final long OPERATION_TIMEOUT = 5000;
+	// Service discovery of a large device takes several seconds.
+	static final long SERVICES_TIMEOUT = 20000;
+	// How long a timed out operation waits for its late callback.
+	static final long LATE_CALLBACK_GRACE = 2000;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	// An operation, and the callback waiting for its result.
+	static final class Operation {
+		int mType;
+		// Characteristic or descriptor handle, unused by SERVICES.
+		int mHandle;
+		// The characteristic or descriptor of mHandle, set when the operation is
+		// dispatched. Its callback must carry the same object.
+		Object mTarget;
+		// Value of a write.
+		byte[] mValue;
+		// Null once the operation has timed out.
+		CallbackContext mCallbackContext;
+		long mDeadline;
+
+		private void clear() {
+			mTarget = null;
+			mValue = null;
+			mCallbackContext = null;
+		}
+	}
+
+	private final Handler mHandler;
+	// Starts the next operation after a timeout.
+	private final Runnable mNext;
+
+	// The queued operations are mRing[mHead] to mRing[mHead + mCount - 1], modulo the length.
+	// Every slot holds a record, used or not.
+	private Operation[] mRing;
+	private int mHead;
+	private int mCount;
+
+	// The running operation, and a free record to swap into the ring for it.
+	private Operation mCurrent;
+	private Operation mSpare = new Operation();
+
+	// Stats.
+	private int mMaxQueued;
+	private long mCompleted;
+	private long mTimedOut;
+	private long mLate;
+	private long mCancelled;
+
+	private final Runnable mTimeout = new Runnable() {
+		@Override
+		public void run() {
+			onTimeout();
+		}
+	};
+
+	GattOperationQueue(Handler handler, Runnable next) {
+		mHandler = handler;
+		mNext = next;
+		mRing = new Operation[INITIAL_CAPACITY];
+		for(int i = 0; i < mRing.length; i++) {
+			mRing[i] = new Operation();
+		}
+	}
+
+	// Queues an operation. Call start() to run it if the queue is idle.
+	synchronized void add(int type, int handle, byte[] value, CallbackContext cc) {
+		if(mCount == mRing.length) {
+			grow();
+		}
+		Operation op = mRing[(mHead + mCount) & (mRing.length - 1)];
+		op.mType = type;
+		op.mHandle = handle;
+		op.mValue = value;
+		op.mCallbackContext = cc;
+		mCount++;
+		if(mCount > mMaxQueued) {
+			mMaxQueued = mCount;
+		}
+	}
+
+	// Takes the next operation and starts its deadline.
+	// Returns null if an operation is running or none is queued.
+	synchronized Operation start() {
+		if(mCurrent != null || mCount == 0) {
+			return null;
+		}
+		mCurrent = mRing[mHead];
+		mRing[mHead] = mSpare;
+		mSpare = null;
+		mHead = (mHead + 1) & (mRing.length - 1);
+		mCount--;
+
+		long timeout = (mCurrent.mType == SERVICES) ? SERVICES_TIMEOUT : OPERATION_TIMEOUT;
+		mCurrent.mDeadline = SystemClock.elapsedRealtime() + timeout;
+		mHandler.postDelayed(mTimeout, timeout);
+		return mCurrent;
+	}
+
+	// True while an operation is running.
+	synchronized boolean isBusy() {
+		return mCurrent != null;
+	}
+
+	// Completes the running operation if it is of the given type and target, and returns
+	// its callback. Returns null if it isn't, or if it has timed out. In the latter case
+	// the operation ends, so the caller should start the next one.
+	// target is the characteristic or descriptor of the callback, null for SERVICES.
+	synchronized CallbackContext complete(int type, Object target) {
+		if(mCurrent == null || mCurrent.mType != type || mCurrent.mTarget != target) {
+			return null;
+		}
+		CallbackContext cc = mCurrent.mCallbackContext;
+		if(cc != null) {
+			mCompleted++;
+		} else {
+			mLate++;
+		}
+		recycleCurrent();
+		return cc;
+	}
+
+	// Fails the running and queued operations, e.g. when the connection is closed.
+	void cancelAll(String reason) {
+		CallbackContext[] callbacks;
+		synchronized(this) {
+			callbacks = new CallbackContext[mCount + (mCurrent != null ? 1 : 0)];
+			int n = 0;
+			if(mCurrent != null) {
+				if(mCurrent.mCallbackContext != null) {
+					callbacks[n++] = mCurrent.mCallbackContext;
+				}
+				recycleCurrent();
+			}
+			while(mCount > 0) {
+				Operation op = mRing[mHead];
+				callbacks[n++] = op.mCallbackContext;
+				op.clear();
+				mHead = (mHead + 1) & (mRing.length - 1);
+				mCount--;
+			}
+			mCancelled += n;
+		}
+		for(CallbackContext cc : callbacks) {
+			if(cc != null) {
+				cc.error(reason);
+			}
+		}
+	}
+
+	synchronized JSONObject getStats() {
+		JSONObject o = new JSONObject();
+		try {
+			o.put("queued", mCount);
+			o.put("maxQueued", mMaxQueued);
+			o.put("busy", mCurrent != null);
+			o.put("completed", mCompleted);
+			o.put("timedOut", mTimedOut);
+			o.put("lateCallbacks", mLate);
+			o.put("cancelled", mCancelled);
+		} catch(JSONException e) {
+			e.printStackTrace();
+			assert(false);
+		}
+		return o;
+	}
+
+	private void onTimeout() {
+		CallbackContext cc;
+		synchronized(this) {
+			// The handler may run a little early or late, go by the deadline.
+			if(mCurrent == null) {
+				return;
+			}
+			long left = mCurrent.mDeadline - SystemClock.elapsedRealtime();
+			if(left > 0) {
+				mHandler.postDelayed(mTimeout, left);
+				return;
+			}
+			cc = mCurrent.mCallbackContext;
+			if(cc != null) {
+				// Fail the operation, but keep the queue waiting for the late callback.
+				mTimedOut++;
+				mCurrent.mCallbackContext = null;
+				mCurrent.mDeadline = SystemClock.elapsedRealtime() + LATE_CALLBACK_GRACE;
+				mHandler.postDelayed(mTimeout, LATE_CALLBACK_GRACE);
+			} else {
+				// No late callback either, go on.
+				recycleCurrent();
+			}
+		}
+		if(cc != null) {
+			cc.error("timeout");
+		} else {
+			mNext.run();
+		}
+	}
+
+	private void recycleCurrent() {
+		mHandler.removeCallbacks(mTimeout);
+		mCurrent.clear();
+		mSpare = mCurrent;
+		mCurrent = null;
+	}
+
+	private void grow() {
+		Operation[] ring = new Operation[mRing.length * 2];
+		for(int i = 0; i < mCount; i++) {
+			ring[i] = mRing[(mHead + i) & (mRing.length - 1)];
+		}
+		for(int i = mCount; i < ring.length; i++) {
+			ring[i] = new Operation();
+		}
+		mRing = ring;
+		mHead = 0;
+	}
+}
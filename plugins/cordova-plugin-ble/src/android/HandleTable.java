@@ -0,0 +1,137 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Objects handed to JavaScript as int handles.
+//
+// A handle is a slot index in the low SLOT_BITS bits and the slot's generation above
+// them. Lookups index an array and compare the generation, with no boxing or hashing.
+// remove() bumps the slot's generation, so a stale handle finds nothing even after
+// its slot has been reused.
+//
+// Scan, plugin and GATT callbacks look handles up on different threads, so the
+// methods are synchronized. Uncontended, that costs little next to a hash lookup.
+//
+// Slot 0 is never used, so 0 is never a handle, and the first generation is 0,
+// so the first handles are 1, 2, 3 and so on.
+class HandleTable<T> {
+	static final int SLOT_BITS = 20;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	// Generations wrap around within the remaining bits, keeping handles positive.
+	private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] mValues;
+	private int[] mGenerations;
+	// Free slots below mUsed, as a stack.
+	private int[] mFree;
+	private int mFreeCount;
+	// Slots at and above mUsed have never been used.
+	private int mUsed = 1;
+	private int mSize;
+
+	HandleTable() {
+		mValues = new Object[INITIAL_CAPACITY];
+		mGenerations = new int[INITIAL_CAPACITY];
+		mFree = new int[INITIAL_CAPACITY];
+	}
+
+	// Returns the object of the handle, or null if the handle is not, or no longer, valid.
+	@SuppressWarnings("unchecked")
+	synchronized T get(int handle) {
+		int slot = handle & SLOT_MASK;
+		if(slot >= mUsed || mGenerations[slot] != (handle >>> SLOT_BITS)) {
+			return null;
+		}
+		return (T)mValues[slot];
+	}
+
+	// Stores the object and returns its new handle.
+	synchronized int put(T value) {
+		int slot;
+		if(mFreeCount > 0) {
+			slot = mFree[--mFreeCount];
+		} else {
+			if(mUsed == SLOT_MASK + 1) {
+				throw new IllegalStateException("Out of handles");
+			}
+			if(mUsed == mValues.length) {
+				grow();
+			}
+			slot = mUsed++;
+		}
+		mValues[slot] = value;
+		mSize++;
+		return (mGenerations[slot] << SLOT_BITS) | slot;
+	}
+
+	// Removes the object of the handle, and returns it. Returns null if the handle is not valid.
+	synchronized T remove(int handle) {
+		T value = get(handle);
+		if(value == null) {
+			return null;
+		}
+		int slot = handle & SLOT_MASK;
+		mValues[slot] = null;
+		mGenerations[slot] = (mGenerations[slot] + 1) & GENERATION_MASK;
+		mFree[mFreeCount++] = slot;
+		mSize--;
+		return value;
+	}
+
+	// Removes all objects. Their handles stay invalid.
+	synchronized void clear() {
+		for(int slot = 1; slot < mUsed; slot++) {
+			if(mValues[slot] != null) {
+				remove((mGenerations[slot] << SLOT_BITS) | slot);
+			}
+		}
+	}
+
+	// A copy of the objects.
+	@SuppressWarnings("unchecked")
+	synchronized List<T> values() {
+		List<T> values = new ArrayList<T>(mSize);
+		for(int slot = 1; slot < mUsed; slot++) {
+			if(mValues[slot] != null) {
+				values.add((T)mValues[slot]);
+			}
+		}
+		return values;
+	}
+
+	synchronized int size() {
+		return mSize;
+	}
+
+	private void grow() {
+		int capacity = Math.min(mValues.length * 2, SLOT_MASK + 1);
+		Object[] values = new Object[capacity];
+		System.arraycopy(mValues, 0, values, 0, mValues.length);
+		int[] generations = new int[capacity];
+		System.arraycopy(mGenerations, 0, generations, 0, mGenerations.length);
+		int[] free = new int[capacity];
+		System.arraycopy(mFree, 0, free, 0, mFreeCount);
+		mValues = values;
+		mGenerations = generations;
+		mFree = free;
+	}
+}
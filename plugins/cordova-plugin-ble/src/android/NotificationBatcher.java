@@ -0,0 +1,107 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.List;
+
+// Gathers the notifications of one characteristic and sends them to JavaScript
+// as a single multipart result, one part per value (or per decoded number).
+// A batch is flushed when it holds mMaxSize samples, or when its first sample
+// has waited mMaxLatency milliseconds, whichever comes first.
+class NotificationBatcher implements Runnable {
+	static final int DEFAULT_MAX_LATENCY = 50;
+
+	private final CallbackContext mCallbackContext;
+	private final ULandingDecoder mDecoder;
+	private final Handler mHandler;
+	private final int mMaxSize;
+	private final long mMaxLatency;
+
+	// Parts of the batch being gathered, and the number of samples in it.
+	private List<PluginResult> mParts;
+	private int mCount;
+
+	NotificationBatcher(CallbackContext cc, ULandingDecoder decoder, Handler handler, int maxSize, long maxLatency) {
+		mCallbackContext = cc;
+		mDecoder = decoder;
+		mHandler = handler;
+		mMaxSize = maxSize;
+		mMaxLatency = maxLatency;
+		mParts = new ArrayList<PluginResult>(maxSize);
+	}
+
+	// Returns a batcher configured from enableNotification() options,
+	// or null if the options do not ask for batching.
+	static NotificationBatcher fromOptions(JSONObject options, CallbackContext cc, ULandingDecoder decoder, Handler handler) {
+		if(options == null) {
+			return null;
+		}
+		int maxSize = options.optInt("batchSize", 1);
+		if(maxSize <= 1) {
+			return null;
+		}
+		long maxLatency = options.optLong("batchLatency", DEFAULT_MAX_LATENCY);
+		return new NotificationBatcher(cc, decoder, handler, maxSize, maxLatency);
+	}
+
+	// Called for each notification.
+	synchronized void add(byte[] value) {
+		if(mDecoder != null) {
+			if(!mDecoder.decodeInto(value, mParts)) {
+				return;
+			}
+		} else {
+			mParts.add(new PluginResult(PluginResult.Status.OK, value));
+		}
+		mCount++;
+		if(mCount >= mMaxSize) {
+			mHandler.removeCallbacks(this);
+			flush();
+		} else if(mCount == 1) {
+			mHandler.postDelayed(this, mMaxLatency);
+		}
+	}
+
+	// Called when the latency deadline of the current batch expires.
+	@Override
+	public synchronized void run() {
+		flush();
+	}
+
+	// Drops any pending samples. Called when the notification is disabled or the device is closed.
+	synchronized void cancel() {
+		mHandler.removeCallbacks(this);
+		mParts.clear();
+		mCount = 0;
+	}
+
+	private void flush() {
+		if(mCount == 0) {
+			return;
+		}
+		PluginResult r = new PluginResult(PluginResult.Status.OK, mParts);
+		r.setKeepCallback(true);
+		mParts = new ArrayList<PluginResult>(mMaxSize);
+		mCount = 0;
+		mCallbackContext.sendPluginResult(r);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+Copyright 2014 Evothings AB
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.evothings;
+
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Decides which of the advertisements received during a scan are sent to JavaScript.
+// Depending on the mode an advertisement is sent:
+//   ALL: always, as before there was a mode.
+//   FIRST_SEEN: only the first one from each device.
+//   RSSI_CHANGE: when the RSSI moved by mRssiDelta since the device was last reported.
+//   INTERVAL: at most once every mInterval milliseconds per device.
+//   BATCH: the latest one of each device is kept, and drained every mInterval milliseconds.
+//
+// Per-device state is kept in parallel arrays, indexed by an open addressing hash of the
+// device address packed into a long, so an advertisement costs no allocation. The table
+// stops growing at MAX_CAPACITY; then devices not heard for STALE_TIME are forgotten.
+class ScanThrottle<T> {
+	enum Mode { ALL, FIRST_SEEN, RSSI_CHANGE, INTERVAL, BATCH }
+
+	static final int DEFAULT_RSSI_DELTA = 5;
+	static final long DEFAULT_INTERVAL = 1000;
+
+	private static final int INITIAL_CAPACITY = 64;
+	// Tracks at most 1536 devices, three quarters of this.
+	private static final int MAX_CAPACITY = 2048;
+	// Once the table is full, devices not heard for this long are forgotten.
+	private static final long STALE_TIME = 60 * 1000;
+
+	// Addresses only use the low 48 bits.
+	private static final long EMPTY = -1;
+
+	private final Mode mMode;
+	private final int mRssiDelta;
+	private final long mInterval;
+
+	// Slot i is in use when mKeys[i] != EMPTY.
+	private long[] mKeys;
+	private byte[] mReportedRssi;
+	private long[] mReportedTime;
+	private long[] mSeenTime;
+	// Index into mPending, or -1.
+	private int[] mPendingIndex;
+	private int mSize;
+
+	// BATCH mode: the latest advertisement of each device since the last drain, and its slot.
+	// The first mPending.size() entries of mPendingSlots are in use.
+	private final List<T> mPending = new ArrayList<T>();
+	private int[] mPendingSlots = new int[INITIAL_CAPACITY];
+
+	ScanThrottle(Mode mode, int rssiDelta, long interval) {
+		if(rssiDelta < 0) {
+			throw new IllegalArgumentException("rssiDelta must not be negative");
+		}
+		if(interval <= 0 && (mode == Mode.INTERVAL || mode == Mode.BATCH)) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		mMode = mode;
+		mRssiDelta = rssiDelta;
+		mInterval = interval;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	// Returns a throttle configured from startScan() options.
+	// Throws IllegalArgumentException if the options are not valid.
+	static <T> ScanThrottle<T> fromOptions(JSONObject options) {
+		Mode mode = Mode.ALL;
+		if(options != null) {
+			String name = options.optString("mode", "all");
+			if("all".equals(name)) {
+				mode = Mode.ALL;
+			} else if("firstSeen".equals(name)) {
+				mode = Mode.FIRST_SEEN;
+			} else if("rssiChange".equals(name)) {
+				mode = Mode.RSSI_CHANGE;
+			} else if("interval".equals(name)) {
+				mode = Mode.INTERVAL;
+			} else if("batch".equals(name)) {
+				mode = Mode.BATCH;
+			} else {
+				throw new IllegalArgumentException("Unknown scan mode: " + name);
+			}
+		}
+		int rssiDelta = options != null ? options.optInt("rssiDelta", DEFAULT_RSSI_DELTA) : DEFAULT_RSSI_DELTA;
+		long interval = options != null ? options.optLong("interval", DEFAULT_INTERVAL) : DEFAULT_INTERVAL;
+		return new ScanThrottle<T>(mode, rssiDelta, interval);
+	}
+
+	Mode getMode() {
+		return mMode;
+	}
+
+	long getInterval() {
+		return mInterval;
+	}
+
+	// Called for each advertisement. Returns true if it should be sent now.
+	// In BATCH mode it is kept for drain() instead.
+	synchronized boolean offer(String address, int rssi, T advertisement, long now) {
+		if(mMode == Mode.ALL) {
+			return true;
+		}
+
+		long key = parseAddress(address);
+		if(key == EMPTY) {
+			// Not a MAC address, so there's no state to throttle it with.
+			return mMode != Mode.BATCH;
+		}
+
+		int slot = find(key);
+		boolean firstSeen = (mKeys[slot] == EMPTY);
+		if(firstSeen) {
+			slot = insert(slot, key, now);
+			if(slot < 0) {
+				// The table is full of devices waiting for drain(), so this one isn't tracked.
+				return mMode != Mode.BATCH;
+			}
+		}
+		mSeenTime[slot] = now;
+
+		boolean report;
+		switch(mMode) {
+			case FIRST_SEEN:
+				report = firstSeen;
+				break;
+			case RSSI_CHANGE:
+				report = firstSeen || Math.abs(rssi - mReportedRssi[slot]) >= mRssiDelta;
+				break;
+			case INTERVAL:
+				report = firstSeen || now - mReportedTime[slot] >= mInterval;
+				break;
+			default: // BATCH
+				if(mPendingIndex[slot] >= 0) {
+					mPending.set(mPendingIndex[slot], advertisement);
+				} else {
+					int count = mPending.size();
+					if(count == mPendingSlots.length) {
+						mPendingSlots = Arrays.copyOf(mPendingSlots, count * 2);
+					}
+					mPendingIndex[slot] = count;
+					mPending.add(advertisement);
+					mPendingSlots[count] = slot;
+				}
+				return false;
+		}
+
+		if(report) {
+			mReportedRssi[slot] = (byte)Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+			mReportedTime[slot] = now;
+		}
+		return report;
+	}
+
+	// Removes and returns the advertisements kept in BATCH mode, one per device,
+	// in the order the devices were first heard since the last drain.
+	synchronized List<T> drain() {
+		List<T> batch = new ArrayList<T>(mPending);
+		for(int i = 0; i < mPending.size(); i++) {
+			mPendingIndex[mPendingSlots[i]] = -1;
+		}
+		mPending.clear();
+		return batch;
+	}
+
+	// "AA:BB:CC:DD:EE:FF" as a 48 bit number, or EMPTY if the string isn't a MAC address.
+	static long parseAddress(String address) {
+		if(address == null || address.length() != 17) {
+			return EMPTY;
+		}
+		long value = 0;
+		for(int i = 0; i < 17; i++) {
+			char c = address.charAt(i);
+			if(i % 3 == 2) {
+				if(c != ':') {
+					return EMPTY;
+				}
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if(digit < 0) {
+				return EMPTY;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	// Returns the slot holding key, or the empty slot where it belongs.
+	private int find(long key) {
+		int mask = mKeys.length - 1;
+		int slot = hash(key) & mask;
+		while(mKeys[slot] != EMPTY && mKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	// Returns the slot key was put in, or -1 if the table is full.
+	private int insert(int slot, long key, long now) {
+		if(isFull()) {
+			if(mKeys.length < MAX_CAPACITY) {
+				rebuild(mKeys.length * 2, Long.MIN_VALUE);
+			} else {
+				// Forget the devices not heard for a while, or failing that all
+				// but the pending ones. A forgotten device counts as first seen
+				// when it is heard again.
+				rebuild(mKeys.length, now - STALE_TIME);
+				if(isFull()) {
+					rebuild(mKeys.length, Long.MAX_VALUE);
+				}
+				if(isFull()) {
+					return -1;
+				}
+			}
+			slot = find(key);
+		}
+		mKeys[slot] = key;
+		mPendingIndex[slot] = -1;
+		mSize++;
+		return slot;
+	}
+
+	private boolean isFull() {
+		return (mSize + 1) * 4 > mKeys.length * 3;
+	}
+
+	// Moves the devices heard at or after seenSince, and the pending ones, into a new table.
+	private void rebuild(int capacity, long seenSince) {
+		long[] keys = mKeys;
+		byte[] rssi = mReportedRssi;
+		long[] time = mReportedTime;
+		long[] seen = mSeenTime;
+		int[] pending = mPendingIndex;
+		allocate(capacity);
+
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != EMPTY && (seen[i] >= seenSince || pending[i] >= 0)) {
+				int slot = find(keys[i]);
+				mKeys[slot] = keys[i];
+				mReportedRssi[slot] = rssi[i];
+				mReportedTime[slot] = time[i];
+				mSeenTime[slot] = seen[i];
+				mPendingIndex[slot] = pending[i];
+				if(pending[i] >= 0) {
+					mPendingSlots[pending[i]] = slot;
+				}
+				mSize++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		Arrays.fill(mKeys, EMPTY);
+		mReportedRssi = new byte[capacity];
+		mReportedTime = new long[capacity];
+		mSeenTime = new long[capacity];
+		mPendingIndex = new int[capacity];
+		mSize = 0;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32);
+	}
+}
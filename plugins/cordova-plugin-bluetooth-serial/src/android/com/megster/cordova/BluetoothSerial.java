@@ -8,6 +8,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.provider.Settings;
 import android.util.Log;
@@ -20,6 +22,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Arrays;
 import java.util.Set;
 
 /**
@@ -40,9 +43,14 @@ public class BluetoothSerial extends CordovaPlugin {
     private static final String UNSUBSCRIBE = "unsubscribe";
     private static final String SUBSCRIBE_RAW = "subscribeRaw";
     private static final String UNSUBSCRIBE_RAW = "unsubscribeRaw";
+    private static final String SUBSCRIBE_FRAMES = "subscribeFrames";
+    private static final String UNSUBSCRIBE_FRAMES = "unsubscribeFrames";
     private static final String IS_ENABLED = "isEnabled";
     private static final String IS_CONNECTED = "isConnected";
     private static final String CLEAR = "clear";
+    private static final String CONFIGURE_BUFFER = "configureBuffer";
+    private static final String CONFIGURE_WRITE_QUEUE = "configureWriteQueue";
+    private static final String WRITE_QUEUE_STATS = "writeQueueStats";
     private static final String SETTINGS = "showBluetoothSettings";
     private static final String ENABLE = "enable";
     private static final String DISCOVER_UNPAIRED = "discoverUnpaired";
@@ -52,15 +60,21 @@ public class BluetoothSerial extends CordovaPlugin {
     private static final String SET_DISCOVERABLE = "setDiscoverable";
 
     // callbacks
+    // the data callbacks are set here and used on the data thread
     private CallbackContext connectCallback;
-    private CallbackContext dataAvailableCallback;
-    private CallbackContext rawDataAvailableCallback;
+    private volatile CallbackContext dataAvailableCallback;
+    private volatile CallbackContext rawDataAvailableCallback;
+    private volatile CallbackContext frameAvailableCallback;
     private CallbackContext enableBluetoothCallback;
     private CallbackContext deviceDiscoveredCallback;
 
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothSerialService bluetoothSerialService;
 
+    // Received data is handled on this thread, so it isn't held up while the UI thread is busy
+    private HandlerThread dataThread;
+    private Handler dataHandler;
+
     // Debugging
     private static final String TAG = "BluetoothSerial";
     private static final boolean D = true;
@@ -71,14 +85,18 @@ public class BluetoothSerial extends CordovaPlugin {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
-    public static final int MESSAGE_READ_RAW = 6;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
 
-    StringBuffer buffer = new StringBuffer();
-    private String delimiter;
+    // Received data waiting to be read. Bounded; see configureBuffer.
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    ByteRingBuffer buffer = new ByteRingBuffer(DEFAULT_BUFFER_SIZE, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+    private volatile byte[] delimiter;
+
+    // Splits received data into binary frames for subscribeFrames. Only fed and reset on the data thread.
+    private volatile Framer framer;
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
 
     @Override
@@ -91,7 +109,10 @@ public class BluetoothSerial extends CordovaPlugin {
         }
 
         if (bluetoothSerialService == null) {
-            bluetoothSerialService = new BluetoothSerialService(mHandler);
+            dataThread = new HandlerThread("BluetoothSerialData");
+            dataThread.start();
+            dataHandler = new Handler(dataThread.getLooper(), dataCallback);
+            bluetoothSerialService = new BluetoothSerialService(mHandler, dataHandler);
         }
 
         boolean validAction = true;
@@ -120,8 +141,12 @@ public class BluetoothSerial extends CordovaPlugin {
         } else if (action.equals(WRITE)) {
 
             byte[] data = args.getArrayBuffer(0);
-            bluetoothSerialService.write(data);
-            callbackContext.success();
+            int queued = bluetoothSerialService.write(data);
+            if (queued < 0) {
+                callbackContext.error("Write queue is full.");
+            } else {
+                callbackContext.success(queued);
+            }
 
         } else if (action.equals(AVAILABLE)) {
 
@@ -138,7 +163,7 @@ public class BluetoothSerial extends CordovaPlugin {
 
         } else if (action.equals(SUBSCRIBE)) {
 
-            delimiter = args.getString(0);
+            delimiter = args.getString(0).getBytes(ByteRingBuffer.CHARSET);
             dataAvailableCallback = callbackContext;
 
             PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
@@ -170,6 +195,22 @@ public class BluetoothSerial extends CordovaPlugin {
 
             callbackContext.success();
 
+        } else if (action.equals(SUBSCRIBE_FRAMES)) {
+
+            subscribeFrames(args.getJSONObject(0), callbackContext);
+
+        } else if (action.equals(UNSUBSCRIBE_FRAMES)) {
+
+            framer = null;
+
+            if (frameAvailableCallback != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                frameAvailableCallback.sendPluginResult(result);
+                frameAvailableCallback = null;
+            }
+
+            callbackContext.success();
+
         } else if (action.equals(IS_ENABLED)) {
 
             if (bluetoothAdapter.isEnabled()) {
@@ -188,9 +229,21 @@ public class BluetoothSerial extends CordovaPlugin {
 
         } else if (action.equals(CLEAR)) {
 
-            buffer.setLength(0);
+            buffer.clear();
             callbackContext.success();
 
+        } else if (action.equals(CONFIGURE_BUFFER)) {
+
+            configureBuffer(args.getJSONObject(0), callbackContext);
+
+        } else if (action.equals(CONFIGURE_WRITE_QUEUE)) {
+
+            configureWriteQueue(args.getJSONObject(0), callbackContext);
+
+        } else if (action.equals(WRITE_QUEUE_STATS)) {
+
+            callbackContext.success(writeQueueStatsToJSON(bluetoothSerialService.getWriteQueueStats()));
+
         } else if (action.equals(SETTINGS)) {
 
             Intent intent = new Intent(Settings.ACTION_BLUETOOTH_SETTINGS);
@@ -263,6 +316,9 @@ public class BluetoothSerial extends CordovaPlugin {
         if (bluetoothSerialService != null) {
             bluetoothSerialService.stop();
         }
+        if (dataThread != null) {
+            dataThread.quit();
+        }
     }
 
     private void listBondedDevices(CallbackContext callbackContext) throws JSONException {
@@ -328,6 +384,9 @@ public class BluetoothSerial extends CordovaPlugin {
         BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
 
         if (device != null) {
+            // drop any partial frame from the previous connection before the new one delivers data
+            dataHandler.post(resetFramer);
+
             connectCallback = callbackContext;
             bluetoothSerialService.connect(device, secure);
 
@@ -340,27 +399,60 @@ public class BluetoothSerial extends CordovaPlugin {
         }
     }
 
-    // The Handler that gets information back from the BluetoothSerialService
-    // Original code used handler for the because it was talking to the UI.
-    // Consider replacing with normal callbacks
-    private final Handler mHandler = new Handler() {
+    // Handles received data on the data thread and sends it straight to the subscribers
+    private final Handler.Callback dataCallback = new Handler.Callback() {
 
-         public void handleMessage(Message msg) {
-             switch (msg.what) {
-                 case MESSAGE_READ:
-                    buffer.append((String)msg.obj);
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_READ:
+                    BluetoothSerialService.Chunk chunk = (BluetoothSerialService.Chunk) msg.obj;
 
-                    if (dataAvailableCallback != null) {
-                        sendDataToSubscriber();
+                    // the buffer backs read, readUntil and subscribe
+                    int dropped = buffer.write(chunk.data, 0, chunk.length);
+                    if (dropped > 0) {
+                        notifyBufferOverflow(dropped);
                     }
 
-                    break;
-                 case MESSAGE_READ_RAW:
+                    sendDataToSubscriber();
+
+                    // only copy the bytes out of the pooled chunk if someone wants them
                     if (rawDataAvailableCallback != null) {
-                        byte[] bytes = (byte[]) msg.obj;
-                        sendRawDataToSubscriber(bytes);
+                        sendRawDataToSubscriber(Arrays.copyOf(chunk.data, chunk.length));
                     }
-                    break;
+
+                    Framer f = framer;
+                    if (f != null) {
+                        f.feed(chunk.data, 0, chunk.length, frameListener);
+                    }
+
+                    bluetoothSerialService.recycle(chunk);
+                    return true;
+                case MESSAGE_WRITE:
+                    //  byte[] writeBuf = (byte[]) msg.obj;
+                    //  String writeMessage = new String(writeBuf);
+                    //  Log.i(TAG, "Wrote: " + writeMessage);
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    private final Runnable resetFramer = new Runnable() {
+        public void run() {
+            Framer f = framer;
+            if (f != null) {
+                f.reset();
+            }
+        }
+    };
+
+    // The Handler that gets connection state changes back from the BluetoothSerialService
+    // Original code used handler for the because it was talking to the UI.
+    // Consider replacing with normal callbacks
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+
+         public void handleMessage(Message msg) {
+             switch (msg.what) {
                  case MESSAGE_STATE_CHANGE:
 
                     if(D) Log.i(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
@@ -380,11 +472,6 @@ public class BluetoothSerial extends CordovaPlugin {
                             break;
                     }
                     break;
-                case MESSAGE_WRITE:
-                    //  byte[] writeBuf = (byte[]) msg.obj;
-                    //  String writeMessage = new String(writeBuf);
-                    //  Log.i(TAG, "Wrote: " + writeMessage);
-                    break;
                 case MESSAGE_DEVICE_NAME:
                     Log.i(TAG, msg.getData().getString(DEVICE_NAME));
                     break;
@@ -412,42 +499,125 @@ public class BluetoothSerial extends CordovaPlugin {
     }
 
     private void sendRawDataToSubscriber(byte[] data) {
-        if (data != null && data.length > 0) {
+        CallbackContext callback = rawDataAvailableCallback;
+        if (callback != null && data != null && data.length > 0) {
             PluginResult result = new PluginResult(PluginResult.Status.OK, data);
             result.setKeepCallback(true);
-            rawDataAvailableCallback.sendPluginResult(result);
+            callback.sendPluginResult(result);
         }
     }
 
+    private void subscribeFrames(JSONObject options, CallbackContext callbackContext) {
+        try {
+            framer = Framer.fromOptions(options);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+        frameAvailableCallback = callbackContext;
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    // Sends each complete frame to the subscriber as an ArrayBuffer
+    private final Framer.Listener frameListener = new Framer.Listener() {
+        public void onFrame(byte[] data, int offset, int length) {
+            CallbackContext callback = frameAvailableCallback;
+            if (callback != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, Arrays.copyOfRange(data, offset, offset + length));
+                result.setKeepCallback(true);
+                callback.sendPluginResult(result);
+            }
+        }
+    };
+
     private void sendDataToSubscriber() {
-        String data = readUntil(delimiter);
-        if (data != null && data.length() > 0) {
+        CallbackContext callback = dataAvailableCallback;
+        byte[] d = delimiter;
+        if (callback == null || d == null) {
+            return;
+        }
+        String data;
+        while ((data = buffer.readUntil(d)) != null) {
             PluginResult result = new PluginResult(PluginResult.Status.OK, data);
             result.setKeepCallback(true);
-            dataAvailableCallback.sendPluginResult(result);
+            callback.sendPluginResult(result);
+        }
+    }
+
+    private void notifyBufferOverflow(int dropped) {
+        if (D) Log.w(TAG, "Buffer overflow, dropped " + dropped + " bytes");
+        CallbackContext callback = dataAvailableCallback;
+        if (buffer.getOverflowPolicy() == ByteRingBuffer.OverflowPolicy.ERROR && callback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.ERROR, "Buffer overflow, dropped " + dropped + " bytes");
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        }
+    }
 
-            sendDataToSubscriber();
+    private void configureBuffer(JSONObject options, CallbackContext callbackContext) {
+        int capacity = options.optInt("capacity", buffer.capacity());
+        if (capacity <= 0) {
+            callbackContext.error("Buffer capacity must be positive.");
+            return;
         }
+
+        String overflow = options.optString("overflow", null);
+        if (overflow != null) {
+            if (overflow.equals("dropOldest")) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+            } else if (overflow.equals("dropNewest")) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+            } else if (overflow.equals("error")) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OverflowPolicy.ERROR);
+            } else {
+                callbackContext.error("Unknown overflow policy: " + overflow);
+                return;
+            }
+        }
+
+        buffer.setCapacity(capacity);
+        callbackContext.success();
+    }
+
+    private void configureWriteQueue(JSONObject options, CallbackContext callbackContext) {
+        int maxQueuedBytes = options.optInt("maxQueuedBytes", bluetoothSerialService.getMaxQueuedBytes());
+        if (maxQueuedBytes <= 0) {
+            callbackContext.error("maxQueuedBytes must be positive.");
+            return;
+        }
+        bluetoothSerialService.setMaxQueuedBytes(maxQueuedBytes);
+
+        if (options.has("echo")) {
+            bluetoothSerialService.setEchoWrites(options.optBoolean("echo"));
+        }
+        callbackContext.success();
+    }
+
+    private JSONObject writeQueueStatsToJSON(BluetoothSerialService.WriteQueueStats stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("queuedWrites", stats.queuedWrites);
+        json.put("queuedBytes", stats.queuedBytes);
+        json.put("maxQueuedBytes", stats.maxQueuedBytes);
+        json.put("peakQueuedBytes", stats.peakQueuedBytes);
+        json.put("bytesWritten", stats.bytesWritten);
+        json.put("socketWrites", stats.socketWrites);
+        json.put("rejectedWrites", stats.rejectedWrites);
+        return json;
     }
 
     private int available() {
-        return buffer.length();
+        return buffer.available();
     }
 
     private String read() {
-        int length = buffer.length();
-        String data = buffer.substring(0, length);
-        buffer.delete(0, length);
-        return data;
+        return buffer.read();
     }
 
     private String readUntil(String c) {
-        String data = "";
-        int index = buffer.indexOf(c, 0);
-        if (index > -1) {
-            data = buffer.substring(0, index + c.length());
-            buffer.delete(0, index + c.length());
-        }
-        return data;
+        String data = buffer.readUntil(c.getBytes(ByteRingBuffer.CHARSET));
+        return data == null ? "" : data;
     }
 }
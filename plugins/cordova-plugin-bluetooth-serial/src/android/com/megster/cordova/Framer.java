@@ -0,0 +1,435 @@
+package com.megster.cordova;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Splits the received byte stream into binary frames.
+ *
+ * Bytes are fed in as they arrive, in chunks of any size, and every complete
+ * frame is handed to the Listener. Partial frames are kept until the rest of
+ * the frame arrives. Frames longer than the maximum frame length are dropped.
+ */
+public abstract class Framer {
+
+    public interface Listener {
+        /**
+         * Called for each complete frame. The bytes are only valid during the call.
+         */
+        void onFrame(byte[] data, int offset, int length);
+    }
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    protected final int maxFrameLength;
+
+    // The frame being assembled
+    protected byte[] frame;
+    protected int frameLength;
+    protected boolean overflowed;
+
+    protected Framer(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+        this.frame = new byte[Math.min(maxFrameLength, 256)];
+    }
+
+    /**
+     * Create a framer from the options passed to subscribeFrames.
+     * @throws IllegalArgumentException if the options don't describe a valid framer
+     */
+    public static Framer fromOptions(JSONObject options) {
+        String type = options.optString("type");
+        int maxFrameLength = options.optInt("maxLength", DEFAULT_MAX_FRAME_LENGTH);
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxLength must be positive");
+        }
+
+        if (type.equals("fixed")) {
+            return new FixedLength(options.optInt("length"));
+        } else if (type.equals("lengthPrefix")) {
+            return new LengthPrefix(options.optInt("prefixSize", 1),
+                    options.optBoolean("bigEndian", false),
+                    options.optBoolean("includesPrefix", false),
+                    maxFrameLength);
+        } else if (type.equals("startByte")) {
+            return new StartByte(options.optInt("startByte", -1),
+                    options.optInt("length"),
+                    Checksum.fromName(options.optString("checksum", "none")));
+        } else if (type.equals("slip")) {
+            return new Slip(maxFrameLength);
+        } else if (type.equals("cobs")) {
+            return new Cobs(maxFrameLength);
+        }
+        throw new IllegalArgumentException("Unknown frame type: " + type);
+    }
+
+    /**
+     * Feed received bytes, calling the listener for each frame they complete.
+     */
+    public abstract void feed(byte[] data, int offset, int length, Listener listener);
+
+    /**
+     * Drop any partially received frame, e.g. after reconnecting.
+     */
+    public void reset() {
+        frameLength = 0;
+        overflowed = false;
+    }
+
+    /**
+     * Append a byte to the frame being assembled. Once the frame exceeds the
+     * maximum length, further bytes are discarded and overflowed is set.
+     */
+    protected void append(int b) {
+        if (frameLength == maxFrameLength) {
+            overflowed = true;
+            return;
+        }
+        if (frameLength == frame.length) {
+            frame = Arrays.copyOf(frame, Math.min(frame.length * 2, maxFrameLength));
+        }
+        frame[frameLength++] = (byte) b;
+    }
+
+    /**
+     * Frames of a fixed number of bytes.
+     */
+    static class FixedLength extends Framer {
+
+        private final int length;
+
+        FixedLength(int length) {
+            super(Math.max(length, 1));
+            if (length <= 0) {
+                throw new IllegalArgumentException("length must be positive");
+            }
+            this.length = length;
+            this.frame = new byte[length];
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int count, Listener listener) {
+            int end = offset + count;
+            while (offset < end) {
+                int n = Math.min(length - frameLength, end - offset);
+                if (frameLength == 0 && n == length) {
+                    // a whole frame in the input, no need to copy it
+                    listener.onFrame(data, offset, length);
+                } else {
+                    System.arraycopy(data, offset, frame, frameLength, n);
+                    frameLength += n;
+                    if (frameLength == length) {
+                        listener.onFrame(frame, 0, length);
+                        frameLength = 0;
+                    }
+                }
+                offset += n;
+            }
+        }
+    }
+
+    /**
+     * Frames that start with an unsigned 1, 2 or 4 byte length. The listener
+     * gets the payload without the prefix.
+     */
+    static class LengthPrefix extends Framer {
+
+        private final int prefixSize;
+        private final boolean bigEndian;
+        private final boolean includesPrefix;
+
+        private int prefixRead;
+        private long prefix;
+        private int payloadLength;
+        private int skipping;
+
+        LengthPrefix(int prefixSize, boolean bigEndian, boolean includesPrefix, int maxFrameLength) {
+            super(maxFrameLength);
+            if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4) {
+                throw new IllegalArgumentException("prefixSize must be 1, 2 or 4");
+            }
+            this.prefixSize = prefixSize;
+            this.bigEndian = bigEndian;
+            this.includesPrefix = includesPrefix;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int count, Listener listener) {
+            int end = offset + count;
+            while (offset < end) {
+                if (skipping > 0) {
+                    // discarding the payload of an oversized frame
+                    int n = Math.min(skipping, end - offset);
+                    skipping -= n;
+                    offset += n;
+                    continue;
+                }
+
+                if (prefixRead < prefixSize) {
+                    int b = data[offset++] & 0xFF;
+                    if (bigEndian) {
+                        prefix = (prefix << 8) | b;
+                    } else {
+                        prefix |= (long) b << (8 * prefixRead);
+                    }
+                    if (++prefixRead == prefixSize) {
+                        startPayload(listener);
+                    }
+                    continue;
+                }
+
+                int n = Math.min(payloadLength - frameLength, end - offset);
+                if (frameLength == 0 && n == payloadLength) {
+                    // a whole payload in the input, no need to copy it
+                    listener.onFrame(data, offset, n);
+                    nextFrame();
+                } else {
+                    ensureCapacity(payloadLength);
+                    System.arraycopy(data, offset, frame, frameLength, n);
+                    frameLength += n;
+                    if (frameLength == payloadLength) {
+                        listener.onFrame(frame, 0, payloadLength);
+                        nextFrame();
+                    }
+                }
+                offset += n;
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            nextFrame();
+            skipping = 0;
+        }
+
+        private void startPayload(Listener listener) {
+            long length = includesPrefix ? prefix - prefixSize : prefix;
+            if (length < 0 || length > maxFrameLength) {
+                skipping = (int) Math.min(Math.max(length, 0), Integer.MAX_VALUE);
+                nextFrame();
+            } else if (length == 0) {
+                listener.onFrame(frame, 0, 0);
+                nextFrame();
+            } else {
+                payloadLength = (int) length;
+                frameLength = 0;
+            }
+        }
+
+        private void ensureCapacity(int length) {
+            if (frame.length < length) {
+                frame = new byte[length];
+            }
+        }
+
+        private void nextFrame() {
+            prefixRead = 0;
+            prefix = 0;
+            payloadLength = 0;
+            frameLength = 0;
+        }
+    }
+
+    /**
+     * Checksums over the bytes between the start byte and the checksum byte.
+     */
+    enum Checksum {
+        NONE, SUM8, XOR8;
+
+        static Checksum fromName(String name) {
+            if (name.equals("none")) {
+                return NONE;
+            } else if (name.equals("sum8")) {
+                return SUM8;
+            } else if (name.equals("xor8")) {
+                return XOR8;
+            }
+            throw new IllegalArgumentException("Unknown checksum: " + name);
+        }
+
+        int size() {
+            return this == NONE ? 0 : 1;
+        }
+
+        boolean verify(byte[] data, int offset, int length) {
+            if (this == NONE) {
+                return true;
+            }
+            int value = 0;
+            int end = offset + length - 1;
+            for (int i = offset; i < end; i++) {
+                if (this == SUM8) {
+                    value += data[i];
+                } else {
+                    value ^= data[i];
+                }
+            }
+            return (value & 0xFF) == (data[end] & 0xFF);
+        }
+    }
+
+    /**
+     * Fixed-length frames that begin with a start byte and may end with a
+     * checksum byte, e.g. the 0xAD uLanding frames. Bytes before a start byte
+     * are skipped, and after a checksum failure the search for the next
+     * start byte resumes just after the rejected one.
+     */
+    static class StartByte extends Framer {
+
+        private final int startByte;
+        private final int length;
+        private final Checksum checksum;
+
+        StartByte(int startByte, int length, Checksum checksum) {
+            super(Math.max(length, 1));
+            if (startByte < 0 || startByte > 0xFF) {
+                throw new IllegalArgumentException("startByte must be 0 to 255");
+            }
+            if (length < 1 + checksum.size()) {
+                throw new IllegalArgumentException("length is too short");
+            }
+            this.startByte = startByte;
+            this.length = length;
+            this.checksum = checksum;
+            this.frame = new byte[length];
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int count, Listener listener) {
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                accept(data[i] & 0xFF, listener);
+            }
+        }
+
+        private void accept(int b, Listener listener) {
+            if (frameLength == 0 && b != startByte) {
+                return;
+            }
+            frame[frameLength++] = (byte) b;
+            if (frameLength < length) {
+                return;
+            }
+            // checksum covers the bytes after the start byte
+            if (checksum.verify(frame, 1, length - 1)) {
+                listener.onFrame(frame, 0, length);
+                frameLength = 0;
+            } else {
+                resync(listener);
+            }
+        }
+
+        private void resync(Listener listener) {
+            int n = frameLength;
+            frameLength = 0;
+            byte[] rest = Arrays.copyOfRange(frame, 1, n);
+            for (byte b : rest) {
+                accept(b & 0xFF, listener);
+            }
+        }
+    }
+
+    /**
+     * SLIP (RFC 1055) frames, ended by 0xC0 with 0xDB escapes.
+     */
+    static class Slip extends Framer {
+
+        private static final int END = 0xC0;
+        private static final int ESC = 0xDB;
+        private static final int ESC_END = 0xDC;
+        private static final int ESC_ESC = 0xDD;
+
+        private boolean escaped;
+
+        Slip(int maxFrameLength) {
+            super(maxFrameLength);
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int count, Listener listener) {
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                int b = data[i] & 0xFF;
+                if (b == END) {
+                    if (frameLength > 0 && !overflowed) {
+                        listener.onFrame(frame, 0, frameLength);
+                    }
+                    reset();
+                } else if (b == ESC) {
+                    escaped = true;
+                } else {
+                    if (escaped) {
+                        if (b == ESC_END) {
+                            b = END;
+                        } else if (b == ESC_ESC) {
+                            b = ESC;
+                        }
+                        escaped = false;
+                    }
+                    append(b);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            escaped = false;
+        }
+    }
+
+    /**
+     * COBS encoded frames, each ended by a 0x00 byte. The listener gets the
+     * decoded bytes.
+     */
+    static class Cobs extends Framer {
+
+        Cobs(int maxFrameLength) {
+            super(maxFrameLength);
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int count, Listener listener) {
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                int b = data[i] & 0xFF;
+                if (b == 0) {
+                    if (frameLength > 0 && !overflowed) {
+                        int decoded = decode();
+                        if (decoded >= 0) {
+                            listener.onFrame(frame, 0, decoded);
+                        }
+                    }
+                    reset();
+                } else {
+                    append(b);
+                }
+            }
+        }
+
+        /**
+         * Decode the frame in place.
+         * @return the decoded length, or -1 if the frame is malformed
+         */
+        private int decode() {
+            int read = 0;
+            int write = 0;
+            while (read < frameLength) {
+                int code = frame[read++] & 0xFF;
+                int copy = code - 1;
+                if (read + copy > frameLength) {
+                    return -1;
+                }
+                System.arraycopy(frame, read, frame, write, copy);
+                read += copy;
+                write += copy;
+                if (code < 0xFF && read < frameLength) {
+                    frame[write++] = 0;
+                }
+            }
+            return write;
+        }
+    }
+}
@@ -32,6 +32,9 @@ app.DFRBLU_SERVICE_UUID = '0000dfb0-0000-1000-8000-00805f9b34fb';
 app.DFRBLU_CHAR_RXTX_UUID = '0000dfb1-0000-1000-8000-00805f9b34fb';
 app.DFRBLU_TX_UUID_DESCRIPTOR = '00002902-0000-1000-8000-00805f9b34fb';
 
+// Confirm this is the coefficient for your specific uLanding.
+app.ULANDING_COEFFICIENT = 0.045;
+
 	// Discovered devices.
 	app.knownDevices = {};
 
@@ -147,7 +150,8 @@ app.connectTo = function(address)
 				app.receivedData,
 				function(errorcode) {
 					console.log('BLE enableNotification error: ' + errorCode);
-				});
+				},
+				{ decoder: 'ulanding', coefficient: app.ULANDING_COEFFICIENT });
 		}
 
 		function onServiceFailure(errorCode)
@@ -215,37 +219,19 @@ app.sendData = function(data)
 	}
 };
 
-app.receivedData = function(data)
+// Called with frames decoded natively by the BLE plugin,
+// see the 'ulanding' decoder option of evothings.ble.enableNotification.
+app.receivedData = function(altitude, raw)
 {
 	if (app.connected)
 	{
-		var data = new Uint8Array(data);
-		var prevValue = app.prevValue;
-
-		if (data[0] === 0xAD)
-		{
-			var value = (data[2] << 8) | data[1];
-			
-			console.log(value);
-
-			value = value*0.045; //Confirm this is the coefficient for your specific uLanding.
-			if (value < 0)
-			{
-				value = 0;
-			}
+		console.log(raw);
 
+		value2 = Math.round(altitude*100)/100;
+		$('#analogDigitalResult').text(value2);
 
-			//app.prevValue = value;
-
-			value2 = Math.round(value*100)/100;
-			$('#analogDigitalResult').text(value2);
-			//$('#analogDigitalResult2').text(mag);
-			value = value*100;
-			
-			var new_data = new Uint16Array([value]);
-			app.drawLines(new_data);
-			//app.drawLines([new DataView(data).getUint16(0, true)]);
-		}
+		var new_data = new Uint16Array([altitude*100]);
+		app.drawLines(new_data);
 	}
 	else
 	{
@@ -766,6 +766,8 @@
 		 * @param {string} characteristicUUID - UUID of characteristic to subscribe to.
 		 * @param {evothings.easyble.dataCallback} success - Success callback: success(data).
 		 * @param {evothings.easyble.failCallback} fail - Error callback: fail(error).
+		 * @param {object} [options] - Optional notification settings,
+		 * see evothings.ble.enableNotification.
 		 * @public
 		 * @instance
 		 * @example
@@ -780,9 +782,9 @@
 		 *     console.log('BLE enableNotification error: ' + errorCode);
 		 *   });
 		 */
-		device.enableNotification = function(characteristicUUID, success, fail)
+		device.enableNotification = function(characteristicUUID, success, fail, options)
 		{
-			internal.enableNotification(device, characteristicUUID, success, fail);
+			internal.enableNotification(device, characteristicUUID, success, fail, options);
 		};
 
 		device.enableServiceNotification = function(serviceUUID, characteristicUUID, success, fail)
@@ -1209,7 +1211,7 @@
  	 * Called from evothings.easyble.EasyBLEDevice.
 	 * @private
 	 */
-	internal.enableNotification = function(device, characteristicUUID, success, fail)
+	internal.enableNotification = function(device, characteristicUUID, success, fail, options)
 	{
 		characteristicUUID = characteristicUUID.toLowerCase();
 
@@ -1225,7 +1227,8 @@
 			device.deviceHandle,
 			characteristic.handle,
 			success,
-			fail);
+			fail,
+			options);
 	};
 
 	/**